@@ -2,6 +2,7 @@ package com.moscrop.official;
 
 import android.app.Application;
 
+import com.moscrop.official.calendar.CalendarSyncService;
 import com.moscrop.official.util.ApiConfig;
 import com.parse.Parse;
 
@@ -27,5 +28,8 @@ public class App extends Application {
 
         // Initialize Parse
         Parse.initialize(this, ApiConfig.Parse.API_KEY, ApiConfig.Parse.CLIENT_KEY);
+
+        // Keep the calendar fresh in the background
+        CalendarSyncService.schedule(this);
     }
 }
@@ -3,10 +3,22 @@ package com.moscrop.official.calendar;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 
+import com.moscrop.official.util.BulkLoader;
+import com.moscrop.official.util.DateUtil;
+import com.moscrop.official.util.FtsUtil;
+import com.moscrop.official.util.Logger;
+import com.moscrop.official.util.SharedDatabaseHelper;
+
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
@@ -18,24 +30,80 @@ import java.util.List;
  *
  * Created by ivon on 9/16/14.
  */
-public class CalendarDatabase extends SQLiteOpenHelper {
+public class CalendarDatabase extends SharedDatabaseHelper {
 
     private static CalendarDatabase mInstance;
     private Context mContext;
 
+    // Reused across upsertEvent() calls while streaming a feed in
+    private final ContentValues mInsertValues = new ContentValues();
+
+    // Inserts the events of the update in progress, null between updates
+    private BulkLoader mLoader;
+    private boolean mFtsTriggersDropped = false;
+
+    // Months touched by the update in progress. Their
+    // day index rows are recomputed before it is committed.
+    private final SparseBooleanArray mDirtyMonths = new SparseBooleanArray();
+
+    // Built lazily from the calendar table, null when out of date
+    private EventIntervalIndex mIntervalIndex;
+    private static final int ID_QUERY_CHUNK_SIZE = 500;
+
+    // Series that never end are only put in the day index this far ahead
+    private static final long SERIES_HORIZON = 2L * 366 * 24 * 60 * 60 * 1000;
+
     private static final String _ID = "_id";
+    private static final String COLUMN_CALENDAR_ID = "calendar_id";
+    private static final String COLUMN_EVENT_ID = "event_id";
+    private static final String COLUMN_ETAG = "etag";
     private static final String COLUMN_TITLE = "title";
     private static final String COLUMN_DESCRIPTION = "description";
     private static final String COLUMN_LOCATION = "location";
     private static final String COLUMN_START = "start";
     private static final String COLUMN_END = "end";
 
+    // Only set for series and for instances of a series stored on their own,
+    // see GCalEvent. series_end is the end of the last instance of a series
+    // (Long.MAX_VALUE if it never ends), and the same as end for other events.
+    private static final String COLUMN_RECURRENCE = "recurrence";
+    private static final String COLUMN_TIME_ZONE = "time_zone";
+    private static final String COLUMN_SERIES_END = "series_end";
+    private static final String COLUMN_RECURRING_EVENT_ID = "recurring_event_id";
+    private static final String COLUMN_ORIGINAL_START = "original_start";
+
+    // Identifies a single event, given its calendar id and event id
+    private static final String EVENT_SELECTION = COLUMN_CALENDAR_ID + "=? AND " + COLUMN_EVENT_ID + "=?";
+
+    // Identifies the moved and cancelled instances of a series, given its calendar id and event id
+    private static final String INSTANCE_SELECTION = COLUMN_CALENDAR_ID + "=? AND " + COLUMN_RECURRING_EVENT_ID + "=?";
+
+    // Events that are a whole series
+    private static final String SERIES_SELECTION = COLUMN_RECURRENCE + " IS NOT NULL";
+
+    // Columns written by insertEvent(), see bindEvent()
+    private static final String[] INSERT_COLUMNS = { COLUMN_CALENDAR_ID, COLUMN_EVENT_ID, COLUMN_ETAG, COLUMN_TITLE,
+            COLUMN_DESCRIPTION, COLUMN_LOCATION, COLUMN_START, COLUMN_END, COLUMN_RECURRENCE, COLUMN_TIME_ZONE,
+            COLUMN_SERIES_END, COLUMN_RECURRING_EVENT_ID, COLUMN_ORIGINAL_START };
+
+    // Columns of the calendar table indexed by calendar_fts
+    private static final String[] FTS_COLUMNS = { COLUMN_TITLE, COLUMN_DESCRIPTION, COLUMN_LOCATION };
+
+    // Columns read into an EventStore, see addToStore()
+    private static final String[] STORE_COLUMNS = { _ID, COLUMN_TITLE, COLUMN_LOCATION, COLUMN_START, COLUMN_END };
+
+    private static final String COLUMN_MONTH = "month";
+    private static final String COLUMN_DAYS = "days";
+
     private static final String NAME = "calendar";
     private static final String NAME_FTS = "calendar_fts";
-    private static final int VERSION = 2015040701;
+    private static final String NAME_DAYS = "calendar_days";
+    private static final String NAME_CANCELLED = "calendar_cancelled";
+    private static final String SNAPSHOT_NAME = "calendar.snapshot";
+    private static final int VERSION = 2015092801;
 
     private CalendarDatabase(Context context) {
-        super(context, NAME, null, VERSION);
+        super(context, NAME, VERSION);
         mContext = context;
     }
 
@@ -47,40 +115,151 @@ public class CalendarDatabase extends SQLiteOpenHelper {
         return mInstance;
     }
 
+    /**
+     * Close and forget the shared instance, so the next getInstance()
+     * opens the database of the context it is given. Tests get a new
+     * application, with its own files, every time.
+     */
+    static synchronized void closeInstance() {
+        if (mInstance != null) {
+            mInstance.close();
+            mInstance = null;
+        }
+    }
+
+    /**
+     * The calendar table is the source of truth and is what date range
+     * queries run against. calendar_fts is an FTS4 index over its text
+     * columns, kept in sync by triggers, and is only used for full-text
+     * search. It only holds its own copy of the text on devices too old
+     * for external content tables, see FtsUtil.
+     *
+     * Event ids are only unique within a calendar, and the same event
+     * can be in more than one calendar, so rows are keyed by both.
+     *
+     * When recurring events are expanded on the device, a series is one
+     * row and its instances are worked out when they are queried.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + NAME + " (" +
                 _ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_CALENDAR_ID + " TEXT NOT NULL, " +
+                COLUMN_EVENT_ID + " TEXT NOT NULL, " +
+                COLUMN_ETAG + " TEXT, " +
                 COLUMN_TITLE + " TEXT, " +
                 COLUMN_DESCRIPTION + " TEXT, " +
                 COLUMN_LOCATION + " TEXT, " +
-                COLUMN_START + " INTEGER, " +
-                COLUMN_END + " INTEGER" +
+                COLUMN_START + " INTEGER NOT NULL, " +
+                COLUMN_END + " INTEGER NOT NULL, " +
+                COLUMN_RECURRENCE + " TEXT, " +
+                COLUMN_TIME_ZONE + " TEXT, " +
+                COLUMN_SERIES_END + " INTEGER, " +
+                COLUMN_RECURRING_EVENT_ID + " TEXT, " +
+                COLUMN_ORIGINAL_START + " INTEGER, " +
+                "UNIQUE (" + COLUMN_CALENDAR_ID + ", " + COLUMN_EVENT_ID + ")" +
+                ")");
+
+        db.execSQL("CREATE INDEX " + NAME + "_" + COLUMN_START + " ON " + NAME + " (" + COLUMN_START + ")");
+        db.execSQL("CREATE INDEX " + NAME + "_" + COLUMN_END + " ON " + NAME + " (" + COLUMN_END + ")");
+        createRecurrenceTables(db);
+
+        FtsUtil.createIndex(db, NAME_FTS, NAME, FTS_COLUMNS);
+
+        createFtsTriggers(db);
+        createDayIndex(db);
+    }
+
+    /**
+     * calendar_days stores which days of each month have events, one
+     * row per month, so Caldroid's event indicators can be set without
+     * walking through events. The month key is year * 12 + month
+     * (java.util.Calendar months) and bit n of days is set if day
+     * n+1 of that month has an event.
+     */
+    private static void createDayIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NAME_DAYS + " (" +
+                COLUMN_MONTH + " INTEGER PRIMARY KEY, " +
+                COLUMN_DAYS + " INTEGER NOT NULL" +
                 ")");
+    }
 
-        db.execSQL("CREATE VIRTUAL TABLE " + NAME_FTS + " USING fts3 (" +
-                _ID + ", " +
-                COLUMN_TITLE + ", " +
-                COLUMN_DESCRIPTION + ", " +
-                COLUMN_LOCATION + ", " +
-                COLUMN_START + ", " +
-                COLUMN_END + "" +
+    /**
+     * calendar_cancelled stores the instances deleted from a series,
+     * which Google only lists as cancelled events of their own
+     */
+    private static void createRecurrenceTables(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + NAME + "_" + COLUMN_SERIES_END + " ON " + NAME + " (" + COLUMN_SERIES_END + ")");
+        db.execSQL("CREATE TABLE " + NAME_CANCELLED + " (" +
+                COLUMN_CALENDAR_ID + " TEXT NOT NULL, " +
+                COLUMN_RECURRING_EVENT_ID + " TEXT NOT NULL, " +
+                COLUMN_ORIGINAL_START + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + COLUMN_CALENDAR_ID + ", " + COLUMN_RECURRING_EVENT_ID + ", " + COLUMN_ORIGINAL_START + ")" +
                 ")");
     }
 
+    private static void dropFtsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + NAME + "_bu");
+        db.execSQL("DROP TRIGGER IF EXISTS " + NAME + "_bd");
+        db.execSQL("DROP TRIGGER IF EXISTS " + NAME + "_au");
+        db.execSQL("DROP TRIGGER IF EXISTS " + NAME + "_ai");
+    }
+
+    /**
+     * FTS tables aren't updated automatically, so mirror
+     * every change to the calendar table into the index
+     */
+    private static void createFtsTriggers(SQLiteDatabase db) {
+        String ftsColumns = "docid, " + TextUtils.join(", ", FTS_COLUMNS);
+        String newValues = "new." + _ID + ", new." + COLUMN_TITLE + ", new." + COLUMN_DESCRIPTION + ", new." + COLUMN_LOCATION;
+
+        db.execSQL("CREATE TRIGGER " + NAME + "_bu BEFORE UPDATE ON " + NAME + " BEGIN " +
+                "DELETE FROM " + NAME_FTS + " WHERE docid=old." + _ID + "; " +
+                "END");
+        db.execSQL("CREATE TRIGGER " + NAME + "_bd BEFORE DELETE ON " + NAME + " BEGIN " +
+                "DELETE FROM " + NAME_FTS + " WHERE docid=old." + _ID + "; " +
+                "END");
+        db.execSQL("CREATE TRIGGER " + NAME + "_au AFTER UPDATE ON " + NAME + " BEGIN " +
+                "INSERT INTO " + NAME_FTS + " (" + ftsColumns + ") VALUES (" + newValues + "); " +
+                "END");
+        db.execSQL("CREATE TRIGGER " + NAME + "_ai AFTER INSERT ON " + NAME + " BEGIN " +
+                "INSERT INTO " + NAME_FTS + " (" + ftsColumns + ") VALUES (" + newValues + "); " +
+                "END");
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+
+        // Snapshots name the version they were written from, but
+        // there's no point keeping one from before the upgrade
+        deleteSnapshot();
+
         db.execSQL("DROP TABLE IF EXISTS " + NAME);
         db.execSQL("DROP TABLE IF EXISTS " + NAME_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + NAME_DAYS);
+        db.execSQL("DROP TABLE IF EXISTS " + NAME_CANCELLED);
         onCreate(db);
+
+        // Stored events are gone, so the sync tokens no longer
+        // describe what we have. Force the next sync to be a full load.
+        CalendarParser.clearUpdateInfo(mContext);
     }
 
     public int deleteAll() {
-        return getWritableDatabase().delete(NAME_FTS, null, null);
+        invalidateIntervalIndex();
+        deleteSnapshot();
+        getDatabase().delete(NAME_DAYS, null, null);
+        getDatabase().delete(NAME_CANCELLED, null, null);
+        return getDatabase().delete(NAME, null, null);
     }
 
     public int deleteAfterTime(long time) {
-        return getWritableDatabase().delete(NAME_FTS, COLUMN_END + ">=?", new String[]{String.valueOf(time)});
+        invalidateIntervalIndex();
+        deleteSnapshot();
+        SQLiteDatabase db = getDatabase();
+        int deleted = db.delete(NAME, COLUMN_END + ">=?", new String[]{String.valueOf(time)});
+        rebuildDayIndex(db);
+        return deleted;
     }
 
     /**
@@ -88,69 +267,537 @@ public class CalendarDatabase extends SQLiteOpenHelper {
      * @param events
      */
     public void saveEventsToDatabase(List<GCalEvent> events) {
-        getWritableDatabase().beginTransaction();
+        boolean successful = false;
+        beginUpdate(null, false);
         try {
             for (GCalEvent event : events) {
-                ContentValues values = new ContentValues();
-                values.put(COLUMN_TITLE, event.title);
-                values.put(COLUMN_DESCRIPTION, event.description);
-                values.put(COLUMN_LOCATION, event.location);
-                values.put(COLUMN_START, event.startTime);
-                values.put(COLUMN_END, event.endTime);
-                getWritableDatabase().insert(NAME_FTS, null, values);
+                insertEvent(event);
             }
-            getWritableDatabase().setTransactionSuccessful();
+            successful = true;
         } finally {
-            getWritableDatabase().endTransaction();
+            endUpdate(successful);
         }
     }
 
+    /**
+     * Begin writing downloaded events into the database. Events are
+     * then added one at a time with insertEvent(GCalEvent),
+     * upsertEvent(GCalEvent) and deleteEvent(String, String).
+     * Must be followed by endUpdate(boolean).
+     *
+     * Only one update can be in progress at a time, so all
+     * updates should be made from the same writer thread.
+     *
+     * @param calendarId
+     *          Calendar being updated
+     * @param replaceAll
+     *          true to delete every event stored for the calendar first.
+     *          If no other calendar has events, the FTS index is then
+     *          rebuilt once in endUpdate(boolean) rather than kept up
+     *          to date row by row.
+     */
+    public void beginUpdate(String calendarId, boolean replaceAll) {
+        SQLiteDatabase db = getDatabase();
+
+        // The snapshot would no longer match. It's written
+        // again with writeSnapshot() once the sync is done.
+        deleteSnapshot();
+
+        // Readers carry on with the last committed events meanwhile
+        db.beginTransactionNonExclusive();
+        mDirtyMonths.clear();
+        mLoader = new BulkLoader(db, NAME, INSERT_COLUMNS);
+        if (replaceAll) {
+
+            // Rebuilding the FTS index covers every calendar's rows, so only
+            // do it when this calendar is all there is. Otherwise keep the
+            // triggers, so a reload only touches this calendar's index rows.
+            if (!hasOtherCalendars(db, calendarId)) {
+                dropFtsTriggers(db);
+                mFtsTriggersDropped = true;
+                mLoader.rebuildFtsWhenFinished(NAME_FTS, FTS_COLUMNS);
+            }
+
+            markCalendarMonthsDirty(calendarId);
+            db.delete(NAME, COLUMN_CALENDAR_ID + "=?", new String[]{calendarId});
+            db.delete(NAME_CANCELLED, COLUMN_CALENDAR_ID + "=?", new String[]{calendarId});
+        }
+        mLoader.begin();
+    }
+
+    /**
+     * Whether any events are stored for calendars other than the given one
+     */
+    private static boolean hasOtherCalendars(SQLiteDatabase db, String calendarId) {
+        return DatabaseUtils.longForQuery(db, "SELECT EXISTS (SELECT 1 FROM " + NAME + " WHERE "
+                + COLUMN_CALENDAR_ID + "<>?)", new String[]{calendarId}) != 0;
+    }
+
+    /**
+     * End of the last instance of a series, or the end of a single event
+     *
+     * @return  end time, or Long.MAX_VALUE if the series never ends
+     */
+    private static long getSeriesEnd(GCalEvent event) {
+        Recurrence recurrence = Recurrence.forEvent(event);
+        if (recurrence == null) {
+            return event.endTime;
+        }
+        long lastStart = recurrence.getLastStart(event.startTime);
+        return lastStart == Long.MAX_VALUE ? Long.MAX_VALUE : lastStart + (event.endTime - event.startTime);
+    }
+
+    /**
+     * Get how far an event's days should be indexed. Series
+     * are cut off at the horizon, other events never are.
+     *
+     * @param seriesEnd
+     *          series_end, which is never before end
+     */
+    private static long getIndexedEnd(long endTime, long seriesEnd) {
+        return Math.max(endTime, Math.min(seriesEnd, System.currentTimeMillis() + SERIES_HORIZON));
+    }
+
+    private void setInsertValues(GCalEvent event, long seriesEnd) {
+        mInsertValues.put(COLUMN_CALENDAR_ID, event.calendarId);
+        mInsertValues.put(COLUMN_EVENT_ID, event.id);
+        mInsertValues.put(COLUMN_ETAG, event.etag);
+        mInsertValues.put(COLUMN_TITLE, event.title);
+        mInsertValues.put(COLUMN_DESCRIPTION, event.description);
+        mInsertValues.put(COLUMN_LOCATION, event.location);
+        mInsertValues.put(COLUMN_START, event.startTime);
+        mInsertValues.put(COLUMN_END, event.endTime);
+        mInsertValues.put(COLUMN_RECURRENCE, event.recurrence);
+        mInsertValues.put(COLUMN_TIME_ZONE, event.timeZone);
+        mInsertValues.put(COLUMN_SERIES_END, seriesEnd);
+        mInsertValues.put(COLUMN_RECURRING_EVENT_ID, event.recurringEventId);
+        if (event.originalStartTime != -1) {
+            mInsertValues.put(COLUMN_ORIGINAL_START, event.originalStartTime);
+        } else {
+            mInsertValues.putNull(COLUMN_ORIGINAL_START);
+        }
+    }
+
+    /**
+     * Bind an event to the INSERT_COLUMNS of the update's loader
+     */
+    private void bindEvent(GCalEvent event, long seriesEnd) {
+        if (mLoader == null) {
+            throw new IllegalStateException("Events can only be inserted between beginUpdate() and endUpdate()");
+        }
+        mLoader.bind(0, event.calendarId);
+        mLoader.bind(1, event.id);
+        mLoader.bind(2, event.etag);
+        mLoader.bind(3, event.title);
+        mLoader.bind(4, event.description);
+        mLoader.bind(5, event.location);
+        mLoader.bind(6, event.startTime);
+        mLoader.bind(7, event.endTime);
+        mLoader.bind(8, event.recurrence);
+        mLoader.bind(9, event.timeZone);
+        mLoader.bind(10, seriesEnd);
+        mLoader.bind(11, event.recurringEventId);
+        if (event.originalStartTime != -1) {
+            mLoader.bind(12, event.originalStartTime);
+        } else {
+            mLoader.bindNull(12);
+        }
+    }
+
+    /**
+     * Insert a single event. Should be called between
+     * beginUpdate(boolean) and endUpdate(boolean).
+     */
+    public void insertEvent(GCalEvent event) {
+        long seriesEnd = getSeriesEnd(event);
+        bindEvent(event, seriesEnd);
+        mLoader.insert();
+        markMonthsDirty(event.startTime, getIndexedEnd(event.endTime, seriesEnd));
+    }
+
+    /**
+     * Insert an event, replacing the stored copy if one with
+     * the same event id already exists in its calendar.
+     *
+     * Updates in place rather than relying on INSERT OR REPLACE,
+     * because REPLACE doesn't fire the delete trigger that keeps
+     * the FTS index in sync.
+     */
+    public void upsertEvent(GCalEvent event) {
+        String[] whereArgs = new String[]{event.calendarId, event.id};
+        long seriesEnd = getSeriesEnd(event);
+        markStoredEventMonthsDirty(EVENT_SELECTION, whereArgs);
+        markMonthsDirty(event.startTime, getIndexedEnd(event.endTime, seriesEnd));
+
+        setInsertValues(event, seriesEnd);
+        int updated = getDatabase().update(NAME, mInsertValues, EVENT_SELECTION, whereArgs);
+        if (updated == 0) {
+            bindEvent(event, seriesEnd);
+            mLoader.insert();
+        }
+    }
+
+    /**
+     * Delete the event with the given Google Calendar event id.
+     * Deleting a series also deletes its moved and cancelled instances.
+     */
+    public int deleteEvent(String calendarId, String eventId) {
+        SQLiteDatabase db = getDatabase();
+        String[] whereArgs = new String[]{calendarId, eventId};
+        markStoredEventMonthsDirty(EVENT_SELECTION, whereArgs);
+        markStoredEventMonthsDirty(INSTANCE_SELECTION, whereArgs);
+        db.delete(NAME, INSTANCE_SELECTION, whereArgs);
+        db.delete(NAME_CANCELLED, INSTANCE_SELECTION, whereArgs);
+        return db.delete(NAME, EVENT_SELECTION, whereArgs);
+    }
+
+    /**
+     * Record that a single instance of a series was deleted
+     *
+     * @param originalStartTime
+     *          Start time the instance would have had
+     */
+    public void addCancelledInstance(String calendarId, String recurringEventId, long originalStartTime) {
+        SQLiteDatabase db = getDatabase();
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_CALENDAR_ID, calendarId);
+        values.put(COLUMN_RECURRING_EVENT_ID, recurringEventId);
+        values.put(COLUMN_ORIGINAL_START, originalStartTime);
+        db.insertWithOnConflict(NAME_CANCELLED, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+
+        // The instance lasted as long as the series' first one
+        long duration = 1;
+        String[] columns = new String[] { COLUMN_END + "-" + COLUMN_START };
+        Cursor c = db.query(NAME, columns, EVENT_SELECTION, new String[]{calendarId, recurringEventId}, null, null, null);
+        if (c.moveToFirst()) {
+            duration = Math.max(1, c.getLong(0));
+        }
+        c.close();
+        markMonthsDirty(originalStartTime, originalStartTime + duration);
+    }
+
+    /**
+     * Finish writing events
+     *
+     * @param successful
+     *          true to keep the changes, false to roll
+     *          back to the events stored before
+     */
+    public void endUpdate(boolean successful) {
+        SQLiteDatabase db = getDatabase();
+        try {
+            // Rebuilds the FTS index if it was left alone while loading
+            mLoader.finish(successful);
+
+            if (successful) {
+                if (mFtsTriggersDropped) {
+                    createFtsTriggers(db);
+                }
+                for (int i = 0; i < mDirtyMonths.size(); i++) {
+                    updateDayIndex(db, mDirtyMonths.keyAt(i));
+                }
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            // Rolling back brings dropped triggers back too
+            mLoader = null;
+            mFtsTriggersDropped = false;
+            mDirtyMonths.clear();
+            db.endTransaction();
+            invalidateIntervalIndex();
+        }
+    }
+
+    public static int getMonthKey(int year, int month) {
+        return year * 12 + month;
+    }
+
+    private static int getMonthKey(Calendar cal) {
+        return getMonthKey(cal.get(Calendar.YEAR), cal.get(Calendar.MONTH));
+    }
+
+    /**
+     * Remember every month the given time range falls in, so that
+     * their day index rows are recomputed when the update is committed
+     */
+    private void markMonthsDirty(long startTime, long endTime) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(Math.max(startTime, endTime - 1));
+        int lastMonth = getMonthKey(cal);
+
+        cal.setTimeInMillis(startTime);
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        for (int month = getMonthKey(cal); month <= lastMonth; month++) {
+            mDirtyMonths.put(month, true);
+        }
+    }
+
+    /**
+     * Mark the months of the currently stored copies of events as
+     * dirty, before they are changed or deleted
+     *
+     * @param selection
+     *          EVENT_SELECTION or INSTANCE_SELECTION
+     * @param whereArgs
+     *          Calendar id and event id
+     */
+    private void markStoredEventMonthsDirty(String selection, String[] whereArgs) {
+        String[] columns = new String[] { COLUMN_START, COLUMN_END, COLUMN_SERIES_END };
+        Cursor c = query(NAME, columns, selection, whereArgs, null, null, null);
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            markMonthsDirty(c.getLong(0), getIndexedEnd(c.getLong(1), c.getLong(2)));
+        }
+        c.close();
+    }
+
+    /**
+     * Mark every month a calendar has events in as dirty,
+     * before all of its events are deleted
+     */
+    private void markCalendarMonthsDirty(String calendarId) {
+        String sql = "SELECT MIN(" + COLUMN_START + "), MAX(" + COLUMN_END + "), MAX(" + COLUMN_SERIES_END + ") FROM " + NAME
+                + " WHERE " + COLUMN_CALENDAR_ID + "=?";
+        Cursor c = rawQuery(sql, new String[]{calendarId});
+        if (c.moveToFirst() && !c.isNull(0)) {
+            markMonthsDirty(c.getLong(0), getIndexedEnd(c.getLong(1), c.getLong(2)));
+        }
+        c.close();
+    }
+
+    /**
+     * Recompute the days with events for a single month from the calendar table
+     */
+    private static void updateDayIndex(SQLiteDatabase db, int monthKey) {
+        Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set(monthKey / 12, monthKey % 12, 1);
+        long monthStart = cal.getTimeInMillis();
+        cal.add(Calendar.MONTH, 1);
+        long monthEnd = cal.getTimeInMillis();
+
+        int firstDay = DateUtil.daysFromMillis(monthStart);
+        int lastDay = DateUtil.daysFromMillis(monthEnd) - 1;
+
+        String[] columns = new String[] { COLUMN_START, COLUMN_END };
+        String selection = COLUMN_START + "<? AND " + COLUMN_END + ">? AND " + COLUMN_RECURRENCE + " IS NULL";
+        String[] selectionArgs = new String[] { String.valueOf(monthEnd), String.valueOf(monthStart) };
+        Cursor c = db.query(NAME, columns, selection, selectionArgs, null, null, null);
+
+        int days = 0;
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            days |= getDayBits(c.getLong(0), c.getLong(1), firstDay, lastDay);
+        }
+        c.close();
+
+        EventStore instances = getSeriesInstances(db, monthStart, monthEnd);
+        for (int i = 0; i < instances.size(); i++) {
+            days |= getDayBits(instances.getStartTime(i), instances.getEndTime(i), firstDay, lastDay);
+        }
+
+        if (days == 0) {
+            db.delete(NAME_DAYS, COLUMN_MONTH + "=?", new String[]{String.valueOf(monthKey)});
+        } else {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_MONTH, monthKey);
+            values.put(COLUMN_DAYS, days);
+            db.insertWithOnConflict(NAME_DAYS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+
+    /**
+     * Get the bits of the days an event is on, out of the days of a month
+     */
+    private static int getDayBits(long startTime, long endTime, int firstDay, int lastDay) {
+        // Same day range as EventListAdapter. Subtract 1 to prevent events
+        // ending at 0:00:00.000 (midnight) from counting as being on that day
+        int eventFirstDay = Math.max(DateUtil.daysFromMillis(startTime), firstDay);
+        int eventLastDay = Math.min(DateUtil.daysFromMillis(endTime - 1), lastDay);
+        int days = 0;
+        for (int day = eventFirstDay; day <= eventLastDay; day++) {
+            days |= 1 << (day - firstDay);
+        }
+        return days;
+    }
+
+    /**
+     * Recompute the day index for every month that has events
+     */
+    private static void rebuildDayIndex(SQLiteDatabase db) {
+        db.delete(NAME_DAYS, null, null);
+
+        String sql = "SELECT MIN(" + COLUMN_START + "), MAX(" + COLUMN_END + "), MAX(" + COLUMN_SERIES_END + ") FROM " + NAME;
+        Cursor c = db.rawQuery(sql, null);
+        if (c.moveToFirst() && !c.isNull(0)) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(Math.max(c.getLong(0), getIndexedEnd(c.getLong(1), c.getLong(2)) - 1));
+            int lastMonth = getMonthKey(cal);
+            cal.setTimeInMillis(c.getLong(0));
+            for (int month = getMonthKey(cal); month <= lastMonth; month++) {
+                updateDayIndex(db, month);
+            }
+        }
+        c.close();
+    }
+
+    /**
+     * Get which days have events for every month that has any
+     *
+     * @return  map of month key (see getMonthKey(int, int)) to a bitset
+     *          where bit n is set if day n+1 of the month has an event
+     */
+    public SparseIntArray getDayIndex() {
+        SparseIntArray index = new SparseIntArray();
+        Cursor c = query(NAME_DAYS, null, null, null, null, null, null);
+        int monthColumn = c.getColumnIndex(COLUMN_MONTH);
+        int daysColumn = c.getColumnIndex(COLUMN_DAYS);
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            index.put(c.getInt(monthColumn), c.getInt(daysColumn));
+        }
+        c.close();
+        return index;
+    }
+
     /**
      * Create a new GCalEvent using data
      * from the cursor at its current position
      */
-    private GCalEvent fromCursor(Cursor c) {
+    private static GCalEvent fromCursor(Cursor c) {
+        String calendarId = c.getString(c.getColumnIndex(COLUMN_CALENDAR_ID));
+        String eventId = c.getString(c.getColumnIndex(COLUMN_EVENT_ID));
+        String etag = c.getString(c.getColumnIndex(COLUMN_ETAG));
         String title = c.getString(c.getColumnIndex(COLUMN_TITLE));
         String description = c.getString(c.getColumnIndex(COLUMN_DESCRIPTION));
         String location = c.getString(c.getColumnIndex(COLUMN_LOCATION));
         long startTime = c.getLong(c.getColumnIndex(COLUMN_START));
         long endTime = c.getLong(c.getColumnIndex(COLUMN_END));
-        return new GCalEvent(title, description, location, startTime, endTime);
+        String recurrence = c.getString(c.getColumnIndex(COLUMN_RECURRENCE));
+        String timeZone = c.getString(c.getColumnIndex(COLUMN_TIME_ZONE));
+        String recurringEventId = c.getString(c.getColumnIndex(COLUMN_RECURRING_EVENT_ID));
+        int originalStartColumn = c.getColumnIndex(COLUMN_ORIGINAL_START);
+        long originalStartTime = c.isNull(originalStartColumn) ? -1 : c.getLong(originalStartColumn);
+        return new GCalEvent(calendarId, eventId, etag, title, description, location, startTime, endTime,
+                recurrence, timeZone, recurringEventId, originalStartTime);
     }
 
     /**
-     * Retrieve a list of GCalEvents for a given query
+     * Expand every stored series into its instances that overlap the given window
+     *
+     * @return  instances, not sorted
      */
-    public List<GCalEvent> search(String query) {
-
-        // TODO add a limit to events returned from search
-        // TODO to prevent an extremely long list as repetitive
-        // TODO events such as 'Spring Break' pile up throughout the years
-
-        /*Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.YEAR, -1);
-        long lowerBound = cal.getTimeInMillis();
-
-        cal.add(Calendar.YEAR, 2);
-        long upperBound = cal.getTimeInMillis();
+    private static EventStore getSeriesInstances(SQLiteDatabase db, long lowerBound, long upperBound) {
+        EventStore instances = new EventStore();
+        String selection = SERIES_SELECTION + " AND " + COLUMN_START + "<? AND " + COLUMN_SERIES_END + ">?";
+        String[] selectionArgs = new String[] { String.valueOf(upperBound), String.valueOf(lowerBound) };
+        Cursor c = db.query(NAME, null, selection, selectionArgs, null, null, null);
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            GCalEvent series = fromCursor(c);
+            Recurrence recurrence = Recurrence.forEvent(series);
+            if (recurrence == null) {
+                continue;
+            }
+            long rowId = c.getLong(c.getColumnIndex(_ID));
+            long duration = series.endTime - series.startTime;
+            long[] excluded = getExcludedStarts(db, series.calendarId, series.id);
+            long[] starts = recurrence.expand(series.startTime, duration, lowerBound, upperBound, excluded);
+            for (long start : starts) {
+                instances.add(rowId, series.title, series.location, start, start + duration);
+            }
+        }
+        c.close();
+        return instances;
+    }
 
-        String selection = NAME_FTS + " MATCH ? COLLATE NOCASE AND " + COLUMN_END + " > ? AND " + COLUMN_START + " < ?";
-        String[] selectionArgs = new String[] { appendWildcard(query), String.valueOf(lowerBound), String.valueOf(upperBound) };*/
+    /**
+     * Get the original start times of the instances of a series
+     * that were moved (and are stored on their own) or cancelled
+     *
+     * @return  sorted start times
+     */
+    private static long[] getExcludedStarts(SQLiteDatabase db, String calendarId, String seriesId) {
+        String sql = "SELECT " + COLUMN_ORIGINAL_START + " FROM " + NAME
+                + " WHERE " + INSTANCE_SELECTION + " AND " + COLUMN_ORIGINAL_START + " IS NOT NULL"
+                + " UNION SELECT " + COLUMN_ORIGINAL_START + " FROM " + NAME_CANCELLED
+                + " WHERE " + INSTANCE_SELECTION
+                + " ORDER BY 1";
+        Cursor c = db.rawQuery(sql, new String[] { calendarId, seriesId, calendarId, seriesId });
+        long[] starts = new long[c.getCount()];
+        int i = 0;
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            starts[i++] = c.getLong(0);
+        }
+        c.close();
+        return starts;
+    }
 
-        // TODO possibly instead of limiting by time difference,
-        // TODO limit instead by number of results returned
+    /**
+     * Retrieve the next page of GCalEvents matching a search,
+     * and move the cursor past them.
+     *
+     * Matches are ranked so that repeating events piling up
+     * over the years don't bury the useful ones:
+     * 1. Events with every search term in the title come first
+     * 2. Then events closest to when the search started
+     *
+     * Only the requested page is read out of the database. Each page
+     * starts after the last row of the one before, by rank, distance
+     * and row id, so events added or removed by a sync between pages
+     * don't shift results onto the next page twice or off it.
+     *
+     * @param cursor
+     *          Search to continue, starts at the first page when new
+     * @param pageSize
+     *          Maximum number of events to return
+     * @return  events in ranked order, empty once there are no more
+     */
+    public EventStore search(SearchCursor cursor, int pageSize) {
 
-        // TODO Old, non-limiting implementation
+        EventStore events = new EventStore(pageSize);
+        String match = appendWildcard(cursor.query, null);
+        if (!cursor.hasMore || TextUtils.isEmpty(match)) {
+            cursor.hasMore = false;
+            return events;
+        }
 
-        String selection = NAME_FTS + " MATCH ? COLLATE NOCASE";
-        String[] selectionArgs = new String[] { appendWildcard(query) };
+        // The page size, the current time and the last row's key are
+        // numbers we produce, so they can go straight into the statement.
+        // One extra row is asked for to tell if there's another page.
+        String sql = "SELECT " + _ID + ", " + COLUMN_TITLE + ", " + COLUMN_LOCATION + ", "
+                + COLUMN_START + ", " + COLUMN_END + ", rank, distance"
+                + " FROM (SELECT " + NAME + "." + _ID + " AS " + _ID + ", "
+                +       NAME + "." + COLUMN_TITLE + " AS " + COLUMN_TITLE + ", "
+                +       NAME + "." + COLUMN_LOCATION + " AS " + COLUMN_LOCATION + ", "
+                +       NAME + "." + COLUMN_START + " AS " + COLUMN_START + ", "
+                +       NAME + "." + COLUMN_END + " AS " + COLUMN_END + ", "
+                +       NAME + "." + _ID + " NOT IN ("
+                +           "SELECT docid FROM " + NAME_FTS + " WHERE " + NAME_FTS + " MATCH ?) AS rank, "
+                +       "ABS(" + NAME + "." + COLUMN_START + " - " + cursor.now + ") AS distance"
+                +       " FROM " + NAME
+                +       " JOIN " + NAME_FTS + " ON " + NAME + "." + _ID + "=" + NAME_FTS + ".docid"
+                +       " WHERE " + NAME_FTS + " MATCH ?)"
+                + (cursor.loaded > 0
+                        ? " WHERE rank>" + cursor.lastRank
+                        + " OR (rank=" + cursor.lastRank + " AND (distance>" + cursor.lastDistance
+                        + " OR (distance=" + cursor.lastDistance + " AND " + _ID + ">" + cursor.lastRowId + ")))"
+                        : "")
+                + " ORDER BY rank, distance, " + _ID
+                + " LIMIT " + (pageSize + 1);
+        String[] selectionArgs = new String[] { appendWildcard(cursor.query, COLUMN_TITLE), match };
 
-        Cursor c = getReadableDatabase().query(NAME_FTS, null, selection, selectionArgs, null, null, null);
-        List<GCalEvent> events = new ArrayList<GCalEvent>();
+        Cursor c = rawQuery(sql, selectionArgs);
         c.moveToPosition(-1);
-        while (c.moveToNext()) {
-            events.add(fromCursor(c));
+        while (events.size() < pageSize && c.moveToNext()) {
+            addToStore(events, c);
+            cursor.lastRank = c.getInt(5);
+            cursor.lastDistance = c.getLong(6);
+            cursor.lastRowId = c.getLong(0);
         }
+        cursor.hasMore = c.getCount() > pageSize;
+        cursor.loaded += events.size();
         c.close();
 
         return events;
@@ -158,15 +805,21 @@ public class CalendarDatabase extends SQLiteOpenHelper {
 
     /**
      * Helper method used to prepare the query for a full-text search
+     *
+     * @param column
+     *          Column to restrict every term to, or null to match any column
      */
-    private String appendWildcard(String query) {
+    private String appendWildcard(String query, String column) {
         if (TextUtils.isEmpty(query)) return query;
 
         final StringBuilder builder = new StringBuilder();
         final String[] splits = TextUtils.split(query, " ");
 
-        for (String split : splits)
+        for (String split : splits) {
+            if (split.length() == 0) continue;
+            if (column != null) builder.append(column).append(":");
             builder.append(split).append("*").append(" ");
+        }
 
         return builder.toString().trim();
     }
@@ -175,7 +828,8 @@ public class CalendarDatabase extends SQLiteOpenHelper {
      * Retrieve a list of all events stored in the database
      */
     public List<GCalEvent> getAllEvents() {
-        Cursor c = getReadableDatabase().query(NAME_FTS, null, null, null, null, null, null);
+        String orderBy = COLUMN_START + " ASC";
+        Cursor c = query(NAME, null, null, null, null, null, orderBy);
         List<GCalEvent> events = new ArrayList<GCalEvent>();
         c.moveToPosition(-1);
         while (c.moveToNext()) {
@@ -187,34 +841,100 @@ public class CalendarDatabase extends SQLiteOpenHelper {
     }
 
     /**
-     * Retrieve a list of events between the specified bounds
+     * Throw away the interval index after events have changed.
+     * It is rebuilt the next time it is needed.
      */
-    public List<GCalEvent> getEventsForDuration(long lowerBound, long upperBound) {
-        // Consider 3 cases:
-        // 1. Date contains start of an event
-        // 2. Date contains the end of an event
-        // 3. Date is contained within a multi-day event
+    private synchronized void invalidateIntervalIndex() {
+        mIntervalIndex = null;
+    }
 
-        String selection = "(" + COLUMN_START + ">=" + lowerBound + " AND " + COLUMN_START + "<"  + upperBound + ")"
-                + " OR " + "(" + COLUMN_END   + ">"  + lowerBound + " AND " + COLUMN_END   + "<=" + upperBound + ")"
-                + " OR " + "(" + COLUMN_START + "<"  + lowerBound + " AND " + COLUMN_END   + ">"  + upperBound + ")";
+    private synchronized EventIntervalIndex getIntervalIndex() {
+        if (mIntervalIndex == null) {
+            long start = System.currentTimeMillis();
+            // Series are expanded separately, see getSeriesInstances()
+            String[] columns = new String[] { _ID, COLUMN_START, COLUMN_END };
+            String selection = COLUMN_RECURRENCE + " IS NULL";
+            Cursor c = query(NAME, columns, selection, null, null, null, COLUMN_START + " ASC");
+            mIntervalIndex = EventIntervalIndex.fromCursor(c);
+            c.close();
+            Logger.log("Built interval index of " + mIntervalIndex.size() + " events in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+        return mIntervalIndex;
+    }
 
-        String orderBy = COLUMN_START + " ASC";
+    /**
+     * Add the event of a row with the columns in STORE_COLUMNS order to a store
+     */
+    private static void addToStore(EventStore store, Cursor c) {
+        store.add(c.getLong(0), c.getString(1), c.getString(2), c.getLong(3), c.getLong(4));
+    }
 
-        Cursor c = getReadableDatabase().query(NAME_FTS, null, selection, null, null, null, orderBy);
-        List<GCalEvent> events = new ArrayList<GCalEvent>();
-        c.moveToPosition(-1);
-        while (c.moveToNext()) {
-            events.add(fromCursor(c));
+    /**
+     * Get the description of an event, which EventStore leaves out
+     *
+     * @param rowId
+     *          EventStore.getRowId(int) of the event
+     * @return  description, or null if there is none
+     */
+    public String getDescription(long rowId) {
+        SQLiteStatement statement = getStatement("SELECT " + COLUMN_DESCRIPTION + " FROM " + NAME + " WHERE " + _ID + "=?");
+        synchronized (statement) {
+            long start = SystemClock.elapsedRealtime();
+            statement.bindLong(1, rowId);
+            try {
+                return statement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                return null;        // Event was deleted since it was loaded
+            } finally {
+                recordQuery(start);
+            }
+        }
+    }
+
+    /**
+     * Retrieve the events between the specified bounds, sorted by start time
+     */
+    public EventStore getEventsForDuration(long lowerBound, long upperBound) {
+
+        // SQLite can't use an index for "overlaps this window",
+        // so find the matching ids with the interval index and
+        // only look those rows up by primary key
+        long[] ids = getIntervalIndex().query(lowerBound, upperBound);
+        EventStore events = new EventStore(ids.length);
+
+        // Ids are sorted by start time, so query them in order
+        // a chunk at a time to keep the SQL statement short
+        for (int from = 0; from < ids.length; from += ID_QUERY_CHUNK_SIZE) {
+            int to = Math.min(from + ID_QUERY_CHUNK_SIZE, ids.length);
+            StringBuilder selection = new StringBuilder(_ID).append(" IN (");
+            for (int i = from; i < to; i++) {
+                if (i > from) selection.append(',');
+                selection.append(ids[i]);
+            }
+            selection.append(')');
+
+            String orderBy = COLUMN_START + " ASC";
+
+            Cursor c = query(NAME, STORE_COLUMNS, selection.toString(), null, null, null, orderBy);
+            c.moveToPosition(-1);
+            while (c.moveToNext()) {
+                addToStore(events, c);
+            }
+            c.close();
+        }
+
+        EventStore instances = getSeriesInstances(getDatabase(), lowerBound, upperBound);
+        if (instances.size() > 0) {
+            events = EventStore.merge(events, instances.sortedByStart());
         }
-        c.close();
         return events;
     }
 
     /**
-     * Retrieve a list of events for a specified month
+     * Retrieve the events for a specified month
      */
-    public List<GCalEvent> getEventsForMonth(int year, int month) {
+    public EventStore getEventsForMonth(int year, int month) {
         Calendar cal = Calendar.getInstance();
         cal.set(year, month, 1);
         cal.set(Calendar.HOUR_OF_DAY, 0);
@@ -230,9 +950,9 @@ public class CalendarDatabase extends SQLiteOpenHelper {
     }
 
     /**
-     * Retrieve a list of events for a specified day
+     * Retrieve the events for a specified day
      */
-    public List<GCalEvent> getEventsForDay(Date date) {
+    public EventStore getEventsForDay(Date date) {
         Calendar cal = Calendar.getInstance();
         cal.setTime(date);
         cal.set(Calendar.HOUR_OF_DAY, 0);
@@ -247,13 +967,83 @@ public class CalendarDatabase extends SQLiteOpenHelper {
 
     }
 
+    /**
+     * Get the start of the earliest event and the end of the latest event.
+     * Series that go on for longer are cut off at the day index horizon.
+     *
+     * @return  long[] { earliest start, latest end },
+     *          or null if there are no events
+     */
+    public long[] getEventBounds() {
+        String sql = "SELECT MIN(" + COLUMN_START + "), MAX(" + COLUMN_END + "), MAX(" + COLUMN_SERIES_END + ") FROM " + NAME;
+        Cursor c = rawQuery(sql, null);
+        long[] bounds = null;
+        if (c.moveToFirst() && !c.isNull(0)) {
+            bounds = new long[] { c.getLong(0), getIndexedEnd(c.getLong(1), c.getLong(2)) };
+        }
+        c.close();
+        return bounds;
+    }
+
+    private File getSnapshotFile() {
+        return new File(mContext.getFilesDir(), SNAPSHOT_NAME);
+    }
+
+    private void deleteSnapshot() {
+        getSnapshotFile().delete();
+    }
+
+    /**
+     * Write every event and the day index to a snapshot file,
+     * which openSnapshot() can read without going through SQLite.
+     * Call after a sync, from the thread that made it.
+     *
+     * @return  true if the snapshot was written
+     */
+    public boolean writeSnapshot() {
+        long start = System.currentTimeMillis();
+        long[] bounds = getEventBounds();
+        EventStore events = bounds != null ? getEventsForDuration(bounds[0], bounds[1]) : new EventStore();
+        boolean written = EventSnapshot.write(getSnapshotFile(), VERSION, events, getDayIndex());
+        Logger.log("Wrote snapshot of " + events.size() + " events in " + (System.currentTimeMillis() - start) + "ms");
+        return written;
+    }
+
+    /**
+     * Whether a snapshot has been written since the events last changed
+     */
+    public boolean hasSnapshot() {
+        return getSnapshotFile().exists();
+    }
+
+    /**
+     * Open the snapshot written by the last writeSnapshot()
+     *
+     * @return  the snapshot, or null if there is none or it isn't valid,
+     *          in which case events have to be read from the database
+     */
+    EventSnapshot openSnapshot() {
+        return EventSnapshot.open(getSnapshotFile(), VERSION);
+    }
+
+    /**
+     * Whether there are no events at all. Unlike getCount(),
+     * doesn't need to count every row.
+     */
+    public boolean isEmpty() {
+        SQLiteStatement statement = getStatement("SELECT NOT EXISTS (SELECT 1 FROM " + NAME + ")");
+        synchronized (statement) {
+            long start = SystemClock.elapsedRealtime();
+            boolean empty = statement.simpleQueryForLong() != 0;
+            recordQuery(start);
+            return empty;
+        }
+    }
+
     /**
      * Get a count of how many events are in the database
      */
     public int getCount() {
-        Cursor c = getReadableDatabase().query(NAME_FTS, null, null, null, null, null, null);
-        int count = c.getCount();
-        c.close();
-        return count;
+        return (int) DatabaseUtils.queryNumEntries(getDatabase(), NAME);
     }
 }
@@ -1,6 +1,6 @@
 package com.moscrop.official.calendar;
 
-import java.util.List;
+import com.moscrop.official.util.JsonUtil;
 
 /**
  * Created by ivon on 12/25/14.
@@ -8,10 +8,69 @@ import java.util.List;
 public class CalendarFeed {
 
     public final String version;
-    public final List<GCalEvent> events;
+    public final int eventCount;
 
-    public CalendarFeed(String version, List<GCalEvent> events) {
+    /**
+     * Size of the response this feed was read from
+     */
+    public final long byteCount;
+
+    /**
+     * Token for the next page of results, or null if this is the last page
+     */
+    public final String nextPageToken;
+
+    /**
+     * Token to pass on the next sync to only receive events that
+     * changed since this feed. Only present on the last page.
+     */
+    public final String nextSyncToken;
+
+    /**
+     * True if Google rejected the sync token this feed was
+     * requested with, meaning a full reload is required
+     */
+    public final boolean syncTokenExpired;
+
+    /**
+     * True if Google answered 304 Not Modified, meaning nothing
+     * changed since the sync token this feed was requested with
+     */
+    public final boolean notModified;
+
+    /**
+     * ETag and Last-Modified of the response, or null if it had neither
+     */
+    public final JsonUtil.Validators validators;
+
+    public CalendarFeed(String version, int eventCount, String nextPageToken, String nextSyncToken, long byteCount,
+                        JsonUtil.Validators validators) {
         this.version = version;
-        this.events = events;
+        this.eventCount = eventCount;
+        this.byteCount = byteCount;
+        this.nextPageToken = nextPageToken;
+        this.nextSyncToken = nextSyncToken;
+        this.syncTokenExpired = false;
+        this.notModified = false;
+        this.validators = validators;
+    }
+
+    private CalendarFeed(boolean syncTokenExpired, boolean notModified) {
+        this.version = null;
+        this.eventCount = 0;
+        this.byteCount = 0;
+        this.nextPageToken = null;
+        this.nextSyncToken = null;
+        this.syncTokenExpired = syncTokenExpired;
+        this.notModified = notModified;
+        this.validators = null;
+    }
+
+    public static CalendarFeed syncTokenExpired() {
+        return new CalendarFeed(true, false);
+    }
+
+    public static CalendarFeed notModified() {
+        return new CalendarFeed(false, true);
     }
-}
\ No newline at end of file
+}
@@ -2,21 +2,29 @@ package com.moscrop.official.calendar;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.JsonReader;
+import android.util.JsonToken;
 
-import com.moscrop.official.util.ApiConfig;
 import com.moscrop.official.util.DateUtil;
 import com.moscrop.official.util.JsonUtil;
 import com.moscrop.official.util.Logger;
 import com.moscrop.official.util.Preferences;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.apache.http.HttpStatus;
 
-import java.text.SimpleDateFormat;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper class that performs Google
@@ -26,335 +34,816 @@ import java.util.List;
  */
 public class CalendarParser {
 
-    private static class CalendarInfo {
-        private final String version;
+    private static final String CALENDAR_API_URL = "https://www.googleapis.com/calendar/v3/calendars/";
 
-        private CalendarInfo(String version) {
-            this.version = version;
-        }
+    // Pointed at a local stand-in server by CalendarParserTest
+    private static String sCalendarApiUrl = CALENDAR_API_URL;
+
+    /**
+     * @param url
+     *          Base URL of the calendars API, or null for Google's
+     */
+    static void setCalendarApiUrl(String url) {
+        sCalendarApiUrl = url != null ? url : CALENDAR_API_URL;
+    }
+
+    // Calendars are downloaded and parsed at most this many at a time
+    private static final int MAX_PARALLEL_FETCHES = 3;
+
+    // Changes handed to the writer thread at a time, and how many batches
+    // of a calendar can wait for it before its fetch thread has to wait too
+    private static final int WRITE_BATCH_SIZE = 250;
+    private static final int WRITE_QUEUE_SIZE = 4;
+
+    // How a calendar's recurring events are stored, saved as GCAL_EVENT_MODE.
+    // Sync tokens of one mode can't be used to fetch the other.
+    private static final String MODE_INSTANCES = "instances";           // Google expands every series
+    private static final String MODE_SERIES = "series";                 // Series are expanded on the device
+    private static final String MODE_INSTANCES_FALLBACK = "instances_fallback"; // Series had rules Recurrence can't expand
+
+    /**
+     * Update info is stored separately for each calendar, under
+     * the Preferences.App.Keys key followed by the calendar id
+     */
+    private static String getCalendarKey(String key, String calendarId) {
+        return key + ":" + calendarId;
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(Preferences.App.NAME, Context.MODE_MULTI_PROCESS);
     }
 
     /**
-     * Get the version number (and possibly other
-     * information in the future) of the online calendar
+     * Get the sync token returned by the last completed sync of a calendar
      *
-     * @param url
-     *          URL of the Google Calendar JSON feed
-     * @return  CalendarInfo object containing the version
+     * @return  sync token, or null if the calendar has never been fully loaded
+     */
+    private static String getStoredSyncToken(Context context, String calendarId) {
+        return getPrefs(context).getString(getCalendarKey(Preferences.App.Keys.GCAL_SYNC_TOKEN, calendarId),
+                Preferences.App.Default.GCAL_SYNC_TOKEN);
+    }
+
+    private static String getStoredVersion(Context context, String calendarId) {
+        return getPrefs(context).getString(getCalendarKey(Preferences.App.Keys.GCAL_VERSION, calendarId),
+                Preferences.App.Default.GCAL_VERSION);
+    }
+
+    /**
+     * @return  MODE_INSTANCES, MODE_SERIES or MODE_INSTANCES_FALLBACK
+     */
+    private static String getStoredEventMode(Context context, String calendarId) {
+        String mode = getPrefs(context).getString(getCalendarKey(Preferences.App.Keys.GCAL_EVENT_MODE, calendarId),
+                Preferences.App.Default.GCAL_EVENT_MODE);
+        return mode != null ? mode : MODE_INSTANCES;
+    }
+
+    /**
+     * Get the validators of the first page of the last completed sync,
+     * which are only good for as long as its sync token is
      *
-     * @throws JSONException
+     * @return  validators, or null if none were saved
      */
-    private static CalendarInfo getCalendarInfo(Context context, String url) throws JSONException {
-        JSONObject jsonObject = JsonUtil.getJsonObjectFromUrl(context, url);
-        if (jsonObject != null) {
-            String timestamp = getUpdatedTimeFromJsonObject(jsonObject);
-            return new CalendarInfo(timestamp);
-        } else {
+    private static JsonUtil.Validators getStoredValidators(Context context, String calendarId) {
+        SharedPreferences prefs = getPrefs(context);
+        String url = prefs.getString(getCalendarKey(Preferences.App.Keys.GCAL_VALIDATOR_URL, calendarId), null);
+        if (url == null) {
             return null;
         }
+        return new JsonUtil.Validators(url,
+                prefs.getString(getCalendarKey(Preferences.App.Keys.GCAL_ETAG, calendarId), null),
+                prefs.getString(getCalendarKey(Preferences.App.Keys.GCAL_LAST_MODIFIED, calendarId), null));
     }
 
     /**
-     * Get the version string of the calendar stored in offline database/cache
+     * Save the update info of a calendar once its changes have been
+     * committed. The validators are saved in the same edit as the sync
+     * token, so a conditional request is never answered with 304 for
+     * changes that weren't stored.
      *
-     * @return  version string of the offline calendar
+     * @param validators
+     *          Validators of the first page, or null to forget the old ones
      */
-    private static String getStoredVersion(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(Preferences.App.NAME, Context.MODE_MULTI_PROCESS);
-        return prefs.getString(Preferences.App.Keys.GCAL_VERSION, Preferences.App.Default.GCAL_VERSION);
+    private static void saveUpdateInfo(Context context, String calendarId, String gcalVersion, String syncToken,
+                                       String eventMode, JsonUtil.Validators validators) {
+        SharedPreferences.Editor prefs = getPrefs(context).edit();
+        prefs.putLong(getCalendarKey(Preferences.App.Keys.GCAL_LAST_UPDATED, calendarId), System.currentTimeMillis());
+        prefs.putString(getCalendarKey(Preferences.App.Keys.GCAL_VERSION, calendarId), gcalVersion);
+        prefs.putString(getCalendarKey(Preferences.App.Keys.GCAL_SYNC_TOKEN, calendarId), syncToken);
+        prefs.putString(getCalendarKey(Preferences.App.Keys.GCAL_EVENT_MODE, calendarId), eventMode);
+        prefs.putString(getCalendarKey(Preferences.App.Keys.GCAL_VALIDATOR_URL, calendarId),
+                validators != null ? validators.url : null);
+        prefs.putString(getCalendarKey(Preferences.App.Keys.GCAL_ETAG, calendarId),
+                validators != null ? validators.etag : null);
+        prefs.putString(getCalendarKey(Preferences.App.Keys.GCAL_LAST_MODIFIED, calendarId),
+                validators != null ? validators.lastModified : null);
+        prefs.apply();
     }
 
     /**
-     * Get the time the online calendar was last updated
-     * Extracted from JSONObject
-     *
-     * @param root
-     *          JSONObject parsed from GCal JSON feed
-     * @return  Last updated time in RFC 3339 format
-     *
-     * @throws JSONException
+     * Whether recurring events should be fetched as whole series and
+     * expanded on the device, instead of Google listing every instance
      */
-    private static String getUpdatedTimeFromJsonObject(JSONObject root) throws JSONException {
-        return root.getString("updated");
+    private static boolean shouldExpandOnDevice(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(
+                Preferences.Keys.EXPAND_RECURRENCE_ON_DEVICE, Preferences.Default.EXPAND_RECURRENCE_ON_DEVICE);
     }
 
     /**
-     * Extract list of GCalEvents from JSONObject
-     *
-     * @param root
-     *          JSONObject parsed from GCal JSON feed
-     * @return  List of GCalEvents contained in the JSONObject
-     *
-     * @throws JSONException
+     * Forget the update info of every calendar, so
+     * the next sync of each one is a full load
+     */
+    static void clearUpdateInfo(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (String key : prefs.getAll().keySet()) {
+            if (key.startsWith(Preferences.App.Keys.GCAL_SYNC_TOKEN)
+                    || key.startsWith(Preferences.App.Keys.GCAL_VERSION)
+                    || key.startsWith(Preferences.App.Keys.GCAL_LAST_UPDATED)
+                    || key.startsWith(Preferences.App.Keys.GCAL_EVENT_MODE)
+                    || key.startsWith(Preferences.App.Keys.GCAL_VALIDATOR_URL)
+                    || key.startsWith(Preferences.App.Keys.GCAL_ETAG)
+                    || key.startsWith(Preferences.App.Keys.GCAL_LAST_MODIFIED)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Receives events one at a time as they
+     * are pulled off the Google Calendar feed
      */
-    private static List<GCalEvent> getEventsListFromJsonObject(JSONObject root) throws JSONException {
-        JSONArray items = root.getJSONArray("items");
-        JSONObject itemObjects[] = JsonUtil.extractJsonArray(items);
-        if (itemObjects == null) {
+    public interface EventHandler {
+        void onEvent(GCalEvent event);
+
+        /**
+         * Called for events that have been deleted since the
+         * sync token the feed was requested with
+         */
+        void onEventCancelled(String id);
+
+        /**
+         * Called for single instances of a series that were deleted,
+         * only when the feed lists series rather than single events
+         */
+        void onInstanceCancelled(String recurringEventId, long originalStartTime);
+    }
+
+    /**
+     * Read the next value as a string, treating JSON null as null
+     */
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
             return null;
         }
+        return reader.nextString();
+    }
+
+    /**
+     * Time read from a GCal "start", "end" or "originalStartTime" object
+     */
+    private static class EventTime {
+        long millis = -1;       // -1 if neither date nor dateTime is present
+        String timeZone;        // Only given for the start of a series
+    }
 
-        List<GCalEvent> events = new ArrayList<GCalEvent>();
-        for (JSONObject entryObject : itemObjects) {
-            GCalEvent event = jsonItemToEvent(entryObject);
-            if(event != null) {
-                events.add(event);
+    /**
+     * Read a GCal "start", "end" or "originalStartTime" object.
+     * Timed events have a "dateTime" field while all day events
+     * only have a "date" field.
+     */
+    private static EventTime readEventTime(JsonReader reader) throws IOException {
+
+        EventTime time = new EventTime();
+        long dateTime = -1;
+        long date = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("dateTime")) {
+                long millis = DateUtil.parseRfc3339(reader.nextString());
+                if (millis != DateUtil.INVALID_TIME) dateTime = millis;
+            } else if (name.equals("date")) {
+                long millis = DateUtil.parseRfc3339(reader.nextString());
+                if (millis != DateUtil.INVALID_TIME) date = millis;
+            } else if (name.equals("timeZone")) {
+                time.timeZone = nextStringOrNull(reader);
+            } else {
+                reader.skipValue();
             }
         }
-        return events;
+        reader.endObject();
+
+        time.millis = dateTime != -1 ? dateTime : date;
+        return time;
+    }
+
+    /**
+     * Read the "recurrence" array of a series as newline separated lines
+     */
+    private static String readRecurrence(JsonReader reader) throws IOException {
+        StringBuilder recurrence = new StringBuilder();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (recurrence.length() > 0) recurrence.append('\n');
+            recurrence.append(reader.nextString());
+        }
+        reader.endArray();
+        return recurrence.toString();
     }
 
     /**
-     * Convert individual JSONObject to GCalEvent
+     * Convert the event object at the reader's current position to GCalEvent
+     * and pass it to the handler. Fields the app doesn't use are skipped
+     * without being parsed.
      *
-     * @param itemObject
-     *          JSONObject to extract information from
-     * @return  GCalEvent
+     * @param reader
+     *          JsonReader positioned at the beginning of an item object
+     * @param calendarId
+     *          Calendar the feed belongs to
+     * @param handler
+     *          Receives the event, or its id if the event was cancelled
      */
-    private static GCalEvent jsonItemToEvent(JSONObject itemObject) {
+    private static void readEvent(JsonReader reader, String calendarId, EventHandler handler) throws IOException {
 
+        String id = null;
+        String etag = null;
+        String status = null;
         String title = null;
         String description = null;
         String location = null;
-        long startTime = -1;
+        EventTime start = null;
         long endTime = -1;
+        String recurrence = null;
+        String recurringEventId = null;
+        long originalStartTime = -1;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("id")) {
+                id = nextStringOrNull(reader);
+            } else if (name.equals("etag")) {
+                etag = nextStringOrNull(reader);
+            } else if (name.equals("status")) {
+                status = nextStringOrNull(reader);
+            } else if (name.equals("summary")) {
+                title = nextStringOrNull(reader);
+            } else if (name.equals("description")) {
+                description = nextStringOrNull(reader);
+            } else if (name.equals("location")) {
+                location = nextStringOrNull(reader);
+            } else if (name.equals("start")) {
+                start = readEventTime(reader);
+            } else if (name.equals("end")) {
+                endTime = readEventTime(reader).millis;
+            } else if (name.equals("recurrence")) {
+                recurrence = readRecurrence(reader);
+            } else if (name.equals("recurringEventId")) {
+                recurringEventId = nextStringOrNull(reader);
+            } else if (name.equals("originalStartTime")) {
+                originalStartTime = readEventTime(reader).millis;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
 
-        try {
-            title = itemObject.getString("summary");
-        } catch (JSONException e) {
-            //e.printStackTrace();
+        if ("cancelled".equals(status)) {
+            handler.onEventCancelled(id);
+            if (recurringEventId != null && originalStartTime != -1) {
+                handler.onInstanceCancelled(recurringEventId, originalStartTime);
+            }
+        } else {
+            long startTime = start != null ? start.millis : -1;
+            String timeZone = start != null ? start.timeZone : null;
+            handler.onEvent(new GCalEvent(calendarId, id, etag, title, description, location, startTime, endTime,
+                    recurrence, timeZone, recurringEventId, originalStartTime));
         }
+    }
 
-        try {
-            description = itemObject.getString("description");
-        } catch (JSONException e) {
-            //e.printStackTrace();
+    /**
+     * Read one page of a GCal JSON feed, handing each event
+     * to the handler as soon as it has been parsed
+     *
+     * @param reader
+     *          JsonReader positioned at the beginning of the feed
+     * @return  version and paging info of the page, without a byte
+     *          count or validators, or null if the version is missing
+     */
+    static CalendarFeed readCalendarFeed(JsonReader reader, String calendarId, EventHandler handler)
+            throws IOException {
+
+        String version = null;
+        String nextPageToken = null;
+        String nextSyncToken = null;
+        int count = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("updated")) {
+                version = reader.nextString();
+            } else if (name.equals("nextPageToken")) {
+                nextPageToken = nextStringOrNull(reader);
+            } else if (name.equals("nextSyncToken")) {
+                nextSyncToken = nextStringOrNull(reader);
+            } else if (name.equals("items")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readEvent(reader, calendarId, handler);
+                    count++;
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
         }
+        reader.endObject();
 
-        try {
-            location = itemObject.getString("location");
-        } catch (JSONException e) {
-            //e.printStackTrace();
+        if (version == null) {
+            Logger.warn("Calendar feed is missing version info");
+            return null;
         }
+        return new CalendarFeed(version, count, nextPageToken, nextSyncToken, 0, null);
+    }
 
-        try {
-            String s = itemObject.getJSONObject("start").getString("dateTime");
-            startTime = DateUtil.parseRCF339Date(s, false).getTime();
-        } catch (JSONException e) {
-            //e.printStackTrace();
+    /**
+     * Stream one page of a GCal JSON feed from the given URL. Events are
+     * handed to the handler as soon as they are parsed, so the feed is
+     * never held in memory as a whole.
+     *
+     * @param url
+     *          URL of the Google Calendar JSON feed
+     * @param calendarId
+     *          Calendar the feed belongs to
+     * @param validators
+     *          Validators to skip the download if it would be the same as the
+     *          response they came from, or null. See
+     *          JsonUtil.readJsonStreamFromUrl(Context, String, JsonUtil.Validators, JsonStreamHandler)
+     * @param handler
+     *          Receives each event in feed order
+     * @return  CalendarFeed object containing version and paging info,
+     *          or null if loading failed
+     */
+    private static CalendarFeed streamCalendarFeed(Context context, String url, final String calendarId,
+                                                   JsonUtil.Validators validators, final EventHandler handler) {
+        return JsonUtil.readJsonStreamFromUrl(context, url, validators, new JsonUtil.JsonStreamHandler<CalendarFeed>() {
+            @Override
+            public CalendarFeed handle(JsonReader reader) throws IOException {
+                CalendarFeed page = readCalendarFeed(reader, calendarId, handler);
+                if (page == null) {
+                    return null;
+                }
+                return new CalendarFeed(page.version, page.eventCount, page.nextPageToken, page.nextSyncToken,
+                        getBytesRead(), getValidators());
+            }
+
+            @Override
+            public CalendarFeed onHttpError(int statusCode) {
+                // Google responds with 410 Gone when a sync token
+                // has expired and the client has to start over
+                if (statusCode == HttpStatus.SC_GONE) {
+                    return CalendarFeed.syncTokenExpired();
+                }
+                return null;
+            }
+
+            @Override
+            public CalendarFeed onNotModified() {
+                return CalendarFeed.notModified();
+            }
+        });
+    }
+
+    /**
+     * Part of one calendar's changes, handed to the writer thread in one go
+     */
+    private static class Batch {
+        final List<GCalEvent> events = new ArrayList<GCalEvent>();
+        final List<String> cancelledIds = new ArrayList<String>();
+        final List<String> cancelledInstanceSeries = new ArrayList<String>();
+        final List<Long> cancelledInstanceStarts = new ArrayList<Long>();
+        boolean last = false;   // Nothing more follows, commit once written
+
+        int size() {
+            return events.size() + cancelledIds.size() + cancelledInstanceSeries.size();
         }
-        if (startTime == -1) {
-            try {
-                String s = itemObject.getJSONObject("start").getString("date");
-                startTime = DateUtil.parseRCF339Date(s, true).getTime();
-            } catch (JSONException e) {
-                //e.printStackTrace();
+    }
+
+    // Tells the writer to roll back what it has written of a calendar
+    private static final Batch ABORT = new Batch();
+
+    /**
+     * Changes to one calendar. Events are collected into batches as the
+     * feed is parsed, and each full batch is put on a bounded queue that
+     * the calendar's UpdateWriter takes them from, so only a few batches
+     * of a calendar are ever held in memory. If the writer falls behind,
+     * the fetch thread waits for it.
+     */
+    private static class PendingUpdate implements EventHandler {
+        final String calendarId;
+        final boolean replaceAll;
+        final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(WRITE_QUEUE_SIZE);
+        Future<Boolean> written;            // Result of the calendar's UpdateWriter
+        Batch batch = new Batch();
+        CalendarFeed feed;
+        JsonUtil.Validators validators;     // Of the first page, saved with the sync token
+        long byteCount = 0;
+        int eventCount = 0;
+        boolean unsupportedRecurrence = false;
+
+        PendingUpdate(String calendarId, boolean replaceAll) {
+            this.calendarId = calendarId;
+            this.replaceAll = replaceAll;
+        }
+
+        @Override
+        public void onEvent(GCalEvent event) {
+            if (event.isRecurring() && Recurrence.forEvent(event) == null) {
+                unsupportedRecurrence = true;
+            }
+            // The update will be rolled back and loaded again as single events
+            if (unsupportedRecurrence) {
+                return;
             }
+            batch.events.add(event);
+            eventCount++;
+            sendIfFull();
         }
 
-        try {
-            String s = itemObject.getJSONObject("end").getString("dateTime");
-            endTime = DateUtil.parseRCF339Date(s, false).getTime();
-        } catch (JSONException e) {
-            //e.printStackTrace();
+        @Override
+        public void onEventCancelled(String eventId) {
+            // Nothing to delete when everything is being replaced
+            if (!replaceAll) {
+                batch.cancelledIds.add(eventId);
+                sendIfFull();
+            }
+        }
+
+        @Override
+        public void onInstanceCancelled(String recurringEventId, long originalStartTime) {
+            // Still needed when replacing everything, the series doesn't say which were cancelled
+            batch.cancelledInstanceSeries.add(recurringEventId);
+            batch.cancelledInstanceStarts.add(originalStartTime);
+            sendIfFull();
         }
-        if (endTime == -1) {
+
+        private void sendIfFull() {
+            if (batch.size() >= WRITE_BATCH_SIZE) {
+                send(false);
+            }
+        }
+
+        /**
+         * Put the current batch on the queue, waiting while it is full
+         *
+         * @param last
+         *          true if this is the end of the update
+         */
+        void send(boolean last) {
+            batch.last = last;
             try {
-                String s = itemObject.getJSONObject("end").getString("date");
-                endTime = DateUtil.parseRCF339Date(s, true).getTime();
-            } catch (JSONException e) {
-                //e.printStackTrace();
+                while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+                    if (written.isDone()) {
+                        throw new IllegalStateException("Writer stopped taking events of " + calendarId);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while writing events of " + calendarId, e);
             }
+            batch = new Batch();
+        }
+
+        /**
+         * Have the writer roll back everything sent so far. Never
+         * blocks, and does nothing once the writer has finished.
+         */
+        void abort() {
+            queue.clear();
+            queue.offer(ABORT);
         }
 
-        return new GCalEvent(title, description, location, startTime, endTime);
+        /**
+         * Send the rest of the update and wait for the writer to commit it
+         *
+         * @return  true if any stored events were changed
+         */
+        boolean finish() throws InterruptedException, ExecutionException {
+            send(true);
+            return written.get();
+        }
     }
 
     /**
-     * Retrieve a CalendarFeed object from a given GCal JSON feed URL.
-     * Will contain a JSONObject of the JSON feed along with version info
-     *
-     * @param url
-     *          URL of the Google Calendar JSON feed
-     * @return  CalendarFeed object containing the feed in JSONObject form and version info
-     *
-     * @throws JSONException
+     * Writes one calendar's batches as they arrive, all in a single
+     * transaction that stays open until the last one. Runs on the
+     * writer thread, which only writes one calendar at a time.
      */
-    private static CalendarFeed getCalendarFeed(Context context, String url) throws JSONException {
-        JSONObject jsonObject = JsonUtil.getJsonObjectFromUrl(context, url);
-        if (jsonObject != null) {
-            String timestamp = getUpdatedTimeFromJsonObject(jsonObject);
-            List<GCalEvent> events = getEventsListFromJsonObject(jsonObject);
-            return new CalendarFeed(timestamp, events);
-        } else {
-            return null;
+    private static class UpdateWriter implements Callable<Boolean> {
+        private final Context mContext;
+        private final PendingUpdate mUpdate;
+
+        UpdateWriter(Context context, PendingUpdate update) {
+            mContext = context;
+            mUpdate = update;
         }
-    }
 
-    private static String getCalendarUrlFromId(String id, String timeMin, boolean headerInfoOnly) {
-        if (!headerInfoOnly) {
-            if (timeMin == null) {
-                return "https://www.googleapis.com/calendar/v3/calendars/" + id
-                        + "/events?maxResults=1000&orderBy=startTime&singleEvents=true&key="
-                        + ApiConfig.Google.API_KEY;
-            } else {
-                return "https://www.googleapis.com/calendar/v3/calendars/" + id
-                        + "/events?maxResults=1000&orderBy=startTime&singleEvents=true&timeMin="
-                        + timeMin + "&key=" + ApiConfig.Google.API_KEY;
+        /**
+         * @return  true if the update changed anything and was committed
+         */
+        @Override
+        public Boolean call() throws InterruptedException {
+            CalendarDatabase db = CalendarDatabase.getInstance(mContext);
+            boolean begun = false;
+            boolean successful = false;
+            try {
+                while (true) {
+                    Batch batch = mUpdate.queue.take();
+                    if (batch == ABORT) {
+                        break;
+                    }
+
+                    // An update without changes leaves the database and its snapshot alone
+                    if (!begun && (batch.size() > 0 || (batch.last && mUpdate.replaceAll))) {
+                        db.beginUpdate(mUpdate.calendarId, mUpdate.replaceAll);
+                        begun = true;
+                    }
+                    if (begun) {
+                        writeBatch(db, mUpdate, batch);
+                    }
+                    if (batch.last) {
+                        successful = true;
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                Logger.error("CalendarParser.UpdateWriter.call()", e);
+                throw e;
+            } finally {
+                if (begun) {
+                    db.endUpdate(successful);
+                }
             }
-        } else {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-            String now = sdf.format(new Date(System.currentTimeMillis()));
-            return "https://www.googleapis.com/calendar/v3/calendars/" + id
-                    + "/events?maxResults=1&timeMax=" + now + "&timeMax=" + now + "&key="
-                    + ApiConfig.Google.API_KEY;
+            return begun && successful;
         }
     }
 
-    private static void saveUpdateInfo(Context context, String gcalVersion) {
-        SharedPreferences.Editor prefs = context.getSharedPreferences(Preferences.App.NAME, Context.MODE_MULTI_PROCESS).edit();
-        prefs.putLong(Preferences.App.Keys.GCAL_LAST_UPDATED, System.currentTimeMillis());
-        prefs.putString(Preferences.App.Keys.GCAL_VERSION, gcalVersion);
-        prefs.apply();
+    /**
+     * Write one batch of a calendar's changes into the update in progress
+     */
+    private static void writeBatch(CalendarDatabase db, PendingUpdate update, Batch batch) {
+        for (GCalEvent event : batch.events) {
+            if (update.replaceAll) {
+                db.insertEvent(event);
+            } else {
+                db.upsertEvent(event);
+            }
+        }
+        for (String eventId : batch.cancelledIds) {
+            db.deleteEvent(update.calendarId, eventId);
+        }
+        for (int i = 0; i < batch.cancelledInstanceSeries.size(); i++) {
+            db.addCancelledInstance(update.calendarId, batch.cancelledInstanceSeries.get(i),
+                    batch.cancelledInstanceStarts.get(i));
+        }
     }
 
     /**
-     * Download, parse, and store data from a Google Calendar feed. This method
-     * will load all data from the whole calendar. Unlike process(String, long, String),
-     * this method does not check for Gcal version and will disregard any previously
-     * saved data. This method will delete all previously saved data and replace it
-     * with freshly downloaded data. Because this takes a long time
-     * and is often unnecessary, it is only recommended to use this method
-     * when loading for the first time. Afterwards it is recommeneded to keep
-     * track of updates and use process(String, long, String).
+     * Download and parse every page of a calendar's feed, streaming the
+     * events to a new UpdateWriter on the writer thread as they are read.
+     * Unless the update is returned ready to finish, the writer is told
+     * to roll back before this returns.
      *
      * @param id
-     *      ID of the Google Calendar
+     *          ID of the Google Calendar
+     * @param syncToken
+     *          Sync token from the last sync to only receive changed events,
+     *          or null to load the whole calendar
+     * @param series
+     *          true to list recurring events as whole series
+     * @return  the calendar's changes, whose feed is the last page read.
+     *          Call finish() on it to commit them, unless its sync token
+     *          expired or it has unsupported recurrences, in which case
+     *          it has already been rolled back. null if loading failed.
      */
-    public static void parseAndSaveAll(Context context, String id) {
-
-        Logger.log("Processing all");
+    private static PendingUpdate fetchCalendar(Context context, String id, String syncToken, boolean series,
+                                               ExecutorService writer) {
 
-        // Get the list of events from the URL
-        CalendarFeed feed = null;
+        PendingUpdate update = new PendingUpdate(id, syncToken == null);
+        update.written = writer.submit(new UpdateWriter(context, update));
+        boolean complete = false;
         try {
-            String url = getCalendarUrlFromId(id, null, false);
-            feed = getCalendarFeed(context, url);
-        } catch (JSONException e) {
-            Logger.error("CalendarParser.parseAndSaveAll()", e);
-        }
-
-        if (feed != null) {
-            saveUpdateInfo(context, feed.version);
-            CalendarDatabase db = CalendarDatabase.getInstance(context);
-            db.deleteAll();
-            db.saveEventsToDatabase(feed.events);
-            db.close();
+            String pageToken = null;
+            do {
+                // Only the first page of an update is conditional. A full load
+                // can't be, the database may have been cleared since the last one.
+                String url = getCalendarUrlFromId(id, syncToken, pageToken, series);
+                boolean firstPage = pageToken == null;
+                JsonUtil.Validators validators = syncToken != null && firstPage ? getStoredValidators(context, id) : null;
+                update.feed = streamCalendarFeed(context, url, id, validators, update);
+                if (update.feed == null) {
+                    return null;
+                }
+                update.byteCount += update.feed.byteCount;
+                if (update.feed.syncTokenExpired) {
+                    return update;
+                }
+                if (update.unsupportedRecurrence) {
+                    // No point reading the rest, it is all loaded again
+                    return update;
+                }
+                if (update.feed.notModified) {
+                    // Nothing changed, so the stored sync token and validators are still good
+                    update.feed = new CalendarFeed(getStoredVersion(context, id), 0, null, syncToken, 0, null);
+                    update.validators = validators;
+                    complete = true;
+                    return update;
+                }
+                if (firstPage && syncToken != null) {
+                    update.validators = update.feed.validators;
+                }
+                pageToken = update.feed.nextPageToken;
+            } while (pageToken != null);
+
+            // The sync token only comes with the last page
+            complete = update.feed.nextSyncToken != null;
+            return complete ? update : null;
+        } finally {
+            if (!complete) {
+                update.abort();
+            }
         }
     }
 
     /**
-     * Selectively download, parse, and store data from a Google Calendar feed
+     * Download one calendar, streaming its changes to the writer thread,
+     * and wait for them to be committed before saving its update info.
+     * Runs on one of the fetch threads.
      *
-     * @param id
-     *      ID of the Google Calendar
-     * @param timeMin
-     *      Matches timeMin query param of Google Calendar API.
-     *      Only process calendar events with start dates after this param.
-     *      Given in milliseconds.
-     * @param lastGcalVersion
-     *      "Updated" string from the last processed Google Calendar feed. Used to version
-     *      Google Calendar feed and determine if it is necessary to go through with processing.
-     *      After all, if it's the same version, no need to do all that work again!
-     *      Usually of the format "2014-09-09T12:21:08.000Z"
+     * @param fullLoad
+     *          true to ignore the stored sync token and replace
+     *          everything stored for the calendar
+     * @param bytesDownloaded
+     *          Size of the responses read is added to this
+     * @return  true if any events of this calendar were changed
      */
-    public static void parseAndSave(Context context, String id, long timeMin, String lastGcalVersion) {
+    private static boolean syncCalendar(final Context context, String id, boolean fullLoad, ExecutorService writer,
+                                        AtomicLong bytesDownloaded) throws InterruptedException, ExecutionException {
+
+        long start = System.currentTimeMillis();
+
+        // A calendar that fell back to single events stays that way
+        // until its next full load, when series are tried again
+        boolean expandOnDevice = shouldExpandOnDevice(context);
+        String storedMode = getStoredEventMode(context, id);
+        boolean series = expandOnDevice && (fullLoad || !storedMode.equals(MODE_INSTANCES_FALLBACK));
+        String mode = series ? MODE_SERIES : expandOnDevice ? MODE_INSTANCES_FALLBACK : MODE_INSTANCES;
+        if (series != storedMode.equals(MODE_SERIES)) {
+            fullLoad = true;
+        }
 
-        Logger.log("Processing selectively");
+        String syncToken = fullLoad ? null : getStoredSyncToken(context, id);
+        PendingUpdate update = fetchCalendar(context, id, syncToken, series, writer);
+        if (update != null && update.feed.syncTokenExpired) {
+            Logger.log("Sync token expired for " + id + ", reloading everything");
+            update = fetchCalendar(context, id, null, series, writer);
+        }
+        if (update != null && update.unsupportedRecurrence) {
+            Logger.log("Unsupported recurrence in " + id + ", loading single events instead");
+            long byteCount = update.byteCount;
+            update = fetchCalendar(context, id, null, false, writer);
+            mode = MODE_INSTANCES_FALLBACK;
+            if (update != null) update.byteCount += byteCount;
+        }
+        if (update == null) {
+            Logger.warn("Failed to load calendar " + id);
+            return false;
+        }
+        bytesDownloaded.addAndGet(update.byteCount);
 
-        // Determine if a full load is needed
-        CalendarInfo info = null;
+        boolean changed;
         try {
-            String url = getCalendarUrlFromId(id, null, true);
-            Logger.log("Loading info from: " + url);
-            info = getCalendarInfo(context, url);
-        } catch (JSONException e) {
-            //Logger.error("RSSParser.parseAndSave() info", e);
+            changed = update.finish();
+        } catch (RuntimeException e) {
+            update.abort();
+            throw e;
         }
 
-        // Used for debugging loading-redundancy
-        if (info != null) {
-            //Logger.log("Downloaded version: " + info.version);
-            //Logger.log("Stored version:     " + getStoredVersion(context));
-        } else {
-            //Logger.log("Info is null!!!");
+        saveUpdateInfo(context, id, update.feed.version, update.feed.nextSyncToken, mode, update.validators);
+        Logger.log((update.replaceAll ? "Loaded " : "Updated ") + update.eventCount + " events of "
+                + id + " (" + update.byteCount + " bytes) in " + (System.currentTimeMillis() - start) + "ms");
+        return changed;
+    }
+
+    /**
+     * Sync several calendars at once. Feeds are downloaded and parsed
+     * on a small pool of threads, and every database write goes through
+     * a single writer thread. Each calendar is committed and tracked on
+     * its own, so a failing feed doesn't hold back the others. The writer
+     * takes calendars one at a time, so while it waits on a slow feed the
+     * others are parsed ahead until their queues are full.
+     *
+     * @return  true if any stored events changed
+     */
+    private static boolean syncCalendars(final Context context, String[] ids, final boolean fullLoad) {
+
+        if (ids.length == 0) {
+            return false;
         }
 
-        // Only pull update from internet if there is a new version available
-        if (info != null && !info.version.equals(getStoredVersion(context))) {
+        ExecutorService fetchers = Executors.newFixedThreadPool(Math.min(ids.length, MAX_PARALLEL_FETCHES));
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        final AtomicLong bytesDownloaded = new AtomicLong();
 
-            CalendarFeed feed = null;
-            try {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-                String timeMinStr = sdf.format(new Date(timeMin));
-                String url = getCalendarUrlFromId(id, /*timeMinStr*/null, false);   // Have it reload the whole calendar for now
-                                                                                    // Add back partial loading once I figure out
-                                                                                    // How to selectively delete on an FTS table
-                feed = getCalendarFeed(context, url);
-            } catch (JSONException e) {
-                Logger.error("CalendarParser.process()", e);
-            }
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(ids.length);
+        for (final String id : ids) {
+            results.add(fetchers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return syncCalendar(context, id, fullLoad, writer, bytesDownloaded);
+                }
+            }));
+        }
 
-            if (feed != null) {
-
-                // We just updated, so update records
-                // with current time and the version we
-                // just downloaded regardless of whether
-                // updating the database was needed
-
-                saveUpdateInfo(context, feed.version);
-                CalendarDatabase db = CalendarDatabase.getInstance(context);
-
-                String newGcalVersion = feed.version;
-                if (!newGcalVersion.equals(lastGcalVersion)) {
-
-                    // There has been changes! We must update!
-                    //
-                    // The maintainer of the calendar probably
-                    // won't make changes to events that have
-                    // already past. Therefore we only need to
-                    // update events that begin after the last
-                    // update time.
-                    //
-                    // Begin by deleting those events
-
-                    /*int deleted = db.deleteAfterTime(timeMin);
-
-                    if (deleted != feed.events.size()) {
-                        Logger.warn("Processing calendar events: deleted "
-                                        + deleted + " events from database, but only inserting "
-                                        + feed.events.size() + " new events."
-                        );
-                    }*/
-                    // TODO Instead of deleting only the parts of the table
-                    // deemed necessary, we will delete everything and save
-                    // everything again. This is because I have no clue how
-                    // to do selectively delete with FTS tables.
-                    db.deleteAll();
-
-                    // Our list of events will already only consist
-                    // of events that begin after startMin, so no
-                    // overlapping will occur. We can save normally.
-
-                    db.saveEventsToDatabase(feed.events);
-
-                } else {
-                    Logger.log("Existing version is already up to date.");
+        boolean changed = false;
+        try {
+            for (Future<Boolean> result : results) {
+                try {
+                    changed |= result.get();
+                } catch (ExecutionException e) {
+                    Logger.error("CalendarParser.syncCalendars()", e);
                 }
-                db.close();
             }
+        } catch (InterruptedException e) {
+            Logger.error("CalendarParser.syncCalendars()", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            fetchers.shutdownNow();
+            writer.shutdown();
         }
+
+        // Bytes as read off the network, so gzipped. Tracked to see how
+        // much each sync actually costs, and roughly what the field masks
+        // saved it, since an unmasked response can't be measured as well.
+        long bytesSaved = CalendarApiRequest.estimateBytesSaved(bytesDownloaded.get());
+        getPrefs(context).edit()
+                .putLong(Preferences.App.Keys.GCAL_SYNC_LAST_BYTES, bytesDownloaded.get())
+                .putLong(Preferences.App.Keys.GCAL_SYNC_LAST_BYTES_SAVED, bytesSaved)
+                .apply();
+        Logger.log("Downloaded " + bytesDownloaded.get() + " bytes of calendar data, about "
+                + bytesSaved + " fewer than without field masks");
+        return changed;
     }
 
+    private static String getCalendarUrlFromId(String id, String syncToken, String pageToken, boolean series) {
+
+        // orderBy, timeMin and timeMax can't be combined with syncToken,
+        // and are left out of full loads too so that the last page
+        // hands back a sync token for the next update.
+        return CalendarApiRequest.events(sCalendarApiUrl, id,
+                series ? CalendarApiRequest.SERIES_LIST_FIELDS : CalendarApiRequest.EVENT_LIST_FIELDS)
+                .param("maxResults", 1000)
+                .param("singleEvents", series ? "false" : "true")
+                .param("syncToken", syncToken)
+                .param("pageToken", pageToken)
+                .build();
+    }
 
+    /**
+     * Download, parse, and store data from Google Calendar feeds. This method
+     * will load all data from the whole of each calendar. Unlike parseAndSave(Context, String...),
+     * this method does not use the stored sync tokens and will disregard any previously
+     * saved data. This method will delete all previously saved data of the calendars and
+     * replace it with freshly downloaded data. Because this takes a long time
+     * and is often unnecessary, it is only recommended to use this method
+     * when loading for the first time. Afterwards it is recommeneded to
+     * use parseAndSave(Context, String...), which only downloads changes.
+     *
+     * @param ids
+     *      IDs of the Google Calendars
+     * @return  true if any stored events changed
+     */
+    public static boolean parseAndSaveAll(Context context, String... ids) {
+        Logger.log("Processing all");
+        return syncCalendars(context, ids, true);
+    }
+
+    /**
+     * Download and apply only the events that were added, changed or
+     * cancelled since the last sync of each calendar. Calendars with no
+     * sync token stored, or whose token Google has invalidated, are
+     * loaded in full instead.
+     *
+     * @param ids
+     *      IDs of the Google Calendars
+     * @return  true if any stored events changed
+     */
+    public static boolean parseAndSave(Context context, String... ids) {
+        Logger.log("Processing selectively");
+        return syncCalendars(context, ids, false);
+    }
 }
@@ -0,0 +1,165 @@
+package com.moscrop.official.calendar;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.moscrop.official.util.Clock;
+import com.moscrop.official.util.Logger;
+import com.moscrop.official.util.NetworkStats;
+import com.moscrop.official.util.Preferences;
+import com.moscrop.official.util.Util;
+
+/**
+ * Decides when the calendar should be synced with
+ * Google Calendar, and runs the sync.
+ *
+ * Syncs happen in the background (see CalendarSyncService) so
+ * that the events screen only has to read the local database.
+ * They are cheap when the calendar hasn't changed, but still
+ * use the network, so they are spaced out more when the device
+ * is neither on Wi-Fi nor charging.
+ *
+ * Not thread safe. CalendarSyncService only runs one at a time.
+ */
+public class CalendarSync {
+
+    // Minimum time between syncs when on Wi-Fi or charging
+    static final long OPPORTUNISTIC_INTERVAL = 3 * 60 * 60 * 1000;     // 3 hours
+
+    // Minimum time between syncs otherwise
+    static final long DEFAULT_INTERVAL = 12 * 60 * 60 * 1000;          // 12 hours
+
+    // Minimum time between syncs requested by opening the events screen
+    static final long REQUESTED_INTERVAL = 15 * 60 * 1000;             // 15 minutes
+
+    private final Context mContext;
+    private final Clock mClock;
+    private final String[] mCalendarIds;
+
+    public CalendarSync(Context context) {
+        this(context, Clock.SYSTEM, CalendarFragment.CALENDAR_IDS);
+    }
+
+    CalendarSync(Context context, Clock clock, String[] calendarIds) {
+        mContext = context;
+        mClock = clock;
+        mCalendarIds = calendarIds;
+    }
+
+    private SharedPreferences getAppPrefs() {
+        return mContext.getSharedPreferences(Preferences.App.NAME, Context.MODE_MULTI_PROCESS);
+    }
+
+    /**
+     * Check whether a sync should run now
+     *
+     * @param connectionType
+     *          One of the Util.CONNECTION_TYPE constants
+     * @param charging
+     *          Whether the device is plugged in
+     * @param requested
+     *          true if the user is waiting on the sync, e.g. the events
+     *          screen was opened, rather than it being opportunistic
+     */
+    public boolean shouldSync(int connectionType, boolean charging, boolean requested) {
+
+        // Offline, don't bother reading the database
+        if (connectionType == Util.CONNECTION_TYPE_NONE) {
+            return false;
+        }
+
+        SharedPreferences defaultPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        boolean wifiOnly = defaultPrefs.getBoolean(Preferences.Keys.LOAD_ON_WIFI_ONLY, Preferences.Default.LOAD_ON_WIFI_ONLY);
+        boolean empty = CalendarDatabase.getInstance(mContext).isEmpty();
+        long lastAttempt = getAppPrefs().getLong(Preferences.App.Keys.GCAL_SYNC_LAST_ATTEMPT,
+                Preferences.App.Default.GCAL_SYNC_LAST_ATTEMPT);
+        return isDue(connectionType, charging, requested, wifiOnly, empty, lastAttempt);
+    }
+
+    /**
+     * The decision made by shouldSync(), given the settings and stored
+     * state it reads, so that it can be tested without a device
+     *
+     * @param wifiOnly
+     *          Value of the LOAD_ON_WIFI_ONLY setting
+     * @param empty
+     *          Whether the calendar database has no events
+     * @param lastAttempt
+     *          Time the last sync started, from the clock
+     */
+    boolean isDue(int connectionType, boolean charging, boolean requested,
+                  boolean wifiOnly, boolean empty, long lastAttempt) {
+
+        if (connectionType == Util.CONNECTION_TYPE_NONE) {
+            return false;
+        }
+        if (wifiOnly && connectionType != Util.CONNECTION_TYPE_WIFI) {
+            return false;
+        }
+
+        // Nothing stored yet, always worth loading
+        if (empty) {
+            return true;
+        }
+
+        long elapsed = mClock.currentTimeMillis() - lastAttempt;
+
+        // The clock was set back since the last attempt
+        if (elapsed < 0) {
+            return true;
+        }
+
+        long interval;
+        if (requested) {
+            interval = REQUESTED_INTERVAL;
+        } else if (charging || connectionType == Util.CONNECTION_TYPE_WIFI) {
+            interval = OPPORTUNISTIC_INTERVAL;
+        } else {
+            interval = DEFAULT_INTERVAL;
+        }
+        return elapsed >= interval;
+    }
+
+    /**
+     * Download whatever changed in each calendar since the last sync,
+     * or the whole calendar if there is nothing to sync against, and
+     * record when the sync ran and how long it took.
+     *
+     * @return  true if any stored events changed
+     */
+    public boolean sync() {
+
+        long start = mClock.currentTimeMillis();
+        SharedPreferences prefs = getAppPrefs();
+        prefs.edit().putLong(Preferences.App.Keys.GCAL_SYNC_LAST_ATTEMPT, start).apply();
+
+        CalendarDatabase db = CalendarDatabase.getInstance(mContext);
+        boolean changed;
+        if (db.isEmpty()) {
+
+            // Database is empty, to be safe reload everything
+            // even if there are sync tokens left over
+            changed = CalendarParser.parseAndSaveAll(mContext, mCalendarIds);
+
+        } else {
+
+            // Only download events that changed since the last sync of each
+            // calendar. Calendars without a sync token are loaded in full.
+            changed = CalendarParser.parseAndSave(mContext, mCalendarIds);
+        }
+
+        // Updates delete the snapshot, including ones that failed part way
+        if (changed || !db.hasSnapshot()) {
+            db.writeSnapshot();
+        }
+
+        long duration = mClock.currentTimeMillis() - start;
+        prefs.edit().putLong(Preferences.App.Keys.GCAL_SYNC_LAST_DURATION, duration).apply();
+
+        Logger.log("Calendar sync took " + duration + "ms, " + (changed ? "changed" : "unchanged"));
+        Logger.log(db.getStats());
+        Logger.log("Network: " + NetworkStats.getStats());
+        return changed;
+    }
+}
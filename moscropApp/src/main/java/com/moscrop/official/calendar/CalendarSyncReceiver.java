@@ -0,0 +1,21 @@
+package com.moscrop.official.calendar;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Receives the periodic sync alarm, and system events that make
+ * it a good time to sync: being plugged in or getting a connection.
+ * Alarms don't survive a reboot, so they are set up again on boot.
+ */
+public class CalendarSyncReceiver extends BroadcastReceiver {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            CalendarSyncService.schedule(context);
+        }
+        CalendarSyncService.syncOpportunistically(context);
+    }
+}
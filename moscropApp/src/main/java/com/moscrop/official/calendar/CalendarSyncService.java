@@ -0,0 +1,87 @@
+package com.moscrop.official.calendar;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+
+import com.moscrop.official.util.Util;
+
+/**
+ * Syncs the calendar in the background, one sync at a time.
+ *
+ * Started periodically by an inexact alarm, and by
+ * CalendarSyncReceiver when the device is plugged in or gets
+ * a connection. CalendarSync decides whether it is worth
+ * syncing at that moment. Sends ACTION_CALENDAR_UPDATED as a
+ * local broadcast when the stored calendar changes.
+ */
+public class CalendarSyncService extends IntentService {
+
+    public static final String ACTION_CALENDAR_UPDATED = "com.moscrop.official.calendar.CALENDAR_UPDATED";
+
+    private static final String EXTRA_REQUESTED = "requested";
+
+    public CalendarSyncService() {
+        super("CalendarSyncService");
+    }
+
+    /**
+     * Sync soon if there could be anything new, because the user
+     * is looking at the calendar. Still rate limited.
+     */
+    public static void requestSync(Context context) {
+        Intent intent = new Intent(context, CalendarSyncService.class);
+        intent.putExtra(EXTRA_REQUESTED, true);
+        context.startService(intent);
+    }
+
+    /**
+     * Sync only if it's been long enough and conditions are good
+     */
+    static void syncOpportunistically(Context context) {
+        context.startService(new Intent(context, CalendarSyncService.class));
+    }
+
+    /**
+     * Set up the periodic alarm if it isn't already. The alarm doesn't
+     * wake the device, and is inexact so it can be batched with others.
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, CalendarSyncReceiver.class);
+        if (PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        PendingIntent operation = PendingIntent.getBroadcast(context, 0, intent, 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_HOUR, operation);
+    }
+
+    private boolean isCharging() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+
+        boolean requested = intent != null && intent.getBooleanExtra(EXTRA_REQUESTED, false);
+        CalendarSync sync = new CalendarSync(this);
+
+        if (!sync.shouldSync(Util.getConnectionType(this), isCharging(), requested)) {
+            return;
+        }
+
+        if (sync.sync()) {
+            LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(ACTION_CALENDAR_UPDATED));
+        }
+    }
+}
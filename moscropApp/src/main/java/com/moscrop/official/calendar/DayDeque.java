@@ -0,0 +1,145 @@
+package com.moscrop.official.calendar;
+
+/**
+ * Days of the events list, sorted by day number.
+ *
+ * Stored in arrays with free space kept at both ends, so adding a
+ * day before the first or after the last one (which is what loading
+ * more of the calendar does) is amortized O(1), and positions stay
+ * a plain offset from the head. Day numbers are kept in their own
+ * int array so lookups binary search primitives without unboxing.
+ */
+class DayDeque {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] mDayNumbers = new int[MIN_CAPACITY];
+    private EventListAdapter.Day[] mDays = new EventListAdapter.Day[MIN_CAPACITY];
+    private int mHead = MIN_CAPACITY / 2;
+    private int mSize = 0;
+
+    int size() {
+        return mSize;
+    }
+
+    EventListAdapter.Day get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+        }
+        return mDays[mHead + position];
+    }
+
+    void clear() {
+        for (int i = mHead; i < mHead + mSize; i++) {
+            mDays[i] = null;
+        }
+        mHead = mDays.length / 2;
+        mSize = 0;
+    }
+
+    /**
+     * Find the position of the first day on or after the specified day
+     *
+     * @return  position in list, or size() if every day is before it
+     */
+    int positionOf(int dayNumber) {
+        int lo = mHead;
+        int hi = mHead + mSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mDayNumbers[mid] < dayNumber) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - mHead;
+    }
+
+    /**
+     * Get the Day for the specified day number,
+     * adding a new one in order if it doesn't exist yet
+     */
+    EventListAdapter.Day getOrCreate(int dayNumber) {
+
+        // Fast paths for either end of the list, where loading more
+        // of the calendar adds its days and then the rest of their events
+        int last = mHead + mSize - 1;
+        if (mSize == 0 || dayNumber > mDayNumbers[last]) {
+            return insert(mSize, dayNumber);
+        }
+        if (dayNumber == mDayNumbers[last]) {
+            return mDays[last];
+        }
+        if (dayNumber < mDayNumbers[mHead]) {
+            return insert(0, dayNumber);
+        }
+        if (dayNumber == mDayNumbers[mHead]) {
+            return mDays[mHead];
+        }
+
+        int position = positionOf(dayNumber);
+        if (mDayNumbers[mHead + position] == dayNumber) {
+            return mDays[mHead + position];
+        }
+        return insert(position, dayNumber);
+    }
+
+    private EventListAdapter.Day insert(int position, int dayNumber) {
+
+        if (position == 0) {
+            if (mHead == 0) {
+                grow();
+            }
+            mHead--;
+        } else if (position == mSize) {
+            if (mHead + mSize == mDays.length) {
+                grow();
+            }
+        } else {
+            // Inserting in the middle only happens for multi-day
+            // events, shift whichever side there is room on
+            if (mHead + mSize == mDays.length) {
+                if (mHead == 0) {
+                    grow();
+                } else {
+                    System.arraycopy(mDayNumbers, mHead, mDayNumbers, mHead - 1, position);
+                    System.arraycopy(mDays, mHead, mDays, mHead - 1, position);
+                    mHead--;
+                    return set(position, dayNumber);
+                }
+            }
+            int from = mHead + position;
+            System.arraycopy(mDayNumbers, from, mDayNumbers, from + 1, mSize - position);
+            System.arraycopy(mDays, from, mDays, from + 1, mSize - position);
+        }
+
+        return set(position, dayNumber);
+    }
+
+    private EventListAdapter.Day set(int position, int dayNumber) {
+        EventListAdapter.Day day = new EventListAdapter.Day(dayNumber);
+        mDayNumbers[mHead + position] = dayNumber;
+        mDays[mHead + position] = day;
+        mSize++;
+        return day;
+    }
+
+    /**
+     * Double the capacity, leaving the days centered so
+     * there is room to grow in both directions
+     */
+    private void grow() {
+        int capacity = Math.max(MIN_CAPACITY, mDays.length * 2);
+        int head = (capacity - mSize) / 2;
+
+        int[] dayNumbers = new int[capacity];
+        EventListAdapter.Day[] days = new EventListAdapter.Day[capacity];
+        System.arraycopy(mDayNumbers, mHead, dayNumbers, head, mSize);
+        System.arraycopy(mDays, mHead, days, head, mSize);
+
+        mDayNumbers = dayNumbers;
+        mDays = days;
+        mHead = head;
+    }
+}
@@ -0,0 +1,148 @@
+package com.moscrop.official.calendar;
+
+import android.database.Cursor;
+
+/**
+ * In-memory interval tree over the start and end times of every
+ * stored event, used to answer "which events overlap this window"
+ * without scanning the calendar table.
+ *
+ * Events are kept in arrays sorted by start time. The arrays are
+ * treated as an implicit balanced binary search tree where the
+ * middle of every range is its root, and each root also records
+ * the latest end time anywhere in its range. Subtrees that end
+ * before the window or start after it are skipped entirely.
+ *
+ * The index is immutable. CalendarDatabase throws it away whenever
+ * events change and builds a new one on the next lookup.
+ */
+class EventIntervalIndex {
+
+    private final long[] mIds;
+    private final long[] mStarts;
+    private final long[] mEnds;
+    private final long[] mMaxEnds;
+    private final int mSize;
+
+    /**
+     * Build the index from a cursor of (id, start, end) rows
+     * that is already sorted by start time
+     */
+    static EventIntervalIndex fromCursor(Cursor c) {
+        int size = c.getCount();
+        long[] ids = new long[size];
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+
+        int i = 0;
+        c.moveToPosition(-1);
+        while (c.moveToNext()) {
+            ids[i] = c.getLong(0);
+            starts[i] = c.getLong(1);
+            ends[i] = c.getLong(2);
+            i++;
+        }
+        return new EventIntervalIndex(ids, starts, ends);
+    }
+
+    /**
+     * Build the index from parallel arrays of events that are already
+     * sorted by start time. The arrays are kept, not copied.
+     */
+    EventIntervalIndex(long[] ids, long[] starts, long[] ends) {
+        mSize = ids.length;
+        mIds = ids;
+        mStarts = starts;
+        mEnds = ends;
+        mMaxEnds = new long[mSize];
+        buildMaxEnds(0, mSize - 1);
+    }
+
+    private long buildMaxEnds(int lo, int hi) {
+        if (lo > hi) {
+            return Long.MIN_VALUE;
+        }
+        int mid = (lo + hi) >>> 1;
+        long max = mEnds[mid];
+        max = Math.max(max, buildMaxEnds(lo, mid - 1));
+        max = Math.max(max, buildMaxEnds(mid + 1, hi));
+        mMaxEnds[mid] = max;
+        return max;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Find the ids of all events that overlap the given window
+     *
+     * @return  ids of the matching events, sorted by start time
+     */
+    long[] query(long lowerBound, long upperBound) {
+        Results results = new Results();
+        query(0, mSize - 1, lowerBound, upperBound, results);
+        return results.toArray();
+    }
+
+    private void query(int lo, int hi, long lowerBound, long upperBound, Results results) {
+        if (lo > hi) {
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+
+        // Nothing in this subtree ends late enough to reach the window
+        if (mMaxEnds[mid] < lowerBound) {
+            return;
+        }
+
+        query(lo, mid - 1, lowerBound, upperBound, results);
+
+        // Everything from here on starts after the window
+        if (mStarts[mid] > upperBound) {
+            return;
+        }
+
+        if (overlaps(mStarts[mid], mEnds[mid], lowerBound, upperBound)) {
+            results.add(mIds[mid]);
+        }
+
+        query(mid + 1, hi, lowerBound, upperBound, results);
+    }
+
+    /**
+     * Consider 3 cases:
+     * 1. Window contains start of an event
+     * 2. Window contains the end of an event
+     * 3. Window is contained within a multi-day event
+     */
+    static boolean overlaps(long start, long end, long lowerBound, long upperBound) {
+        return (start >= lowerBound && start < upperBound)
+                || (end > lowerBound && end <= upperBound)
+                || (start < lowerBound && end > upperBound);
+    }
+
+    /**
+     * Growable array of primitive ids
+     */
+    private static class Results {
+        private long[] mValues = new long[16];
+        private int mCount = 0;
+
+        void add(long value) {
+            if (mCount == mValues.length) {
+                long[] values = new long[mCount * 2];
+                System.arraycopy(mValues, 0, values, 0, mCount);
+                mValues = values;
+            }
+            mValues[mCount++] = value;
+        }
+
+        long[] toArray() {
+            long[] values = new long[mCount];
+            System.arraycopy(mValues, 0, values, 0, mCount);
+            return values;
+        }
+    }
+}
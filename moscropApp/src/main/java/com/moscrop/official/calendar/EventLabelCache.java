@@ -0,0 +1,154 @@
+package com.moscrop.official.calendar;
+
+import android.support.v4.util.LruCache;
+
+import com.moscrop.official.util.DateUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Bounded cache of the date strings shown in the events list, so
+ * that binding a row doesn't have to format any dates once its
+ * labels have been built.
+ *
+ * Labels depend on the locale, the time zone and the current year
+ * (dates in other years show the year), so the whole cache is thrown
+ * away when any of those change. That is checked at most once a
+ * minute, and whenever the locale object changes.
+ *
+ * Not thread safe. Only use from the UI thread.
+ */
+class EventLabelCache {
+
+    private static final int MAX_LABELS = 512;
+    private static final long CHECK_INTERVAL = 60 * 1000;
+
+    private static final int KIND_DURATION = 0;
+    private static final int KIND_DAY_NUMBER = 1;
+    private static final int KIND_DAY_OF_WEEK = 2;
+    private static final int KIND_MONTH_YEAR = 3;
+
+    /**
+     * Cache key. A single mutable instance is reused for
+     * lookups so that cache hits don't allocate.
+     */
+    private static class Key {
+        int kind;
+        long first;
+        long second;
+
+        Key set(int kind, long first, long second) {
+            this.kind = kind;
+            this.first = first;
+            this.second = second;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return kind == other.kind && first == other.first && second == other.second;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = kind;
+            result = 31 * result + (int) (first ^ (first >>> 32));
+            result = 31 * result + (int) (second ^ (second >>> 32));
+            return result;
+        }
+    }
+
+    private final LruCache<Key, String> mLabels = new LruCache<Key, String>(MAX_LABELS);
+    private final Key mLookupKey = new Key();
+
+    private Locale mLocale;
+    private String mTimeZoneId;
+    private int mToday;
+    private long mNextCheckMillis;
+
+    private SimpleDateFormat mDayNumberFormat;
+    private SimpleDateFormat mDayOfWeekFormat;
+    private SimpleDateFormat mMonthYearFormat;
+
+    /**
+     * Event time range, e.g. "All day" or "9:00 AM - 3:00 PM"
+     */
+    String getDuration(long startTime, long endTime) {
+        checkStillValid();
+        String label = mLabels.get(mLookupKey.set(KIND_DURATION, startTime, endTime));
+        if (label == null) {
+            label = DateUtil.formatEventDuration(startTime, endTime);
+            mLabels.put(new Key().set(KIND_DURATION, startTime, endTime), label);
+        }
+        return label;
+    }
+
+    /**
+     * Day of month shown in the day header, e.g. "07"
+     */
+    String getDayNumber(int dayNumber) {
+        return getDayLabel(KIND_DAY_NUMBER, dayNumber);
+    }
+
+    /**
+     * Subtitle shown under the day of month. Day of week normally,
+     * or month and year when showing search results.
+     */
+    String getDaySubtitle(int dayNumber, boolean showSearchResultsMode) {
+        return getDayLabel(showSearchResultsMode ? KIND_MONTH_YEAR : KIND_DAY_OF_WEEK, dayNumber);
+    }
+
+    private String getDayLabel(int kind, int dayNumber) {
+        checkStillValid();
+        String label = mLabels.get(mLookupKey.set(kind, dayNumber, 0));
+        if (label == null) {
+            Date date = new Date(DateUtil.millisFromDays(dayNumber));
+            switch (kind) {
+                case KIND_DAY_NUMBER:
+                    label = mDayNumberFormat.format(date);
+                    break;
+                case KIND_DAY_OF_WEEK:
+                    label = mDayOfWeekFormat.format(date);
+                    break;
+                default:
+                    label = mMonthYearFormat.format(date);
+                    break;
+            }
+            mLabels.put(new Key().set(kind, dayNumber, 0), label);
+        }
+        return label;
+    }
+
+    /**
+     * Drop every label if the locale, time zone or
+     * current day have changed since they were built
+     */
+    private void checkStillValid() {
+        Locale locale = Locale.getDefault();
+        long now = System.currentTimeMillis();
+        if (locale == mLocale && now < mNextCheckMillis) {
+            return;
+        }
+        mNextCheckMillis = now + CHECK_INTERVAL;
+
+        String timeZoneId = TimeZone.getDefault().getID();
+        int today = DateUtil.daysFromMillis(now);
+        if (!locale.equals(mLocale) || !timeZoneId.equals(mTimeZoneId) || today != mToday) {
+            mLabels.evictAll();
+            mLocale = locale;
+            mTimeZoneId = timeZoneId;
+            mToday = today;
+
+            // Formatters pick up the default locale
+            // and time zone when they are created
+            mDayNumberFormat = new SimpleDateFormat("dd", locale);
+            mDayOfWeekFormat = new SimpleDateFormat("EEE", locale);
+            mMonthYearFormat = new SimpleDateFormat("MMM'\n'yyyy", locale);
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.moscrop.official.calendar;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -13,11 +14,7 @@ import android.widget.TextView;
 import com.moscrop.official.R;
 import com.moscrop.official.util.DateUtil;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -27,35 +24,79 @@ public class EventListAdapter extends BaseAdapter {
 
     public static class Day {
         public final int dayNumber;
-        public final List<GCalEvent> events;
+
+        // Indices of the day's events in the adapter's EventStore
+        private int[] mEvents = new int[2];
+        private int mEventCount = 0;
 
         public Day(int dayNumber) {
             this.dayNumber = dayNumber;
-            this.events = new ArrayList<GCalEvent>();
+        }
+
+        public int getEventCount() {
+            return mEventCount;
+        }
+
+        /**
+         * @return  index of the event in the adapter's EventStore
+         */
+        public int getEvent(int position) {
+            return mEvents[position];
+        }
+
+        void addEvent(int event, boolean addToFront) {
+            if (mEventCount == mEvents.length) {
+                int[] events = new int[mEventCount * 2];
+                System.arraycopy(mEvents, 0, events, 0, mEventCount);
+                mEvents = events;
+            }
+            if (addToFront) {
+                System.arraycopy(mEvents, 0, mEvents, 1, mEventCount);
+                mEvents[0] = event;
+            } else {
+                mEvents[mEventCount] = event;
+            }
+            mEventCount++;
         }
     }
 
     private Context mContext;
-    private List<Day> mDays = new ArrayList<Day>();
-    private HashMap<Integer, Integer> mDayMap = new HashMap<>();
+    private LayoutInflater mInflater;
+
+    // Created on the UI thread, delivers descriptions loaded in the background
+    private final Handler mHandler = new Handler();
+    private final DayDeque mDays = new DayDeque();
+
+    // Every event in the list. Days refer to them by index.
+    private final EventStore mEvents = new EventStore();
 
     private boolean mShowSearchResultsMode;
 
-    public EventListAdapter(Context context, List<GCalEvent> events) {
+    // Search results in the order they were ranked, one row per
+    // event, shown instead of mDays in search results mode
+    private final List<Day> mResults = new ArrayList<Day>();
+
+    // Date strings are only formatted the first time a day or event is shown
+    private final EventLabelCache mLabels = new EventLabelCache();
+
+    // Event rows taken out of recycled days, reused before inflating new ones
+    private final List<View> mEventRowPool = new ArrayList<View>();
+
+    public EventListAdapter(Context context, EventStore events) {
         mContext = context;
+        mInflater = LayoutInflater.from(context);
         addToEnd(events);
     }
 
-    public void addToEnd(List<GCalEvent> events) {
-        for (GCalEvent event : events) {
-            add(event, false);
+    public void addToEnd(EventStore events) {
+        for (int i=0; i<events.size(); i++) {
+            add(events, i, false);
         }
     }
 
-    public void addToFront(List<GCalEvent> events) {
+    public void addToFront(EventStore events) {
         for (int i=events.size()-1; i>=0; i--) {
-            GCalEvent event = events.get(i);
-            add(event, true);
+            add(events, i, true);
         }
     }
 
@@ -67,63 +108,62 @@ public class EventListAdapter extends BaseAdapter {
      * or add a new day into the list if
      * there are no events yet for that day.
      *
-     * @param event
-     *          Event to add to the list
+     * @param events
+     *          Store holding the event to add to the list
+     * @param index
+     *          Index of the event in that store
      * @param addToFront
      *          If the event day is not in the list yet,
      *          true will add the event day to the front of the list
      *          and false will append it to the end of the list
      */
-    public void add(GCalEvent event, boolean addToFront) {
+    public void add(EventStore events, int index, boolean addToFront) {
 
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(event.startTime);
-        cal.set(Calendar.MILLISECOND, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.HOUR_OF_DAY, 0);
+        int event = mEvents.add(events, index);
 
         // Set starting date to be date of first event
-        int dayNumber = DateUtil.daysFromMillis(cal.getTimeInMillis());
+        int dayNumber = DateUtil.daysFromMillis(mEvents.getStartTime(event));
 
         // Convert event end to dayNumber
         // Subtract 1 to prevent events ending at 0:00:00.000 (midnight) from counting as being on that day
-        int eventEndDayNumber = DateUtil.daysFromMillis(event.endTime-1);
+        int eventEndDayNumber = DateUtil.daysFromMillis(mEvents.getEndTime(event)-1);
 
         // Make sure to include every day within the span of the event
         while (dayNumber <= eventEndDayNumber) {
 
-            Day day;
+            // Finds the Day for this date, or adds it in order if this date has not been added
+            Day day = mDays.getOrCreate(dayNumber);
 
-            // Check if a Day object already exists for this date
-            Integer position = mDayMap.get(dayNumber);
-
-            if (position == null) {     // Position will be null if this date has not been added
-
-                // Day object doesn't exist yet, create a new Day and add it to list and HashMap
-                day = new Day(dayNumber);
-                mDayMap.put(dayNumber, mDays.size());
-                if (addToFront) {
-                    mDays.add(0, day);
-                } else {
-                    mDays.add(day);
-                }
-
-            } else {                    // Else, the day exists
-                // Retrieve existing Day object from list
-                day = mDays.get(position);
-            }
-
-            // Add this event to Day's event list
-            day.events.add(event);
+            // Add this event to Day's event list. Events added to the
+            // front arrive latest first, so keep each day in start order.
+            day.addEvent(event, addToFront);
 
             dayNumber++;
         }
     }
 
+    /**
+     * Add search results below the ones already in the list,
+     * keeping their order. Each event gets a row of its own,
+     * under the day it starts on, so the ranking is what
+     * decides where it shows up rather than its date.
+     *
+     * @param events
+     *          Results in ranked order
+     */
+    public void addResults(EventStore events) {
+        for (int i = 0; i < events.size(); i++) {
+            int event = mEvents.add(events, i);
+            Day day = new Day(DateUtil.daysFromMillis(mEvents.getStartTime(event)));
+            day.addEvent(event, false);
+            mResults.add(day);
+        }
+    }
+
     public void clear() {
         mDays.clear();
-        mDayMap.clear();
+        mResults.clear();
+        mEvents.clear();
     }
 
     /**
@@ -135,15 +175,17 @@ public class EventListAdapter extends BaseAdapter {
      * @return  position in list
      */
     public int getPositionNearestToDay(int day) {
-        if (mDays.size() > 0) {
-            while (day < getItem(mDays.size() - 1).dayNumber) {
-                Integer position = mDayMap.get(day);
-                if (position != null) {
-                    return position;
+        if (mShowSearchResultsMode) {
+
+            // Results aren't in date order, so go to the best ranked one that day
+            for (int i = 0; i < mResults.size(); i++) {
+                if (mResults.get(i).dayNumber == day) {
+                    return i;
                 }
-                day++;
             }
-            return mDays.size() - 1;
+            return -1;
+        } else if (mDays.size() > 0) {
+            return Math.min(mDays.positionOf(day), mDays.size() - 1);
         } else {
             return -1;
         }
@@ -154,19 +196,18 @@ public class EventListAdapter extends BaseAdapter {
      */
     @Override
     public int getCount() {
-        return mDays.size();
+        return mShowSearchResultsMode ? mResults.size() : mDays.size();
     }
 
     /**
      * Get the Day object in that position
      *
-     * NOTE: does not return GCalEvent objects,
-     * although the Day object contains a list
-     * of GCalEvents.
+     * NOTE: does not return events, although the
+     * Day object refers to its events by index.
      */
     @Override
     public Day getItem(int position) {
-        return mDays.get(position);
+        return mShowSearchResultsMode ? mResults.get(position) : mDays.get(position);
     }
 
     /**
@@ -180,69 +221,114 @@ public class EventListAdapter extends BaseAdapter {
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
 
-        final LayoutInflater inflater = (LayoutInflater) mContext.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
         View view = convertView;
+        DayViewHolder holder;
         if (view == null) {
-            view = inflater.inflate(R.layout.day_list_item, null);
+            view = mInflater.inflate(R.layout.day_list_item, null);
+
+            holder = new DayViewHolder();
+            holder.dayNumberText = (TextView) view.findViewById(R.id.day_number);
+            holder.dayMonthText = (TextView) view.findViewById(R.id.day_month);
+            holder.dayEventsGroup = (LinearLayout) view.findViewById(R.id.day_events);
+            view.setTag(holder);
+        } else {
+            holder = (DayViewHolder) view.getTag();
         }
 
-        Day day = mDays.get(position);
+        Day day = getItem(position);
 
-        TextView dayNumberText = (TextView) view.findViewById(R.id.day_number);
-        TextView dayMonthText = (TextView) view.findViewById(R.id.day_month);
-        LinearLayout dayEventsGroup = (LinearLayout) view.findViewById(R.id.day_events);
+        holder.dayNumberText.setText(mLabels.getDayNumber(day.dayNumber));
+        holder.dayMonthText.setText(mLabels.getDaySubtitle(day.dayNumber, mShowSearchResultsMode));
 
-        long dayMillis = DateUtil.millisFromDays(day.dayNumber);
-        Date date = new Date(dayMillis);
+        // Rebind the event rows already in this day, and only
+        // take rows from (or give them back to) the pool when
+        // the number of events differs from the recycled day
+        LinearLayout dayEventsGroup = holder.dayEventsGroup;
+        int eventCount = day.getEventCount();
+        int rowCount = dayEventsGroup.getChildCount();
 
-        SimpleDateFormat sdfDay = new SimpleDateFormat("dd");
-        SimpleDateFormat sdfSubtitle;
-        if (mShowSearchResultsMode) {
-            sdfSubtitle = new SimpleDateFormat("MMM'\n'yyyy");
-        } else {
-            sdfSubtitle = new SimpleDateFormat("EEE");
+        while (rowCount > eventCount) {
+            rowCount--;
+            mEventRowPool.add(dayEventsGroup.getChildAt(rowCount));
+            dayEventsGroup.removeViewAt(rowCount);
+        }
+        while (rowCount < eventCount) {
+            dayEventsGroup.addView(obtainEventRow());
+            rowCount++;
+        }
+
+        for (int i = 0; i < eventCount; i++) {
+            int event = day.getEvent(i);
+            EventViewHolder eventHolder = (EventViewHolder) dayEventsGroup.getChildAt(i).getTag();
+            eventHolder.event = event;
+            eventHolder.titleText.setText(mEvents.getTitle(event));
+            eventHolder.subtitleText.setText(mLabels.getDuration(mEvents.getStartTime(event), mEvents.getEndTime(event)));
         }
 
-        dayNumberText.setText(sdfDay.format(date));
-        dayMonthText.setText(sdfSubtitle.format(date));
-        dayEventsGroup.removeAllViews();
+        return view;
+    }
+
+    /**
+     * Get an unattached event row from the pool,
+     * inflating a new one only if the pool is empty
+     */
+    private View obtainEventRow() {
+        int poolSize = mEventRowPool.size();
+        if (poolSize > 0) {
+            return mEventRowPool.remove(poolSize - 1);
+        }
 
-        for (final GCalEvent event : day.events) {
-            View eventView = inflater.inflate(R.layout.event_list_item, null);
+        View eventView = mInflater.inflate(R.layout.event_list_item, null);
 
-            TextView titleText = (TextView) eventView.findViewById(R.id.event_title);
-            titleText.setText(event.title);
+        EventViewHolder eventHolder = new EventViewHolder();
+        eventHolder.titleText = (TextView) eventView.findViewById(R.id.event_title);
+        eventHolder.subtitleText = (TextView) eventView.findViewById(R.id.event_subtitle);
+        eventView.setTag(eventHolder);
 
-            TextView subtitleText = (TextView) eventView.findViewById(R.id.event_subtitle);
-            String duration = DateUtil.formatEventDuration(event);
-            subtitleText.setText(duration);
+        // The row is the clickable event card, so one listener
+        // can look up whichever event the row currently shows
+        eventView.setOnClickListener(mEventClickListener);
 
-            View eventCard = eventView.findViewById(R.id.calendar_event_container);
-            eventCard.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    showEventDialog(inflater, event);
-                }
-            });
+        return eventView;
+    }
 
-            dayEventsGroup.addView(eventView);
+    private final View.OnClickListener mEventClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            EventViewHolder eventHolder = (EventViewHolder) v.getTag();
+            if (eventHolder.event >= 0 && eventHolder.event < mEvents.size()) {
+                showEventDialog(mInflater, eventHolder.event);
+            }
         }
+    };
 
-        return view;
+    private static class DayViewHolder {
+        TextView dayNumberText;
+        TextView dayMonthText;
+        LinearLayout dayEventsGroup;
+    }
+
+    private static class EventViewHolder {
+        TextView titleText;
+        TextView subtitleText;
+        int event = -1;     // Index in the adapter's EventStore
     }
 
     public void setShowSearchResultsMode(boolean showSearchResultsMode) {
         mShowSearchResultsMode = showSearchResultsMode;
     }
 
-    private void showEventDialog(LayoutInflater inflater, GCalEvent event) {
+    public boolean isShowingSearchResults() {
+        return mShowSearchResultsMode;
+    }
+
+    private void showEventDialog(LayoutInflater inflater, int event) {
 
         View dialogView = inflater.inflate(R.layout.event_dialog, null);
 
-        String title = event.title;
-        String duration = DateUtil.formatEventDuration(event);
-        String description = event.description;
-        String location = event.location;
+        String title = mEvents.getTitle(event);
+        String duration = mLabels.getDuration(mEvents.getStartTime(event), mEvents.getEndTime(event));
+        String location = mEvents.getLocation(event);
 
         if (duration != null && !duration.equals("")) {
             View durationGroup = dialogView.findViewById(R.id.view_event_duration_group);
@@ -254,15 +340,8 @@ public class EventListAdapter extends BaseAdapter {
             durationGroup.setVisibility(View.GONE);
         }
 
-        if (description != null && !description.equals("")) {
-            View descriptionGroup = dialogView.findViewById(R.id.view_event_description_group);
-            descriptionGroup.setVisibility(View.VISIBLE);
-            TextView descriptionText = (TextView) dialogView.findViewById(R.id.view_event_description);
-            descriptionText.setText(description);
-        } else {
-            View descriptionGroup = dialogView.findViewById(R.id.view_event_description_group);
-            descriptionGroup.setVisibility(View.GONE);
-        }
+        // Shown once it has been loaded, see loadDescription()
+        dialogView.findViewById(R.id.view_event_description_group).setVisibility(View.GONE);
 
         if (location != null && !location.equals("")) {
             View locationGroup = dialogView.findViewById(R.id.view_event_location_group);
@@ -283,6 +362,42 @@ public class EventListAdapter extends BaseAdapter {
                 dialog.dismiss();
             }
         });
-        builder.create().show();
+        AlertDialog dialog = builder.create();
+        dialog.show();
+
+        loadDescription(dialog, dialogView, mEvents.getRowId(event));
+    }
+
+    /**
+     * Descriptions aren't kept in the EventStore, so read the
+     * event's from the database off the UI thread. The list may
+     * have been painted from the snapshot, in which case this is
+     * the first time SQLite is opened.
+     */
+    private void loadDescription(final AlertDialog dialog, final View dialogView, final long rowId) {
+        final CalendarDatabase db = CalendarDatabase.getInstance(mContext);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String description = db.getDescription(rowId);
+                if (description == null || description.equals("")) {
+                    return;
+                }
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!dialog.isShowing()) {
+                            return;
+                        }
+                        View descriptionGroup = dialogView.findViewById(R.id.view_event_description_group);
+                        descriptionGroup.setVisibility(View.VISIBLE);
+                        TextView descriptionText = (TextView) dialogView.findViewById(R.id.view_event_description);
+                        descriptionText.setText(description);
+                    }
+                });
+            }
+        }).start();
     }
 }
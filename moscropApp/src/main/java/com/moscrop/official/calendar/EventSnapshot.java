@@ -0,0 +1,359 @@
+package com.moscrop.official.calendar;
+
+import android.util.SparseIntArray;
+
+import com.moscrop.official.util.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only copy of the stored calendar in a single binary file, so the
+ * events screen can show something on a cold start without opening
+ * SQLite. CalendarDatabase writes it after each sync, and the file is
+ * memory mapped when read.
+ *
+ * Layout, big endian:
+ *
+ *   header   int magic, int format version, int database version,
+ *            int body length, long CRC32 of the body
+ *   body     int event count n
+ *            long earliest start, long latest end, long longest event
+ *            long[n] starts (sorted), long[n] ends, long[n] row ids
+ *            int[n] title string, int[n] location string (-1 for null)
+ *            int string count m, int[m+1] offsets into the UTF-8 bytes
+ *            that follow, then the bytes
+ *            int month count, then (int month key, int days) per month
+ *
+ * Anything unexpected (missing file, other version, wrong length or
+ * checksum) makes open() return null, and callers go to SQLite instead.
+ */
+class EventSnapshot {
+
+    private static final int MAGIC = 0x4d534e50;    // "MSNP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBody;
+    private final int mCount;
+    private final long mEarliestStart;
+    private final long mLatestEnd;
+    private final long mLongestEvent;
+
+    // Positions of each section within the body
+    private final int mStartsPos;
+    private final int mEndsPos;
+    private final int mRowIdsPos;
+    private final int mTitlesPos;
+    private final int mLocationsPos;
+    private final int mOffsetsPos;
+    private final int mStringDataPos;
+    private final int mMonthsPos;
+
+    // Strings are only decoded once an event that uses them is read
+    private final String[] mStrings;
+
+    private EventSnapshot(ByteBuffer body) {
+        mBody = body;
+        mCount = body.getInt(0);
+        mEarliestStart = body.getLong(4);
+        mLatestEnd = body.getLong(12);
+        mLongestEvent = body.getLong(20);
+
+        mStartsPos = 28;
+        mEndsPos = mStartsPos + 8 * mCount;
+        mRowIdsPos = mEndsPos + 8 * mCount;
+        mTitlesPos = mRowIdsPos + 8 * mCount;
+        mLocationsPos = mTitlesPos + 4 * mCount;
+
+        int stringCountPos = mLocationsPos + 4 * mCount;
+        int stringCount = body.getInt(stringCountPos);
+        mOffsetsPos = stringCountPos + 4;
+        mStringDataPos = mOffsetsPos + 4 * (stringCount + 1);
+        mMonthsPos = mStringDataPos + body.getInt(mOffsetsPos + 4 * stringCount);
+        mStrings = new String[stringCount];
+    }
+
+    /**
+     * Map and check a snapshot file
+     *
+     * @param databaseVersion
+     *          Schema version the snapshot has to have been written from
+     * @return  the snapshot, or null if it is missing or not valid
+     */
+    static EventSnapshot open(File file, int databaseVersion) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                Logger.warn("Calendar snapshot has bad size " + size);
+                return null;
+            }
+
+            // The mapping stays valid after the file is closed, or even deleted
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC
+                    || buffer.getInt(4) != FORMAT_VERSION
+                    || buffer.getInt(8) != databaseVersion
+                    || buffer.getInt(12) != size - HEADER_SIZE) {
+                Logger.warn("Calendar snapshot is out of date or corrupt");
+                return null;
+            }
+
+            buffer.position(HEADER_SIZE);
+            ByteBuffer body = buffer.slice();
+            if (checksum(body) != buffer.getLong(16)) {
+                Logger.warn("Calendar snapshot failed its checksum");
+                return null;
+            }
+            return new EventSnapshot(body);
+
+        } catch (IOException | IndexOutOfBoundsException e) {
+            Logger.error("EventSnapshot.open()", e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    Logger.error("EventSnapshot.open()", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot. It is written to a temporary file first and
+     * renamed over the old one, so readers never see half a file.
+     *
+     * @param events
+     *          Every event, sorted by start time
+     * @param dayIndex
+     *          CalendarDatabase.getDayIndex()
+     * @return  true if the snapshot was written
+     */
+    static boolean write(File file, int databaseVersion, EventStore events, SparseIntArray dayIndex) {
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            writeBody(body, events, dayIndex);
+            body.flush();
+            byte[] bytes = bodyBytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            output = new FileOutputStream(temp);
+            DataOutputStream out = new DataOutputStream(output);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(databaseVersion);
+            out.writeInt(bytes.length);
+            out.writeLong(crc.getValue());
+            out.write(bytes);
+            out.flush();
+            output.getFD().sync();
+            output.close();
+            output = null;
+
+            if (!temp.renameTo(file)) {
+                Logger.warn("Couldn't move calendar snapshot into place");
+                temp.delete();
+                return false;
+            }
+            return true;
+
+        } catch (IOException e) {
+            Logger.error("EventSnapshot.write()", e);
+            temp.delete();
+            return false;
+        } finally {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    Logger.error("EventSnapshot.write()", e);
+                }
+            }
+        }
+    }
+
+    private static void writeBody(DataOutputStream out, EventStore events, SparseIntArray dayIndex) throws IOException {
+        int count = events.size();
+        long earliestStart = Long.MAX_VALUE;
+        long latestEnd = Long.MIN_VALUE;
+        long longestEvent = 0;
+        for (int i = 0; i < count; i++) {
+            earliestStart = Math.min(earliestStart, events.getStartTime(i));
+            latestEnd = Math.max(latestEnd, events.getEndTime(i));
+            longestEvent = Math.max(longestEvent, events.getEndTime(i) - events.getStartTime(i));
+        }
+
+        out.writeInt(count);
+        out.writeLong(earliestStart);
+        out.writeLong(latestEnd);
+        out.writeLong(longestEvent);
+        for (int i = 0; i < count; i++) out.writeLong(events.getStartTime(i));
+        for (int i = 0; i < count; i++) out.writeLong(events.getEndTime(i));
+        for (int i = 0; i < count; i++) out.writeLong(events.getRowId(i));
+
+        // EventStore shares equal strings, so each distinct
+        // title and location is only written out once
+        IdentityHashMap<String, Integer> stringIndices = new IdentityHashMap<String, Integer>();
+        List<String> strings = new ArrayList<String>();
+        int[] titles = new int[count];
+        int[] locations = new int[count];
+        for (int i = 0; i < count; i++) {
+            titles[i] = indexOf(events.getTitle(i), stringIndices, strings);
+            locations[i] = indexOf(events.getLocation(i), stringIndices, strings);
+        }
+        for (int i = 0; i < count; i++) out.writeInt(titles[i]);
+        for (int i = 0; i < count; i++) out.writeInt(locations[i]);
+
+        byte[][] encoded = new byte[strings.size()][];
+        int offset = 0;
+        out.writeInt(strings.size());
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = strings.get(i).getBytes(UTF_8);
+            out.writeInt(offset);
+            offset += encoded[i].length;
+        }
+        out.writeInt(offset);
+        for (byte[] bytes : encoded) {
+            out.write(bytes);
+        }
+
+        out.writeInt(dayIndex.size());
+        for (int i = 0; i < dayIndex.size(); i++) {
+            out.writeInt(dayIndex.keyAt(i));
+            out.writeInt(dayIndex.valueAt(i));
+        }
+    }
+
+    private static int indexOf(String value, Map<String, Integer> indices, List<String> strings) {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = indices.get(value);
+        if (index == null) {
+            index = strings.size();
+            indices.put(value, index);
+            strings.add(value);
+        }
+        return index;
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        ByteBuffer input = buffer.duplicate();
+        input.position(0);
+        while (input.hasRemaining()) {
+            int length = Math.min(chunk.length, input.remaining());
+            input.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Get the start of the earliest event and the end of the latest event
+     *
+     * @return  long[] { earliest start, latest end },
+     *          or null if there are no events
+     */
+    long[] getEventBounds() {
+        return mCount > 0 ? new long[] { mEarliestStart, mLatestEnd } : null;
+    }
+
+    /**
+     * Same as CalendarDatabase.getDayIndex()
+     */
+    SparseIntArray getDayIndex() {
+        int count = mBody.getInt(mMonthsPos);
+        SparseIntArray index = new SparseIntArray(count);
+        for (int i = 0; i < count; i++) {
+            int pos = mMonthsPos + 4 + 8 * i;
+            index.append(mBody.getInt(pos), mBody.getInt(pos + 4));
+        }
+        return index;
+    }
+
+    /**
+     * Same as CalendarDatabase.getEventsForDuration(long, long)
+     */
+    EventStore getEvents(long lowerBound, long upperBound) {
+
+        // Nothing that starts more than the longest event
+        // before the window can reach into it
+        int from = firstStartAtOrAfter(lowerBound - mLongestEvent);
+        int to = firstStartAtOrAfter(upperBound);
+
+        EventStore events = new EventStore(to - from);
+        for (int i = from; i < to; i++) {
+            long start = mBody.getLong(mStartsPos + 8 * i);
+            long end = mBody.getLong(mEndsPos + 8 * i);
+            if (EventIntervalIndex.overlaps(start, end, lowerBound, upperBound)) {
+                events.add(mBody.getLong(mRowIdsPos + 8 * i),
+                        getString(mBody.getInt(mTitlesPos + 4 * i)),
+                        getString(mBody.getInt(mLocationsPos + 4 * i)),
+                        start, end);
+            }
+        }
+        return events;
+    }
+
+    private int firstStartAtOrAfter(long time) {
+        int lo = 0;
+        int hi = mCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mBody.getLong(mStartsPos + 8 * mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private synchronized String getString(int index) {
+        if (index < 0) {
+            return null;
+        }
+        if (mStrings[index] == null) {
+            int start = mBody.getInt(mOffsetsPos + 4 * index);
+            int end = mBody.getInt(mOffsetsPos + 4 * (index + 1));
+            byte[] bytes = new byte[end - start];
+            ByteBuffer data = mBody.duplicate();
+            data.position(mStringDataPos + start);
+            data.get(bytes);
+            mStrings[index] = new String(bytes, UTF_8);
+        }
+        return mStrings[index];
+    }
+}
@@ -0,0 +1,187 @@
+package com.moscrop.official.calendar;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Events loaded for display, stored column by column.
+ *
+ * The events list can hold thousands of events once a few years have
+ * been scrolled through. Parallel arrays avoid an object per event
+ * that the GC has to trace, and the titles and locations repeated by
+ * recurring events are stored once per store rather than once per
+ * event. Descriptions are only needed when an event is opened, so
+ * they aren't loaded here; see CalendarDatabase.getDescription(long).
+ *
+ * Events are referred to by their index in the store. Not thread safe.
+ */
+public class EventStore {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mRowIds;         // Row of the event in CalendarDatabase, or of its series
+    private long[] mStarts;
+    private long[] mEnds;
+    private String[] mTitles;
+    private String[] mLocations;
+    private int mSize = 0;
+
+    // Canonical copy of every title and location in the store
+    private final HashMap<String, String> mStrings = new HashMap<String, String>();
+
+    public EventStore() {
+        this(MIN_CAPACITY);
+    }
+
+    public EventStore(int capacity) {
+        capacity = Math.max(capacity, MIN_CAPACITY);
+        mRowIds = new long[capacity];
+        mStarts = new long[capacity];
+        mEnds = new long[capacity];
+        mTitles = new String[capacity];
+        mLocations = new String[capacity];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getRowId(int index) {
+        return mRowIds[checkIndex(index)];
+    }
+
+    public long getStartTime(int index) {
+        return mStarts[checkIndex(index)];
+    }
+
+    public long getEndTime(int index) {
+        return mEnds[checkIndex(index)];
+    }
+
+    public String getTitle(int index) {
+        return mTitles[checkIndex(index)];
+    }
+
+    public String getLocation(int index) {
+        return mLocations[checkIndex(index)];
+    }
+
+    /**
+     * Add an event after the ones already in the store
+     *
+     * @return  index of the new event
+     */
+    public int add(long rowId, String title, String location, long startTime, long endTime) {
+        if (mSize == mStarts.length) {
+            grow();
+        }
+        mRowIds[mSize] = rowId;
+        mStarts[mSize] = startTime;
+        mEnds[mSize] = endTime;
+        mTitles[mSize] = pool(title);
+        mLocations[mSize] = pool(location);
+        return mSize++;
+    }
+
+    /**
+     * Copy an event from another store
+     *
+     * @return  index of the new event
+     */
+    public int add(EventStore other, int index) {
+        return add(other.getRowId(index), other.getTitle(index), other.getLocation(index),
+                other.getStartTime(index), other.getEndTime(index));
+    }
+
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mTitles[i] = null;
+            mLocations[i] = null;
+        }
+        mStrings.clear();
+        mSize = 0;
+    }
+
+    /**
+     * Get a copy of this store with its events sorted by start time
+     */
+    EventStore sortedByStart() {
+        Integer[] order = new Integer[mSize];
+        for (int i = 0; i < mSize; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                long a = mStarts[lhs];
+                long b = mStarts[rhs];
+                return a < b ? -1 : (a == b ? 0 : 1);
+            }
+        });
+
+        EventStore sorted = new EventStore(mSize);
+        for (Integer index : order) {
+            sorted.add(this, index);
+        }
+        return sorted;
+    }
+
+    /**
+     * Merge two stores that are each sorted by start time
+     *
+     * @return  a new store with the events of both, sorted by start time
+     */
+    static EventStore merge(EventStore a, EventStore b) {
+        EventStore merged = new EventStore(a.mSize + b.mSize);
+        int i = 0;
+        int j = 0;
+        while (i < a.mSize || j < b.mSize) {
+            if (j == b.mSize || (i < a.mSize && a.mStarts[i] <= b.mStarts[j])) {
+                merged.add(a, i++);
+            } else {
+                merged.add(b, j++);
+            }
+        }
+        return merged;
+    }
+
+    private String pool(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = mStrings.get(value);
+        if (pooled == null) {
+            mStrings.put(value, value);
+            pooled = value;
+        }
+        return pooled;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return index;
+    }
+
+    private void grow() {
+        int capacity = mStarts.length * 2;
+        mRowIds = copyOf(mRowIds, capacity);
+        mStarts = copyOf(mStarts, capacity);
+        mEnds = copyOf(mEnds, capacity);
+
+        String[] titles = new String[capacity];
+        System.arraycopy(mTitles, 0, titles, 0, mSize);
+        mTitles = titles;
+        String[] locations = new String[capacity];
+        System.arraycopy(mLocations, 0, locations, 0, mSize);
+        mLocations = locations;
+    }
+
+    private long[] copyOf(long[] values, int capacity) {
+        long[] copy = new long[capacity];
+        System.arraycopy(values, 0, copy, 0, mSize);
+        return copy;
+    }
+}
@@ -4,17 +4,49 @@ package com.moscrop.official.calendar;
  * Created by ivon on 9/16/14.
  */
 public class GCalEvent {
+    public final String calendarId; // Google Calendar the event came from
+    public final String id;         // Google Calendar event id, only unique within its calendar
+    public final String etag;       // Changes whenever the event is modified
     public final String title;
     public final String description;
     public final String location;
     public final long startTime;
     public final long endTime;
 
-    public GCalEvent(String title, String description, String location, long startTime, long endTime) {
+    // Only set for events stored as a whole series, see Recurrence.
+    // startTime and endTime are then those of the first instance.
+    public final String recurrence;         // RRULE and EXDATE lines
+    public final String timeZone;           // Time zone the series repeats in
+
+    // Only set for a single instance of a series that was moved or changed
+    public final String recurringEventId;   // Event id of the series
+    public final long originalStartTime;    // Where the instance would have been, or -1
+
+    public GCalEvent(String calendarId, String id, String etag, String title, String description, String location, long startTime, long endTime) {
+        this(calendarId, id, etag, title, description, location, startTime, endTime, null, null, null, -1);
+    }
+
+    public GCalEvent(String calendarId, String id, String etag, String title, String description, String location,
+                     long startTime, long endTime, String recurrence, String timeZone,
+                     String recurringEventId, long originalStartTime) {
+        this.calendarId = calendarId;
+        this.id = id;
+        this.etag = etag;
         this.title = title;
         this.description = description;
         this.location = location;
         this.startTime = startTime;
         this.endTime = endTime;
+        this.recurrence = recurrence;
+        this.timeZone = timeZone;
+        this.recurringEventId = recurringEventId;
+        this.originalStartTime = originalStartTime;
+    }
+
+    /**
+     * Whether this is a whole series rather than a single event
+     */
+    public boolean isRecurring() {
+        return recurrence != null;
     }
-}
\ No newline at end of file
+}
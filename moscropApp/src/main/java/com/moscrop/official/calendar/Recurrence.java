@@ -0,0 +1,583 @@
+package com.moscrop.official.calendar;
+
+import com.moscrop.official.util.Logger;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Expands a recurring Google Calendar event into its instances.
+ *
+ * Google sends the series as RFC 5545 RRULE and EXDATE lines. The
+ * subset of RRULE that Google Calendar creates is supported: DAILY,
+ * WEEKLY, MONTHLY and YEARLY rules with INTERVAL, COUNT, UNTIL,
+ * BYDAY (with ordinals like 2MO or -1FR for monthly and yearly rules),
+ * BYMONTHDAY, BYMONTH and WKST. parse() returns null for anything
+ * else, e.g. RDATE, BYSETPOS or more than one RRULE, in which case
+ * the calendar has to be fetched as single events instead.
+ *
+ * Instances keep the wall clock time of the first one in the event's
+ * time zone, so they stay at the same time across daylight saving.
+ */
+class Recurrence {
+
+    private static final int DAILY = 0;
+    private static final int WEEKLY = 1;
+    private static final int MONTHLY = 2;
+    private static final int YEARLY = 3;
+
+    // Stop expanding a rule that never produces an instance
+    private static final int MAX_EMPTY_PERIODS = 1000;
+
+    private final TimeZone mTimeZone;
+    private int mFreq = -1;
+    private int mInterval = 1;
+    private int mCount = 0;                     // 0 if not limited by count
+    private long mUntil = Long.MAX_VALUE;       // Last possible instance start
+    private int mWeekStart = Calendar.MONDAY;
+    private int[] mByDay;                       // Calendar.SUNDAY..SATURDAY
+    private int[] mByDayOrdinal;                // 0 for every such day
+    private int[] mByMonthDay;
+    private int[] mByMonth;                     // Calendar.JANUARY..DECEMBER
+    private long[] mExdates = new long[0];      // Sorted
+
+    private Recurrence(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Parse the recurrence of a stored series. All day series
+     * come without a time zone and repeat in the local one.
+     *
+     * @return  the recurrence, or null if the event isn't a
+     *          series or uses rules that aren't supported
+     */
+    static Recurrence forEvent(GCalEvent event) {
+        if (!event.isRecurring()) {
+            return null;
+        }
+        TimeZone timeZone = event.timeZone != null ? TimeZone.getTimeZone(event.timeZone) : TimeZone.getDefault();
+        return parse(event.recurrence, timeZone);
+    }
+
+    /**
+     * Parse the recurrence lines of a Google Calendar event
+     *
+     * @param recurrence
+     *          RRULE and EXDATE lines, separated by newlines
+     * @param timeZone
+     *          Time zone the event repeats in
+     * @return  the recurrence, or null if it uses rules that aren't supported
+     */
+    static Recurrence parse(String recurrence, TimeZone timeZone) {
+        Recurrence r = new Recurrence(timeZone);
+        boolean hasRule = false;
+
+        for (String line : recurrence.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0) continue;
+
+            int colon = line.indexOf(':');
+            if (colon == -1) return unsupported(line);
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1);
+
+            if (name.equals("RRULE")) {
+                if (hasRule || !r.parseRule(value)) return unsupported(line);
+                hasRule = true;
+            } else if (name.equals("EXDATE") || name.startsWith("EXDATE;")) {
+                if (!r.parseExdates(name, value)) return unsupported(line);
+            } else {
+                return unsupported(line);
+            }
+        }
+
+        return hasRule ? r : unsupported(recurrence);
+    }
+
+    private static Recurrence unsupported(String line) {
+        Logger.warn("Unsupported recurrence: " + line);
+        return null;
+    }
+
+    private boolean parseRule(String rule) {
+        for (String part : rule.split(";")) {
+            int equals = part.indexOf('=');
+            if (equals == -1) return false;
+            String name = part.substring(0, equals);
+            String value = part.substring(equals + 1);
+
+            try {
+                if (name.equals("FREQ")) {
+                    if (value.equals("DAILY")) mFreq = DAILY;
+                    else if (value.equals("WEEKLY")) mFreq = WEEKLY;
+                    else if (value.equals("MONTHLY")) mFreq = MONTHLY;
+                    else if (value.equals("YEARLY")) mFreq = YEARLY;
+                    else return false;
+                } else if (name.equals("INTERVAL")) {
+                    mInterval = Integer.parseInt(value);
+                    if (mInterval < 1) return false;
+                } else if (name.equals("COUNT")) {
+                    mCount = Integer.parseInt(value);
+                    if (mCount < 1) return false;
+                } else if (name.equals("UNTIL")) {
+                    mUntil = parseUntil(value);
+                    if (mUntil == Long.MIN_VALUE) return false;
+                } else if (name.equals("WKST")) {
+                    mWeekStart = parseWeekday(value);
+                    if (mWeekStart == -1) return false;
+                } else if (name.equals("BYDAY")) {
+                    String[] days = value.split(",");
+                    mByDay = new int[days.length];
+                    mByDayOrdinal = new int[days.length];
+                    for (int i = 0; i < days.length; i++) {
+                        String day = days[i];
+                        int split = day.length() - 2;
+                        if (split < 0) return false;
+                        mByDay[i] = parseWeekday(day.substring(split));
+                        if (mByDay[i] == -1) return false;
+                        if (split > 0) {
+                            String ordinal = day.substring(0, split);
+                            if (ordinal.startsWith("+")) ordinal = ordinal.substring(1);
+                            mByDayOrdinal[i] = Integer.parseInt(ordinal);
+                            if (mByDayOrdinal[i] == 0) return false;
+                        }
+                    }
+                } else if (name.equals("BYMONTHDAY")) {
+                    mByMonthDay = parseInts(value, -31, 31);
+                    if (mByMonthDay == null) return false;
+                } else if (name.equals("BYMONTH")) {
+                    mByMonth = parseInts(value, 1, 12);
+                    if (mByMonth == null) return false;
+                    for (int i = 0; i < mByMonth.length; i++) {
+                        mByMonth[i]--;
+                    }
+                } else {
+                    return false;
+                }
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        if (mFreq == -1) {
+            return false;
+        }
+
+        // Ordinal weekdays only make sense within a month or year,
+        // and only within a month is supported
+        if (mByDayOrdinal != null) {
+            for (int ordinal : mByDayOrdinal) {
+                if (ordinal != 0 && mFreq != MONTHLY && !(mFreq == YEARLY && mByMonth != null)) {
+                    return false;
+                }
+            }
+        }
+        if (mFreq == YEARLY && mByDay != null && mByMonth == null) {
+            return false;
+        }
+        if (mFreq == WEEKLY && mByMonthDay != null) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private static int[] parseInts(String value, int min, int max) {
+        String[] parts = value.split(",");
+        int[] ints = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ints[i] = Integer.parseInt(parts[i]);
+            if (ints[i] < min || ints[i] > max || ints[i] == 0) return null;
+        }
+        return ints;
+    }
+
+    private static int parseWeekday(String day) {
+        if (day.equals("SU")) return Calendar.SUNDAY;
+        if (day.equals("MO")) return Calendar.MONDAY;
+        if (day.equals("TU")) return Calendar.TUESDAY;
+        if (day.equals("WE")) return Calendar.WEDNESDAY;
+        if (day.equals("TH")) return Calendar.THURSDAY;
+        if (day.equals("FR")) return Calendar.FRIDAY;
+        if (day.equals("SA")) return Calendar.SATURDAY;
+        return -1;
+    }
+
+    /**
+     * A date UNTIL includes every instance on that day
+     */
+    private long parseUntil(String value) {
+        if (value.length() == 8) {
+            long nextDay = parseBasicTime(value, mTimeZone, 1);
+            return nextDay == Long.MIN_VALUE ? Long.MIN_VALUE : nextDay - 1;
+        }
+        return parseBasicTime(value, mTimeZone, 0);
+    }
+
+    /**
+     * Parse EXDATE times, given the property name with its parameters,
+     * e.g. "EXDATE;TZID=America/Vancouver" or "EXDATE;VALUE=DATE"
+     */
+    private boolean parseExdates(String name, String value) {
+        TimeZone timeZone = mTimeZone;
+        int tzid = name.indexOf("TZID=");
+        if (tzid != -1) {
+            int end = name.indexOf(';', tzid);
+            timeZone = TimeZone.getTimeZone(name.substring(tzid + 5, end == -1 ? name.length() : end));
+        }
+
+        String[] times = value.split(",");
+        long[] exdates = Arrays.copyOf(mExdates, mExdates.length + times.length);
+        for (int i = 0; i < times.length; i++) {
+            long time = parseBasicTime(times[i].trim(), timeZone, 0);
+            if (time == Long.MIN_VALUE) return false;
+            exdates[mExdates.length + i] = time;
+        }
+        Arrays.sort(exdates);
+        mExdates = exdates;
+        return true;
+    }
+
+    /**
+     * Parse an iCalendar date ("20150921"), local time ("20150921T083000")
+     * or UTC time ("20150921T153000Z")
+     *
+     * @param addDays
+     *          Days to add to the date
+     * @return  time in milliseconds, or Long.MIN_VALUE if invalid
+     */
+    private static long parseBasicTime(String value, TimeZone timeZone, int addDays) {
+        try {
+            int year = Integer.parseInt(value.substring(0, 4));
+            int month = Integer.parseInt(value.substring(4, 6)) - 1;
+            int day = Integer.parseInt(value.substring(6, 8));
+            int hour = 0, minute = 0, second = 0;
+
+            if (value.length() > 8) {
+                if (value.charAt(8) != 'T' || value.length() < 15) return Long.MIN_VALUE;
+                hour = Integer.parseInt(value.substring(9, 11));
+                minute = Integer.parseInt(value.substring(11, 13));
+                second = Integer.parseInt(value.substring(13, 15));
+                if (value.length() == 16 && value.charAt(15) == 'Z') {
+                    timeZone = TimeZone.getTimeZone("UTC");
+                } else if (value.length() != 15) {
+                    return Long.MIN_VALUE;
+                }
+            }
+
+            Calendar cal = Calendar.getInstance(timeZone);
+            cal.clear();
+            cal.set(year, month, day + addDays, hour, minute, second);
+            return cal.getTimeInMillis();
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Growable array of instance start times
+     */
+    private static class Times {
+        long[] values = new long[16];
+        int count = 0;
+
+        void add(long value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, count);
+        }
+    }
+
+    /**
+     * Get the start times of every instance that overlaps a window,
+     * leaving out EXDATEs and the given excluded instances
+     *
+     * @param start
+     *          Start of the first instance
+     * @param duration
+     *          Length of each instance
+     * @param excluded
+     *          Sorted original start times of instances that were
+     *          cancelled or moved, and are stored on their own
+     * @return  sorted instance start times
+     */
+    long[] expand(long start, long duration, long windowStart, long windowEnd, long[] excluded) {
+        Times times = new Times();
+        expand(start, windowStart - duration, windowEnd, excluded, times);
+        return times.toArray();
+    }
+
+    /**
+     * Get the start of the last instance
+     *
+     * @return  start time, or Long.MAX_VALUE if the series never ends
+     */
+    long getLastStart(long start) {
+        if (mCount == 0 && mUntil == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        Times times = new Times();
+        expand(start, start, Long.MAX_VALUE, null, times);
+        return times.count > 0 ? times.values[times.count - 1] : start;
+    }
+
+    /**
+     * Add every instance starting after "after" and before "before"
+     */
+    private void expand(long start, long after, long before, long[] excluded, Times out) {
+
+        Calendar first = Calendar.getInstance(mTimeZone);
+        first.setTimeInMillis(start);
+        int hour = first.get(Calendar.HOUR_OF_DAY);
+        int minute = first.get(Calendar.MINUTE);
+        int second = first.get(Calendar.SECOND);
+
+        // Date arithmetic is done at noon so daylight
+        // saving changes never move it to another day
+        Calendar period = Calendar.getInstance(mTimeZone);
+        period.clear();
+        period.set(first.get(Calendar.YEAR), first.get(Calendar.MONTH), first.get(Calendar.DAY_OF_MONTH), 12, 0, 0);
+        period.setFirstDayOfWeek(mWeekStart);
+        switch (mFreq) {
+            case WEEKLY:
+                int offset = (period.get(Calendar.DAY_OF_WEEK) - mWeekStart + 7) % 7;
+                period.add(Calendar.DAY_OF_MONTH, -offset);
+                break;
+            case MONTHLY:
+                period.set(Calendar.DAY_OF_MONTH, 1);
+                break;
+            case YEARLY:
+                period.set(Calendar.DAY_OF_MONTH, 1);
+                period.set(Calendar.MONTH, Calendar.JANUARY);
+                break;
+        }
+
+        // Without a count, periods before the window can be skipped
+        if (mCount == 0 && after > start) {
+            skipPeriods(period, after);
+        }
+
+        // The first instance is always the start itself, and counts
+        // toward COUNT even if the rule doesn't match it (RFC 5545)
+        if (start >= before) return;
+        if (start > after && isIncluded(start, excluded)) {
+            out.add(start);
+        }
+        if (mCount == 1) return;
+
+        Calendar instance = Calendar.getInstance(mTimeZone);
+        Calendar day = (Calendar) period.clone();
+        int[] dates = new int[31 * 12];
+        int produced = 1;
+        int emptyPeriods = 0;
+
+        while (true) {
+            int count = getDates(period, day, first, dates);
+            boolean any = false;
+
+            for (int i = 0; i < count; i++) {
+                int date = dates[i];
+                instance.clear();
+                instance.set(date / 10000, (date / 100) % 100, date % 100, hour, minute, second);
+                long time = instance.getTimeInMillis();
+
+                if (time <= start) continue;
+                if (time > mUntil || time >= before) return;
+
+                produced++;
+                any = true;
+                if (time > after && isIncluded(time, excluded)) {
+                    out.add(time);
+                }
+                if (mCount != 0 && produced >= mCount) return;
+            }
+
+            emptyPeriods = any ? 0 : emptyPeriods + 1;
+            if (emptyPeriods > MAX_EMPTY_PERIODS) return;
+
+            nextPeriod(period, mInterval);
+        }
+    }
+
+    private boolean isIncluded(long time, long[] excluded) {
+        return Arrays.binarySearch(mExdates, time) < 0
+                && (excluded == null || Arrays.binarySearch(excluded, time) < 0);
+    }
+
+    private void nextPeriod(Calendar period, int periods) {
+        switch (mFreq) {
+            case DAILY:
+                period.add(Calendar.DAY_OF_MONTH, periods);
+                break;
+            case WEEKLY:
+                period.add(Calendar.DAY_OF_MONTH, 7 * periods);
+                break;
+            case MONTHLY:
+                period.add(Calendar.MONTH, periods);
+                break;
+            case YEARLY:
+                period.add(Calendar.YEAR, periods);
+                break;
+        }
+    }
+
+    /**
+     * Move the period forward by whole intervals to just before the given time
+     */
+    private void skipPeriods(Calendar period, long time) {
+        Calendar target = Calendar.getInstance(mTimeZone);
+        target.setTimeInMillis(time);
+
+        long units;
+        switch (mFreq) {
+            case DAILY:
+                units = (time - period.getTimeInMillis()) / (24 * 60 * 60 * 1000);
+                break;
+            case WEEKLY:
+                units = (time - period.getTimeInMillis()) / (7 * 24 * 60 * 60 * 1000);
+                break;
+            case MONTHLY:
+                units = (target.get(Calendar.YEAR) - period.get(Calendar.YEAR)) * 12
+                        + target.get(Calendar.MONTH) - period.get(Calendar.MONTH);
+                break;
+            default:
+                units = target.get(Calendar.YEAR) - period.get(Calendar.YEAR);
+                break;
+        }
+
+        // Stay one interval behind to be safe around daylight saving
+        long periods = units / mInterval - 1;
+        if (periods > 0) {
+            nextPeriod(period, (int) (periods * mInterval));
+        }
+    }
+
+    /**
+     * Fill dates with the candidate days of the period, sorted, as
+     * year * 10000 + month * 100 + day (java.util.Calendar months)
+     *
+     * @param day
+     *          Scratch calendar
+     * @return  number of dates
+     */
+    private int getDates(Calendar period, Calendar day, Calendar first, int[] dates) {
+        int count = 0;
+        switch (mFreq) {
+            case DAILY:
+                if (matchesFilters(period)) {
+                    dates[count++] = pack(period);
+                }
+                break;
+
+            case WEEKLY:
+                day.setTimeInMillis(period.getTimeInMillis());
+                for (int i = 0; i < 7; i++) {
+                    int weekday = day.get(Calendar.DAY_OF_WEEK);
+                    boolean matches = mByDay != null
+                            ? contains(mByDay, weekday)
+                            : weekday == first.get(Calendar.DAY_OF_WEEK);
+                    if (matches && (mByMonth == null || contains(mByMonth, day.get(Calendar.MONTH)))) {
+                        dates[count++] = pack(day);
+                    }
+                    day.add(Calendar.DAY_OF_MONTH, 1);
+                }
+                break;
+
+            case MONTHLY:
+                if (mByMonth == null || contains(mByMonth, period.get(Calendar.MONTH))) {
+                    count = getDatesInMonth(period.get(Calendar.YEAR), period.get(Calendar.MONTH), day, first, dates, 0);
+                }
+                break;
+
+            case YEARLY:
+                int year = period.get(Calendar.YEAR);
+                if (mByMonth == null) {
+                    count = getDatesInMonth(year, first.get(Calendar.MONTH), day, first, dates, 0);
+                } else {
+                    for (int month = Calendar.JANUARY; month <= Calendar.DECEMBER; month++) {
+                        if (contains(mByMonth, month)) {
+                            count = getDatesInMonth(year, month, day, first, dates, count);
+                        }
+                    }
+                }
+                break;
+        }
+        return count;
+    }
+
+    private int getDatesInMonth(int year, int month, Calendar day, Calendar first, int[] dates, int count) {
+        day.clear();
+        day.set(year, month, 1, 12, 0, 0);
+        int daysInMonth = day.getActualMaximum(Calendar.DAY_OF_MONTH);
+        int firstWeekday = day.get(Calendar.DAY_OF_WEEK);
+
+        for (int dayOfMonth = 1; dayOfMonth <= daysInMonth; dayOfMonth++) {
+            boolean matches;
+            if (mByMonthDay == null && mByDay == null) {
+                matches = dayOfMonth == first.get(Calendar.DAY_OF_MONTH);
+            } else {
+                matches = (mByMonthDay == null || matchesMonthDay(dayOfMonth, daysInMonth))
+                        && (mByDay == null || matchesWeekday(dayOfMonth, daysInMonth, firstWeekday));
+            }
+            if (matches) {
+                dates[count++] = year * 10000 + month * 100 + dayOfMonth;
+            }
+        }
+        return count;
+    }
+
+    private boolean matchesMonthDay(int dayOfMonth, int daysInMonth) {
+        for (int monthDay : mByMonthDay) {
+            if (monthDay == dayOfMonth || daysInMonth + monthDay + 1 == dayOfMonth) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesWeekday(int dayOfMonth, int daysInMonth, int firstWeekday) {
+        int weekday = (firstWeekday - 1 + dayOfMonth - 1) % 7 + 1;
+        for (int i = 0; i < mByDay.length; i++) {
+            if (mByDay[i] != weekday) continue;
+            int ordinal = mByDayOrdinal[i];
+            if (ordinal == 0
+                    || (ordinal > 0 && (dayOfMonth - 1) / 7 + 1 == ordinal)
+                    || (ordinal < 0 && (daysInMonth - dayOfMonth) / 7 + 1 == -ordinal)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * BYMONTH, BYMONTHDAY and BYDAY only narrow down daily rules
+     */
+    private boolean matchesFilters(Calendar day) {
+        if (mByMonth != null && !contains(mByMonth, day.get(Calendar.MONTH))) {
+            return false;
+        }
+        if (mByDay != null && !contains(mByDay, day.get(Calendar.DAY_OF_WEEK))) {
+            return false;
+        }
+        return mByMonthDay == null
+                || matchesMonthDay(day.get(Calendar.DAY_OF_MONTH), day.getActualMaximum(Calendar.DAY_OF_MONTH));
+    }
+
+    private static boolean contains(int[] values, int value) {
+        for (int v : values) {
+            if (v == value) return true;
+        }
+        return false;
+    }
+
+    private static int pack(Calendar day) {
+        return day.get(Calendar.YEAR) * 10000 + day.get(Calendar.MONTH) * 100 + day.get(Calendar.DAY_OF_MONTH);
+    }
+}
@@ -0,0 +1,39 @@
+package com.moscrop.official.calendar;
+
+/**
+ * Position within the results of a calendar search, used to
+ * load the results one page at a time with
+ * {@link CalendarDatabase#search(SearchCursor, int)}.
+ *
+ * Results are ranked partly by how close they are to the time
+ * the search started, so that time is kept here to keep the
+ * order the same from one page to the next.
+ */
+public class SearchCursor {
+
+    final String query;
+    final long now;
+    int loaded = 0;
+    boolean hasMore = true;
+
+    // Sort key of the last result loaded, the next page starts after it
+    int lastRank;
+    long lastDistance;
+    long lastRowId;
+
+    public SearchCursor(String query) {
+        this.query = query;
+        this.now = System.currentTimeMillis();
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Whether there may be results after the pages already loaded
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+}
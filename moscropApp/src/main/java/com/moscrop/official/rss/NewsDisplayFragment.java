@@ -43,7 +43,6 @@ import com.parse.ParseException;
 import com.parse.ParseObject;
 import com.parse.ParseQuery;
 
-import org.json.JSONException;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -52,7 +51,6 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
-import java.util.Arrays;
 
 public class NewsDisplayFragment extends Fragment {
 
@@ -236,10 +234,9 @@ public class NewsDisplayFragment extends Fragment {
         });
 
         // Fetch the content from Parse
-        ParseQuery<ParseObject> query = ParseQuery.getQuery("Posts");
-        query.selectKeys(Arrays.asList("content"));
+        ParseQuery<ParseObject> query = ParseCacheHelper.getContentQuery(item.objectId);
         query.setCachePolicy(ParseCacheHelper.getCachePolicy(getActivity(), item.objectId));
-        query.getInBackground(item.objectId, new GetCallback<ParseObject>() {
+        query.getFirstInBackground(new GetCallback<ParseObject>() {
             @Override
             public void done(ParseObject parseObject, ParseException e) {
                 if (e == null) {
@@ -285,11 +282,7 @@ public class NewsDisplayFragment extends Fragment {
             Context context = mContext.get();
             String id = params[0];
             if (context != null) {
-                try {
-                    ParseCacheHelper.addCache(context, System.currentTimeMillis(), id);
-                } catch (JSONException e) {
-                    e.printStackTrace();
-                }
+                ParseCacheHelper.addCache(context, System.currentTimeMillis(), id);
             }
             return null;
         }
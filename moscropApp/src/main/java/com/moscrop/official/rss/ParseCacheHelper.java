@@ -2,8 +2,10 @@ package com.moscrop.official.rss;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
 
 import com.moscrop.official.util.JsonUtil;
+import com.moscrop.official.util.Logger;
 import com.moscrop.official.util.Preferences;
 import com.moscrop.official.util.Util;
 import com.parse.ParseObject;
@@ -13,7 +15,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -28,6 +29,21 @@ public class ParseCacheHelper {
      */
     private static final long ONLINE_CACHE_AGE_THRESHOLD = 10*60*1000;  // 10 minutes
 
+    private static boolean sTrackerMigrated = false;
+
+    /**
+     * Query for the content of a post. Parse caches results by query,
+     * so the post has to be loaded with exactly this query for its
+     * cache to be found and cleared here.
+     */
+    public static ParseQuery<ParseObject> getContentQuery(String id) {
+        ParseQuery<ParseObject> query = ParseQuery.getQuery("Posts");
+        query.selectKeys(Arrays.asList("content"));
+        query.whereEqualTo("objectId", id);
+        query.setLimit(1);
+        return query;
+    }
+
     public static ParseQuery.CachePolicy getCachePolicy(Context context, String id) {
 
         // If offline, retrieve from cache
@@ -35,110 +51,62 @@ public class ParseCacheHelper {
             return ParseQuery.CachePolicy.CACHE_ONLY;
         }
 
-        try {
-
-            SharedPreferences prefs = context.getSharedPreferences(Preferences.ParseCacheTracker.NAME, Context.MODE_MULTI_PROCESS);
-            String cacheListStr = prefs.getString(Preferences.ParseCacheTracker.Keys.PARSE_CACHE_TRACKER, Preferences.ParseCacheTracker.Default.PARSE_CACHE_TRACKER);
-            JSONObject jsonObject = new JSONObject(cacheListStr);
-            JSONArray jsonArray = jsonObject.getJSONArray("cacheList");
-            JSONObject[] cacheArray = JsonUtil.extractJsonArray(jsonArray);
-
-            long now = System.currentTimeMillis();
-            long limit = now -  ONLINE_CACHE_AGE_THRESHOLD;
-
-            for (int i=cacheArray.length-1; i>=0; i--) {
-                JSONObject cache = cacheArray[i];
-                if (cache.getLong("timestamp") > limit) {
-                    if (cache.getString("id").equals(id)) {
-                        // We found it. There exists a cache
-                        // of this post that is relatively new.
-
-                        ParseQuery<ParseObject> query = ParseQuery.getQuery("BlogPosts");
-                        query.selectKeys(Arrays.asList("content"));
-                        query.whereEqualTo("objectId", id);
-                        if (query.hasCachedResult()) {
-                            return ParseQuery.CachePolicy.CACHE_ONLY;
-                        } else {
-                            // Cache is missing.
-                            // No need to remove from tracker,
-                            // chances are it will be added back
-                            // almost immediately.
-                            // Simply tell app to load from network again.
-                            return ParseQuery.CachePolicy.NETWORK_ONLY;
-                        }
-                    }
-                } else {
-                    break;
-                }
+        long accessed = PostCacheDatabase.getInstance(context).getAccessTime(id);
+        if (accessed > System.currentTimeMillis() - ONLINE_CACHE_AGE_THRESHOLD) {
+            // There exists a cache of this post that is relatively new
+            if (getContentQuery(id).hasCachedResult()) {
+                return ParseQuery.CachePolicy.CACHE_ONLY;
             }
-
-        } catch (JSONException e) {
-            e.printStackTrace();
+            // Cache is missing. No need to remove from tracker,
+            // it will be touched again once the post has loaded.
         }
 
         // We are online, and there is no cached post we can use
         return ParseQuery.CachePolicy.NETWORK_ONLY;
     }
 
-    public static void addCache(Context context, long timestamp, String id) throws JSONException {
-
-        /**
-         * The list of caches is sorted by timestamp in ascending order.
-         * E.g. the first post is the oldest, and the last post is the newest.
-         */
-
-        SharedPreferences prefs = context.getSharedPreferences(Preferences.ParseCacheTracker.NAME, Context.MODE_MULTI_PROCESS);
-        String cacheListStr = prefs.getString(Preferences.ParseCacheTracker.Keys.PARSE_CACHE_TRACKER, Preferences.ParseCacheTracker.Default.PARSE_CACHE_TRACKER);
-        JSONObject jsonObject = new JSONObject(cacheListStr);
-        JSONArray jsonArray = jsonObject.getJSONArray("cacheList");
-        JSONObject[] cacheArray = JsonUtil.extractJsonArray(jsonArray);
-        List<JSONObject> cacheList = new ArrayList<>(Arrays.asList(cacheArray));
-
-        // Check if the item is already cached
-        int alreadyStoredInPosition = -1;
-        for (int i=0; i<cacheList.size(); i++) {
-            JSONObject cache = cacheList.get(i);
-            if (cache.getString("id").equals(id)) {
-                // Already cached. Simply update timestamp.
-                cache.put("timestamp", timestamp);
-                alreadyStoredInPosition = i;
-            }
+    /**
+     * Mark a post as just opened. Once more posts than the post cache
+     * size are tracked, the caches of the least recently opened posts
+     * are cleared.
+     */
+    public static void addCache(Context context, long timestamp, String id) {
+        migrateTracker(context);
+
+        int capacity = PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(Preferences.Keys.POST_CACHE_SIZE, Preferences.Default.POST_CACHE_SIZE);
+        List<String> evicted = PostCacheDatabase.getInstance(context).touch(id, timestamp, capacity);
+        for (String evictedId : evicted) {
+            getContentQuery(evictedId).clearCachedResult();
         }
+    }
 
-        if (alreadyStoredInPosition != -1) {
-            JSONObject cache = cacheList.remove(alreadyStoredInPosition);
-            cacheList.add(cache);
-        } else {
-            // If item is not yet cached, add a new cache entry
-            JSONObject cache = new JSONObject(String.format("{timestamp:%d,id:%s}", timestamp, id));
-            cacheList.add(cache);
-
-            // Save maximum of 1000 caches
-            // Remove the oldest caches first
-            while (cacheList.size() > 1000) {   // TODO Get number of posts to cache from preferences
-                JSONObject deletedCache = cacheList.remove(0);    // Delete the tracker reference
-                deleteCache(deletedCache);
-            }
+    /**
+     * Move posts from the JSON list the tracker used
+     * to keep in SharedPreferences, then delete it
+     */
+    private static synchronized void migrateTracker(Context context) {
+        if (sTrackerMigrated) {
+            return;
         }
 
-        // Write new cache list into JSONObject
-        jsonArray = new JSONArray();
-        for (JSONObject cache : cacheList) {
-            jsonArray.put(cache);
+        SharedPreferences prefs = context.getSharedPreferences(Preferences.ParseCacheTracker.NAME, Context.MODE_MULTI_PROCESS);
+        String cacheListStr = prefs.getString(Preferences.ParseCacheTracker.Keys.PARSE_CACHE_TRACKER, null);
+        if (cacheListStr != null) {
+            PostCacheDatabase db = PostCacheDatabase.getInstance(context);
+            try {
+                // The list is sorted oldest first
+                JSONArray jsonArray = new JSONObject(cacheListStr).getJSONArray("cacheList");
+                JSONObject[] cacheArray = JsonUtil.extractJsonArray(jsonArray);
+                for (JSONObject cache : cacheArray) {
+                    db.touch(cache.getString("id"), cache.getLong("timestamp"), Integer.MAX_VALUE);
+                }
+                Logger.log("Moved " + cacheArray.length + " posts to the post cache index");
+            } catch (JSONException e) {
+                Logger.error("ParseCacheHelper.migrateTracker()", e);
+            }
+            prefs.edit().clear().apply();
         }
-        jsonObject.put("cacheList", jsonArray);
-
-        // Save JSONObject to SharedPreferences
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString(Preferences.ParseCacheTracker.Keys.PARSE_CACHE_TRACKER, jsonObject.toString());
-        editor.apply();
-    }
-
-    private static void deleteCache(JSONObject deletedCache) throws JSONException {
-        String id = deletedCache.getString("id");
-        ParseQuery<ParseObject> query = ParseQuery.getQuery("BlogPosts");
-        query.selectKeys(Arrays.asList("content"));
-        query.whereEqualTo("objectId", id);
-        query.clearCachedResult();
+        sTrackerMigrated = true;
     }
 }
@@ -0,0 +1,159 @@
+package com.moscrop.official.rss;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import com.moscrop.official.util.SharedDatabaseHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Least recently used index of the posts whose content Parse has cached.
+ *
+ * Each post is one row keyed by its object id, with the time it was last
+ * opened. Looking a post up, touching it and evicting the oldest are each
+ * a single indexed statement, no matter how many posts are tracked.
+ */
+public class PostCacheDatabase extends SharedDatabaseHelper {
+
+    private static PostCacheDatabase mInstance;
+
+    private static final String NAME = "post_cache";
+    private static final int VERSION = 2015100101;
+
+    private static final String COLUMN_OBJECT_ID = "object_id";
+    private static final String COLUMN_ACCESSED = "accessed";
+
+    private static final String SELECT_ACCESSED =
+            "SELECT " + COLUMN_ACCESSED + " FROM " + NAME + " WHERE " + COLUMN_OBJECT_ID + " = ?";
+    private static final String UPDATE_ACCESSED =
+            "UPDATE " + NAME + " SET " + COLUMN_ACCESSED + " = ? WHERE " + COLUMN_OBJECT_ID + " = ?";
+    private static final String INSERT =
+            "INSERT INTO " + NAME + " (" + COLUMN_OBJECT_ID + ", " + COLUMN_ACCESSED + ") VALUES (?, ?)";
+    private static final String COUNT = "SELECT COUNT(*) FROM " + NAME;
+
+    // Number of rows, counted once when first needed
+    private long mCount = -1;
+
+    private PostCacheDatabase(Context context) {
+        super(context, NAME, VERSION);
+    }
+
+    public static synchronized PostCacheDatabase getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new PostCacheDatabase(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NAME + " (" +
+                COLUMN_OBJECT_ID + " TEXT PRIMARY KEY, " +
+                COLUMN_ACCESSED  + " INTEGER NOT NULL" +
+                ")");
+        db.execSQL("CREATE INDEX " + NAME + "_" + COLUMN_ACCESSED + " ON " + NAME + " (" + COLUMN_ACCESSED + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + NAME);
+        onCreate(db);
+    }
+
+    /**
+     * Get when a post was last opened
+     *
+     * @return  time in millis, or -1 if the post isn't tracked
+     */
+    public long getAccessTime(String objectId) {
+        SQLiteStatement statement = getStatement(SELECT_ACCESSED);
+        synchronized (statement) {
+            statement.bindString(1, objectId);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /**
+     * Mark a post as opened, adding it if it isn't tracked yet. If that
+     * takes the index over capacity, the least recently opened posts
+     * are removed from it.
+     *
+     * @return  object ids of the posts that were removed, oldest first
+     */
+    public synchronized List<String> touch(String objectId, long timestamp, int capacity) {
+        SQLiteDatabase db = getDatabase();
+        List<String> evicted = new ArrayList<String>();
+        boolean successful = false;
+
+        db.beginTransactionNonExclusive();
+        try {
+            SQLiteStatement update = getStatement(UPDATE_ACCESSED);
+            update.bindLong(1, timestamp);
+            update.bindString(2, objectId);
+            boolean tracked = update.executeUpdateDelete() > 0;
+            update.clearBindings();
+
+            if (!tracked) {
+                long count = getCount();
+                SQLiteStatement insert = getStatement(INSERT);
+                insert.bindString(1, objectId);
+                insert.bindLong(2, timestamp);
+                insert.executeInsert();
+                insert.clearBindings();
+                mCount = count + 1;
+
+                if (mCount > capacity) {
+                    evicted = evictOldest(db, (int) (mCount - capacity));
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            if (!successful) {
+                mCount = -1;    // Count again next time
+            }
+        }
+        return evicted;
+    }
+
+    private List<String> evictOldest(SQLiteDatabase db, int count) {
+        List<String> evicted = new ArrayList<String>(count);
+        Cursor c = db.query(NAME, new String[] { COLUMN_OBJECT_ID }, null, null, null, null,
+                COLUMN_ACCESSED + " ASC", String.valueOf(count));
+        while (c.moveToNext()) {
+            evicted.add(c.getString(0));
+        }
+        c.close();
+
+        for (String objectId : evicted) {
+            db.delete(NAME, COLUMN_OBJECT_ID + " = ?", new String[] { objectId });
+        }
+        mCount -= evicted.size();
+        return evicted;
+    }
+
+    /**
+     * Number of posts tracked
+     */
+    public synchronized long getCount() {
+        if (mCount < 0) {
+            SQLiteStatement statement = getStatement(COUNT);
+            synchronized (statement) {
+                mCount = statement.simpleQueryForLong();
+            }
+        }
+        return mCount;
+    }
+}
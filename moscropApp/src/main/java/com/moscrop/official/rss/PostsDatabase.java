@@ -0,0 +1,212 @@
+package com.moscrop.official.rss;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.moscrop.official.util.SharedDatabaseHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local copy of the post cards shown in the news feed, so RSSFragment
+ * can show the feed as soon as it opens and update it once Parse has
+ * answered, and page through it offline. Only what the cards need is
+ * stored, the content of each post is still cached by Parse, see
+ * ParseCacheHelper.
+ *
+ * Every row is stamped with the generation it was loaded in. Loading
+ * the first page of a feed starts a new generation, which drops every
+ * page of the same categories loaded in earlier ones with one delete.
+ */
+public class PostsDatabase extends SharedDatabaseHelper {
+
+    private static PostsDatabase mInstance;
+
+    private static final String NAME = "posts";
+    private static final int VERSION = 2015100301;
+
+    private static final String COLUMN_OBJECT_ID = "object_id";
+    private static final String COLUMN_PUBLISHED = "published";
+    private static final String COLUMN_TITLE = "title";
+    private static final String COLUMN_CATEGORY_ID = "category_id";
+    private static final String COLUMN_CATEGORY = "category";
+    private static final String COLUMN_ICON = "icon";
+    private static final String COLUMN_BG_IMAGE = "bg_image";
+    private static final String COLUMN_GENERATION = "generation";
+
+    private static final String[] COLUMNS = { COLUMN_OBJECT_ID, COLUMN_PUBLISHED, COLUMN_TITLE,
+            COLUMN_CATEGORY_ID, COLUMN_CATEGORY, COLUMN_ICON, COLUMN_BG_IMAGE };
+
+    private static final String REPLACE = "INSERT OR REPLACE INTO " + NAME + " ("
+            + TextUtils.join(", ", COLUMNS) + ", " + COLUMN_GENERATION + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String MAX_GENERATION = "SELECT IFNULL(MAX(" + COLUMN_GENERATION + "), 0) FROM " + NAME;
+
+    // Generation pages are being saved in, read once when first needed
+    private long mGeneration = -1;
+
+    private PostsDatabase(Context context) {
+        super(context, NAME, VERSION);
+    }
+
+    public static synchronized PostsDatabase getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new PostsDatabase(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + NAME + " (" +
+                COLUMN_OBJECT_ID    + " TEXT PRIMARY KEY, " +
+                COLUMN_PUBLISHED    + " INTEGER NOT NULL, " +
+                COLUMN_TITLE        + " TEXT, " +
+                COLUMN_CATEGORY_ID  + " TEXT, " +
+                COLUMN_CATEGORY     + " TEXT, " +
+                COLUMN_ICON         + " TEXT, " +
+                COLUMN_BG_IMAGE     + " TEXT, " +
+                COLUMN_GENERATION   + " INTEGER NOT NULL" +
+                ")");
+        db.execSQL("CREATE INDEX " + NAME + "_category_published ON " + NAME +
+                " (" + COLUMN_CATEGORY_ID + ", " + COLUMN_PUBLISHED + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + NAME);
+        onCreate(db);
+    }
+
+    /**
+     * Get a page of stored posts of some categories
+     *
+     * @param categoryIds
+     *          Object ids of the categories
+     * @param after
+     *          Last post of the page before, or null for the newest posts
+     * @param limit
+     *          Maximum number of posts
+     * @return  posts ordered by (published, objectId), newest first
+     */
+    public List<RSSItem> getPosts(String[] categoryIds, RSSItem after, int limit) {
+        List<RSSItem> posts = new ArrayList<RSSItem>();
+        if (categoryIds.length == 0) {
+            return posts;
+        }
+
+        String selection = getCategorySelection(categoryIds);
+        String[] selectionArgs = categoryIds;
+        if (after != null) {
+            selection += " AND (" + COLUMN_PUBLISHED + " < ? OR (" + COLUMN_PUBLISHED + " = ? AND "
+                    + COLUMN_OBJECT_ID + " < ?))";
+            selectionArgs = append(categoryIds, String.valueOf(after.date), String.valueOf(after.date),
+                    after.objectId);
+        }
+
+        Cursor c = query(NAME, COLUMNS, selection, selectionArgs, null, null,
+                COLUMN_PUBLISHED + " DESC, " + COLUMN_OBJECT_ID + " DESC LIMIT " + limit);
+        while (c.moveToNext()) {
+            posts.add(new RSSItem(c.getString(0), c.getLong(1), c.getString(2), c.getString(3),
+                    c.getString(4), c.getString(5), c.getString(6)));
+        }
+        c.close();
+        return posts;
+    }
+
+    /**
+     * Save the first page of a feed in a new generation, dropping
+     * every stored page of its categories from earlier generations
+     *
+     * @param categoryIds
+     *          Object ids of the categories the posts were queried from
+     * @param posts
+     *          The newest posts of those categories
+     */
+    public synchronized void startGeneration(String[] categoryIds, List<RSSItem> posts) {
+        if (categoryIds.length == 0) {
+            return;
+        }
+
+        long generation = getGeneration() + 1;
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            insert(posts, generation);
+            db.delete(NAME, getCategorySelection(categoryIds) + " AND " + COLUMN_GENERATION + " < ?",
+                    append(categoryIds, String.valueOf(generation)));
+            db.setTransactionSuccessful();
+            mGeneration = generation;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Save a page that follows on from the first page of the current generation
+     */
+    public synchronized void savePage(List<RSSItem> posts) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            insert(posts, getGeneration());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private long getGeneration() {
+        if (mGeneration < 0) {
+            SQLiteStatement statement = getStatement(MAX_GENERATION);
+            synchronized (statement) {
+                mGeneration = statement.simpleQueryForLong();
+            }
+        }
+        return mGeneration;
+    }
+
+    private void insert(List<RSSItem> posts, long generation) {
+        SQLiteStatement statement = getStatement(REPLACE);
+        synchronized (statement) {
+            for (RSSItem post : posts) {
+                bind(statement, 1, post.objectId);
+                statement.bindLong(2, post.date);
+                bind(statement, 3, post.title);
+                bind(statement, 4, post.categoryId);
+                bind(statement, 5, post.category);
+                bind(statement, 6, post.icon);
+                bind(statement, 7, post.bgImage);
+                statement.bindLong(8, generation);
+                statement.executeInsert();
+                statement.clearBindings();
+            }
+        }
+    }
+
+    private static String[] append(String[] array, String... values) {
+        String[] result = new String[array.length + values.length];
+        System.arraycopy(array, 0, result, 0, array.length);
+        System.arraycopy(values, 0, result, array.length, values.length);
+        return result;
+    }
+
+    private static void bind(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    private static String getCategorySelection(String[] categoryIds) {
+        StringBuilder selection = new StringBuilder(COLUMN_CATEGORY_ID).append(" IN (");
+        for (int i = 0; i < categoryIds.length; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        return selection.append(')').toString();
+    }
+}
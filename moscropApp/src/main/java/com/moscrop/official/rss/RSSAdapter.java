@@ -17,7 +17,10 @@ import com.moscrop.official.R;
 import com.moscrop.official.util.DateUtil;
 import com.squareup.picasso.Picasso;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by ivon on 30/06/14.
@@ -50,6 +53,48 @@ public class RSSAdapter extends ArrayAdapter<RSSItem> {
         bgColor2 = typedValue.data;
     }
 
+    /**
+     * Show the newest posts in place of the ones at the top of the list.
+     * Older posts already loaded further down are kept. Nothing is
+     * redrawn if the list wouldn't change.
+     *
+     * @param posts
+     *          Newest posts, newest first
+     * @return  true if the list changed
+     */
+    public boolean showLatest(List<RSSItem> posts) {
+        List<RSSItem> updated = new ArrayList<RSSItem>(posts);
+        if (!posts.isEmpty()) {
+            RSSItem oldest = posts.get(posts.size() - 1);
+            Set<String> ids = new HashSet<String>();
+            for (RSSItem post : posts) {
+                ids.add(post.objectId);
+            }
+            for (RSSItem item : mItems) {
+                if (isOlder(item, oldest) && !ids.contains(item.objectId)) {
+                    updated.add(item);
+                }
+            }
+        }
+
+        if (updated.equals(mItems)) {
+            return false;
+        }
+        mItems.clear();
+        mItems.addAll(updated);
+        notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Whether a post comes after another in the feed, which is
+     * ordered by (published, objectId) like the pages it's loaded in
+     */
+    private static boolean isOlder(RSSItem post, RSSItem other) {
+        return post.date < other.date
+                || (post.date == other.date && post.objectId.compareTo(other.objectId) < 0);
+    }
+
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
 
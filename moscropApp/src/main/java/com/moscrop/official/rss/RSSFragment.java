@@ -45,6 +45,7 @@ import org.json.JSONException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 public class RSSFragment extends Fragment implements AdapterView.OnItemClickListener,
@@ -66,8 +67,16 @@ public class RSSFragment extends Fragment implements AdapterView.OnItemClickList
     private boolean mAlreadyStartingDetailActivity = false;
 
     private String mTag = "";
+    private String mShownTag = null;    // Tag of the posts in the adapter
     private String mSearchQuery = null;
-    private int mPage = 0;
+
+    // Last post of the page being loaded now
+    private RSSItem mLoadingAfter = null;
+
+    // Incremented every time the feed is reloaded, so that
+    // results of an earlier load don't overwrite a newer one
+    private int mLoadId = 0;
+    private int mNetworkLoadId = -1;
 
     private boolean mScrolling = false;
 
@@ -473,6 +482,36 @@ public class RSSFragment extends Fragment implements AdapterView.OnItemClickList
 
     private void loadFeed(final boolean append) {
 
+        if (append && mAdapter.isEmpty()) {
+            return;
+        }
+
+        // Pages follow on from the last post loaded
+        final RSSItem after = append ? mAdapter.getItem(mAdapter.getCount() - 1) : null;
+        if (append && after.equals(mLoadingAfter)) {
+            return;     // Already loading it
+        }
+        mLoadingAfter = after;
+
+        final int loadId = append ? mLoadId : ++mLoadId;
+        if (!append && !mTag.equals(mShownTag)) {
+            // Posts of another tag have nothing to do with this one
+            mShownTag = mTag;
+            mAdapter.clear();
+        }
+
+        // Show what is stored right away. Offline, it is all there is.
+        boolean connected = Util.isConnected(getActivity());
+        if (!append || !connected) {
+            new LoadStoredPostsTask(getActivity(), mTag, after, loadId, !connected).execute();
+        }
+        if (!connected) {
+            if (mSwipeLayout != null) {
+                mSwipeLayout.setRefreshing(false);
+            }
+            return;
+        }
+
         if (mSwipeLayout != null) {
             mSwipeLayout.setRefreshing(true);
         }
@@ -480,92 +519,61 @@ public class RSSFragment extends Fragment implements AdapterView.OnItemClickList
         ParseCategoryHelper.downloadCategoriesList(getActivity(), new Runnable() {
             @Override
             public void run() {
-                final ParseQuery<ParseObject> query = ParseQuery.getQuery("Posts")
-                        .whereContainedIn("category", Arrays.asList(ParseCategoryHelper.getFilterCategories(getActivity(), mTag)))
-                        .selectKeys(Arrays.asList("published", "title", "category", "bgImage"))
-                        .include("category")
-                        .orderByDescending("published")
-                        .setLimit(Preferences.Default.LOAD_LIMIT);
-
-                if (append) {
-                    query.setSkip(Preferences.Default.LOAD_LIMIT * mPage);
-                }
-
-                if (Util.isConnected(getActivity())) {
-                    query.setCachePolicy(ParseQuery.CachePolicy.NETWORK_ONLY);
-                } else {
-                    query.setCachePolicy(ParseQuery.CachePolicy.CACHE_ONLY);
-                }
+                final ParseObject[] categories = ParseCategoryHelper.getFilterCategories(getActivity(), mTag);
+                final ParseQuery<ParseObject> query = getPageQuery(categories, after);
 
                 query.findInBackground(new FindCallback<ParseObject>() {
                     @Override
                     public void done(List<ParseObject> list, ParseException e) {
 
+                        if (loadId != mLoadId || !isAdded()) {
+                            // The feed was reloaded since
+                            return;
+                        }
+                        if (mLoadingAfter == after) {
+                            mLoadingAfter = null;
+                        }
+
                         if (mSwipeLayout != null) {
                             mSwipeLayout.setRefreshing(false);
                         }
 
                         if (e == null) {
-                            // Remove empty cache that might get "orphaned"
-                            // before we lose a way to delete it.
-                            if (list == null || list.size() == 0) {
-                                query.clearCachedResult();
-                            }
-
-                            if (!append) {
-                                mPage = 1;
-                                mAdapter.clear();
-                                new ClearOutdatedCachesTask().execute();
-                            } else {
-                                mPage++;
-                            }
-
+                            List<RSSItem> posts = new ArrayList<RSSItem>(list.size());
                             for (ParseObject item : list) {
                                 try {
-                                    if (item.getParseObject("category") != null) {
-                                        RSSItem post = new RSSItem(
+                                    ParseObject category = item.getParseObject("category");
+                                    if (category != null) {
+                                        posts.add(new RSSItem(
                                                 item.getObjectId(),
                                                 item.getDate("published").getTime(),
                                                 item.getString("title"),
-                                                item.getParseObject("category").getString("name"),
-                                                item.getParseObject("category").getString("icon_img"),
+                                                category.getObjectId(),
+                                                category.getString("name"),
+                                                category.getString("icon_img"),
                                                 item.getString("bgImage")
-                                        );
-                                        mAdapter.add(post);
+                                        ));
                                     }
                                 } catch (IllegalStateException error) {
                                     Logger.error("Error displaying \"" + item.getString("title") + "\": ", error);
                                 }
                             }
-                            mAdapter.notifyDataSetChanged();
-                            Logger.log("Done loading");
-                        } else {
-                            if (e.getCode() == ParseException.CACHE_MISS) {
-                                // We are offline and there is no cache available.
-                                // Possible causes are:
-                                // 1. User has no internet connection (at all)
-                                // 2. User has a data connection, but chose to only load over WiFi
-
-                                if (Util.getConnectionType(getActivity()) == Util.CONNECTION_TYPE_NONE) {
-                                    Toast.makeText(getActivity(), "No cache available. Please try again when you have a valid internet connection.", Toast.LENGTH_SHORT).show();
-                                } else {
-                                    if (!Util.isConnected(getActivity())) {
-                                        Toast.makeText(getActivity(), "Loading over data is disabled. Please check your app preferences.", Toast.LENGTH_SHORT).show();
-                                    } else {
-                                        Toast.makeText(getActivity(), "Error loading posts", Toast.LENGTH_SHORT).show();
-                                    }
-                                }
 
-                                if (!append) {
-                                    mPage = 1;
-                                    mAdapter.clear();
-                                    mAdapter.notifyDataSetChanged();
+                            if (!append) {
+                                mNetworkLoadId = loadId;
+                                if (!mAdapter.showLatest(posts)) {
+                                    Logger.log("Stored posts were up to date");
                                 }
-
                             } else {
-                                Toast.makeText(getActivity(), "Error loading post", Toast.LENGTH_SHORT).show();
+                                for (RSSItem post : posts) {
+                                    mAdapter.add(post);
+                                }
+                                mAdapter.notifyDataSetChanged();
                             }
-                            query.clearCachedResult();
+                            new SavePostsTask(getActivity(), getCategoryIds(categories), posts, append).execute();
+                            Logger.log("Done loading");
+                        } else {
+                            Toast.makeText(getActivity(), "Error loading posts", Toast.LENGTH_SHORT).show();
                         }
                     }
                 });
@@ -573,35 +581,132 @@ public class RSSFragment extends Fragment implements AdapterView.OnItemClickList
         });
     }
 
-    private class ClearOutdatedCachesTask extends AsyncTask<Void, Void, Void> {
+    /**
+     * Query for a page of posts, newest first. A page starts after the last
+     * post of the one before it, ordered by (published, objectId), instead of
+     * skipping a number of posts. The server doesn't have to count past every
+     * earlier post, and posts published while scrolling don't shift later pages.
+     *
+     * @param after
+     *          Last post already loaded, or null for the first page
+     */
+    private static ParseQuery<ParseObject> getPageQuery(ParseObject[] categories, RSSItem after) {
+        ParseQuery<ParseObject> query;
+        if (after == null) {
+            query = ParseQuery.getQuery("Posts")
+                    .whereContainedIn("category", Arrays.asList(categories));
+        } else {
+            Date published = new Date(after.date);
+            ParseQuery<ParseObject> older = ParseQuery.getQuery("Posts")
+                    .whereContainedIn("category", Arrays.asList(categories))
+                    .whereLessThan("published", published);
+            ParseQuery<ParseObject> sameTime = ParseQuery.getQuery("Posts")
+                    .whereContainedIn("category", Arrays.asList(categories))
+                    .whereEqualTo("published", published)
+                    .whereLessThan("objectId", after.objectId);
+            query = ParseQuery.or(Arrays.asList(older, sameTime));
+        }
 
-        @Override
-        protected Void doInBackground(Void... params) {
+        return query.selectKeys(Arrays.asList("published", "title", "category", "bgImage"))
+                .include("category")
+                .orderByDescending("published")
+                .addDescendingOrder("objectId")
+                .setLimit(Preferences.Default.LOAD_LIMIT);
+    }
+
+    private static String[] getCategoryIds(ParseObject[] categories) {
+        String[] ids = new String[categories.length];
+        for (int i = 0; i < categories.length; i++) {
+            ids[i] = categories[i].getObjectId();
+        }
+        return ids;
+    }
 
-            ParseObject[] tags = ParseCategoryHelper.getFilterCategories(getActivity(), mTag);
+    /**
+     * Show a page of the posts stored the last time the feed
+     * was loaded, without waiting for Parse to answer
+     */
+    private class LoadStoredPostsTask extends AsyncTask<Void, Void, List<RSSItem>> {
+
+        private final Context mContext;
+        private final String mTagToShow;
+        private final RSSItem mAfter;
+        private final int mLoadIdToShow;
+        private final boolean mOffline;
+
+        public LoadStoredPostsTask(Context context, String tag, RSSItem after, int loadId, boolean offline) {
+            mContext = context.getApplicationContext();
+            mTagToShow = tag;
+            mAfter = after;
+            mLoadIdToShow = loadId;
+            mOffline = offline;
+        }
 
-            // Clear appended pages
-            ParseQuery<ParseObject> query = ParseQuery.getQuery("BlogPosts")
-                    .whereContainedIn("category", Arrays.asList(tags))
-                    .include("category")
-                    .selectKeys(Arrays.asList("published", "title", "category", "bgImage"))
-                    .orderByDescending("published");
+        @Override
+        protected List<RSSItem> doInBackground(Void... params) {
+            String[] categoryIds = getCategoryIds(ParseCategoryHelper.getFilterCategories(mContext, mTagToShow));
+            return PostsDatabase.getInstance(mContext).getPosts(categoryIds, mAfter, Preferences.Default.LOAD_LIMIT);
+        }
 
-            int count = -1;
-            try {
-                 count = query.count();
-            } catch (ParseException e) {
-                e.printStackTrace();
+        @Override
+        protected void onPostExecute(List<RSSItem> posts) {
+            if (mLoadIdToShow != mLoadId || !isAdded()) {
+                return;
+            }
+            if (mOffline && mLoadingAfter == mAfter) {
+                mLoadingAfter = null;
             }
-            int numPages = (int) Math.ceil(((float) count) / Preferences.Default.LOAD_LIMIT);
 
-            query.setLimit(Preferences.Default.LOAD_LIMIT);
+            if (mAfter != null) {
+                for (RSSItem post : posts) {
+                    mAdapter.add(post);
+                }
+                mAdapter.notifyDataSetChanged();
+            } else if (mNetworkLoadId != mLoadIdToShow && !posts.isEmpty()) {
+                // Parse didn't answer first
+                mAdapter.showLatest(posts);
+                Logger.log("Showing " + posts.size() + " stored posts");
+            }
 
-            for (int i=1; i<numPages; i++) {
-                query.setSkip(Preferences.Default.LOAD_LIMIT * i);
-                query.clearCachedResult();
+            if (mOffline && mAdapter.isEmpty()) {
+                // Possible causes are:
+                // 1. User has no internet connection (at all)
+                // 2. User has a data connection, but chose to only load over WiFi
+                if (Util.getConnectionType(mContext) == Util.CONNECTION_TYPE_NONE) {
+                    Toast.makeText(mContext, "No cache available. Please try again when you have a valid internet connection.", Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(mContext, "Loading over data is disabled. Please check your app preferences.", Toast.LENGTH_SHORT).show();
+                }
             }
+        }
+    }
+
+    /**
+     * Store a page loaded from Parse. The first page starts a new
+     * generation, which drops the pages stored before it.
+     */
+    private static class SavePostsTask extends AsyncTask<Void, Void, Void> {
+
+        private final Context mContext;
+        private final String[] mCategoryIds;
+        private final List<RSSItem> mPosts;
+        private final boolean mAppended;
+
+        public SavePostsTask(Context context, String[] categoryIds, List<RSSItem> posts, boolean appended) {
+            mContext = context.getApplicationContext();
+            mCategoryIds = categoryIds;
+            mPosts = posts;
+            mAppended = appended;
+        }
 
+        @Override
+        protected Void doInBackground(Void... params) {
+            PostsDatabase db = PostsDatabase.getInstance(mContext);
+            if (mAppended) {
+                db.savePage(mPosts);
+            } else {
+                db.startGeneration(mCategoryIds, mPosts);
+            }
             return null;
         }
     }
@@ -2,6 +2,7 @@ package com.moscrop.official.rss;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.text.TextUtils;
 
 /**
  * Created by ivon on 20/10/14.
@@ -11,25 +12,47 @@ public class RSSItem implements Parcelable {
     public final String objectId;
     public final long date;
     public final String title;
+    public final String categoryId;
     public final String category;
     public final String icon;
     public final String bgImage;
 
     public RSSItem(Parcel in) {
-        this(in.readString(), in.readLong(), in.readString(), in.readString(), in.readString(), in.readString());
-        //   objectId,        date           title            category         icon             bgImage
+        this(in.readString(), in.readLong(), in.readString(), in.readString(), in.readString(), in.readString(), in.readString());
+        //   objectId,        date           title            categoryId       category         icon             bgImage
     }
 
 
-    public RSSItem(String objectId, long date, String title, String category, String icon, String bgImage) {
+    public RSSItem(String objectId, long date, String title, String categoryId, String category, String icon,
+                   String bgImage) {
         this.objectId = objectId;
         this.date = date;
         this.title = title;
+        this.categoryId = categoryId;
         this.category = category;
         this.icon = icon;
         this.bgImage = bgImage;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RSSItem)) return false;
+        RSSItem other = (RSSItem) o;
+        return date == other.date
+                && TextUtils.equals(objectId, other.objectId)
+                && TextUtils.equals(title, other.title)
+                && TextUtils.equals(categoryId, other.categoryId)
+                && TextUtils.equals(category, other.category)
+                && TextUtils.equals(icon, other.icon)
+                && TextUtils.equals(bgImage, other.bgImage);
+    }
+
+    @Override
+    public int hashCode() {
+        return objectId != null ? objectId.hashCode() : 0;
+    }
+
     /** Implementations of Parcelable methods down below */
 
     @Override
@@ -42,6 +65,7 @@ public class RSSItem implements Parcelable {
         dest.writeString(objectId);
         dest.writeLong(date);
         dest.writeString(title);
+        dest.writeString(categoryId);
         dest.writeString(category);
         dest.writeString(icon);
         dest.writeString(bgImage);
@@ -1,13 +1,18 @@
 package com.moscrop.official.staffinfo;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
+import com.moscrop.official.util.BulkLoader;
+import com.moscrop.official.util.FtsUtil;
+import com.moscrop.official.util.Logger;
+import com.moscrop.official.util.SharedDatabaseHelper;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -18,7 +23,7 @@ import java.util.List;
 /**
  * Created by ivon on 04/04/15.
  */
-public class StaffInfoDatabase extends SQLiteOpenHelper {
+public class StaffInfoDatabase extends SharedDatabaseHelper {
 
     private static StaffInfoDatabase mInstance;
     private Context mContext;
@@ -34,10 +39,17 @@ public class StaffInfoDatabase extends SQLiteOpenHelper {
 
     private static final String NAME = "staff_info";
     private static final String NAME_FTS = "staff_info_fts";
-    private static final int VERSION = 2015040501;
+    private static final int VERSION = 2015093001;
+
+    // Staff rows loaded from the CSV per transaction
+    private static final int CSV_CHUNK_SIZE = 100;
+
+    // Columns in the order they appear in the CSV
+    private static final String[] CSV_COLUMNS = { COLUMN_NAME_PREFIX, COLUMN_FIRST_NAME, COLUMN_LAST_NAME,
+            COLUMN_ROOMS, COLUMN_DEPARTMENT, COLUMN_EMAIL, COLUMN_SITES };
 
     private StaffInfoDatabase(Context context) {
-        super(context, NAME, null, VERSION);
+        super(context, NAME, VERSION);
         mContext = context;
     }
 
@@ -45,12 +57,18 @@ public class StaffInfoDatabase extends SQLiteOpenHelper {
         if (mInstance == null) {
             mInstance = new StaffInfoDatabase(context);
         }
-        if (mInstance.getCount() == 0) {
+        if (mInstance.isEmpty()) {
             mInstance.populateDatabaseFromCsv();
         }
         return mInstance;
     }
 
+    /**
+     * Staff are stored in staff_info, and staff_info_fts is an FTS4
+     * index over it, see FtsUtil. The list never changes after it is
+     * loaded, so the index is built once at the end of the load
+     * instead of being kept in sync by triggers.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + NAME + " (" +
@@ -64,16 +82,7 @@ public class StaffInfoDatabase extends SQLiteOpenHelper {
                 COLUMN_SITES        + " TEXT" + ""   +
                 ")");
 
-        db.execSQL("CREATE VIRTUAL TABLE " + NAME_FTS + " USING fts3 (" +
-                _ID + ", " +
-                COLUMN_NAME_PREFIX  + ", " +
-                COLUMN_FIRST_NAME   + ", " +
-                COLUMN_LAST_NAME    + ", " +
-                COLUMN_ROOMS        + ", " +
-                COLUMN_DEPARTMENT   + ", " +
-                COLUMN_EMAIL        + ", " +
-                COLUMN_SITES        + "" +
-                ")");
+        FtsUtil.createIndex(db, NAME_FTS, NAME, CSV_COLUMNS);
     }
 
     @Override
@@ -85,39 +94,53 @@ public class StaffInfoDatabase extends SQLiteOpenHelper {
 
     private void populateDatabaseFromCsv() {
         AssetManager assetManager = mContext.getAssets();
+        BulkLoader loader = new BulkLoader(getDatabase(), NAME, CSV_COLUMNS)
+                .setChunkSize(CSV_CHUNK_SIZE)
+                .rebuildFtsWhenFinished(NAME_FTS, CSV_COLUMNS);
+        boolean successful = false;
+        BufferedReader reader = null;
         try {
 
             InputStream is = assetManager.open("staff_info.csv");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+            reader = new BufferedReader(new InputStreamReader(is));
 
-            getWritableDatabase().beginTransaction();
+            loader.begin();
 
             String line = reader.readLine();    // remove the first row of headers
             while ((line = reader.readLine()) != null) {
                 String[] array = line.split(",");
-
-                ContentValues values = new ContentValues();
-                values.put(COLUMN_NAME_PREFIX,  array[0]);
-                values.put(COLUMN_FIRST_NAME,   array[1]);
-                values.put(COLUMN_LAST_NAME,    array[2]);
-                values.put(COLUMN_ROOMS,        array[3]);
-                values.put(COLUMN_DEPARTMENT,   array[4]);
-                values.put(COLUMN_EMAIL,        array[5]);
-                values.put(COLUMN_SITES,        array[6]);
-                getWritableDatabase().insert(NAME_FTS, null, values);
+                for (int i = 0; i < CSV_COLUMNS.length; i++) {
+                    loader.bind(i, array[i]);
+                }
+                loader.insert();
             }
 
-            getWritableDatabase().setTransactionSuccessful();
+            loader.finish(true);
+            successful = true;
 
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            getWritableDatabase().endTransaction();
+            loader.finish(false);   // Rolls back the last chunk, unless it already finished
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            // Chunks committed before any failure, including a bad row, a failed
+            // insert or rebuild, would stop the next getInstance() from trying again
+            if (!successful) {
+                Logger.warn("Staff list failed to load after " + loader.getRowCount() + " rows");
+                getDatabase().delete(NAME, null, null);
+            }
         }
     }
 
     public List<StaffInfoModel> getList() {
-        Cursor c = getReadableDatabase().query(NAME_FTS, null, null, null, null, null, null);
+        Cursor c = query(NAME, null, null, null, null, null, null);
         List<StaffInfoModel> list = new ArrayList<StaffInfoModel>();
         c.moveToPosition(-1);
         while (c.moveToNext()) {
@@ -133,7 +156,7 @@ public class StaffInfoDatabase extends SQLiteOpenHelper {
         String selection = NAME_FTS + " MATCH ? COLLATE NOCASE";
         String[] selectionArgs = new String[] { appendWildcard(query) };
 
-        Cursor c = getReadableDatabase().query(NAME_FTS, null, selection, selectionArgs, null, null, null);
+        Cursor c = query(NAME_FTS, null, selection, selectionArgs, null, null, null);
         List<StaffInfoModel> list = new ArrayList<StaffInfoModel>();
         c.moveToPosition(-1);
         while (c.moveToNext()) {
@@ -175,8 +198,22 @@ public class StaffInfoDatabase extends SQLiteOpenHelper {
         );
     }
 
+    /**
+     * Whether the staff list hasn't been loaded yet. Unlike
+     * getCount(), doesn't need to read every row.
+     */
+    public boolean isEmpty() {
+        SQLiteStatement statement = getStatement("SELECT NOT EXISTS (SELECT 1 FROM " + NAME + ")");
+        synchronized (statement) {
+            long start = SystemClock.elapsedRealtime();
+            boolean empty = statement.simpleQueryForLong() != 0;
+            recordQuery(start);
+            return empty;
+        }
+    }
+
     public int getCount() {
-        Cursor c = getReadableDatabase().query(NAME_FTS, null, null, null, null, null, null);
+        Cursor c = query(NAME, null, null, null, null, null, null);
         int count = c.getCount();
         c.close();
         return count;
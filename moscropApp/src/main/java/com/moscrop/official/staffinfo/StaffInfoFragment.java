@@ -194,7 +194,6 @@ public class StaffInfoFragment extends Fragment implements AdapterView.OnItemCli
 
         StaffInfoDatabase db = StaffInfoDatabase.getInstance(getActivity());
         final List<StaffInfoModel> models = db.getList();
-        db.close();
 
         if (getActivity() != null) {
             getActivity().runOnUiThread(new Runnable() {
@@ -218,7 +217,6 @@ public class StaffInfoFragment extends Fragment implements AdapterView.OnItemCli
                 // Perform FTS query
                 StaffInfoDatabase db = StaffInfoDatabase.getInstance(getActivity());
                 final List<StaffInfoModel> models = db.search(query);
-                db.close();
 
                 // Load resulting list into ListView
                 getActivity().runOnUiThread(new Runnable() {
@@ -0,0 +1,191 @@
+package com.moscrop.official.util;
+
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+/**
+ * Inserts many rows into one table through a single compiled
+ * INSERT statement, instead of building ContentValues and going
+ * through SQLiteDatabase.insert() for every row.
+ *
+ * Usage: begin(), then bind() each column and insert() for every
+ * row, then finish(). Columns are numbered from 0 in the order
+ * they were given to the constructor, and unbound columns are null.
+ *
+ * If the database is already in a transaction when begin() is called,
+ * rows are committed along with it and the chunk size is ignored.
+ * Otherwise the loader commits every chunk size rows (or all at once
+ * if it is 0), so a failed load keeps the chunks committed before it.
+ *
+ * Like SQLiteDatabase.insert(), a row that breaks a constraint (such as
+ * a duplicate of a unique key) is skipped and the load carries on.
+ *
+ * Not thread safe.
+ */
+public class BulkLoader {
+
+    private final SQLiteDatabase mDatabase;
+    private final String mTable;
+    private final SQLiteStatement mStatement;
+
+    private int mChunkSize = 0;
+    private String mFtsTable;
+    private String[] mFtsColumns;
+
+    private boolean mOwnsTransaction;
+    private boolean mFinished;
+    private int mRows;
+    private int mSkippedRows;
+    private int mRowsInChunk;
+    private long mStartMillis;
+    private long mElapsedMillis;
+
+    public BulkLoader(SQLiteDatabase db, String table, String... columns) {
+        mDatabase = db;
+        mTable = table;
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                params.append(", ");
+            }
+            sql.append(columns[i]);
+            params.append('?');
+        }
+        sql.append(") VALUES (").append(params).append(')');
+        mStatement = db.compileStatement(sql.toString());
+    }
+
+    /**
+     * Commit after every this many rows, or 0 to commit once at the end
+     */
+    public BulkLoader setChunkSize(int rows) {
+        mChunkSize = rows;
+        return this;
+    }
+
+    /**
+     * Rebuild an FTS4 index made by FtsUtil.createIndex() from this table
+     * once every row is loaded. The caller has to stop the triggers that
+     * keep it up to date while loading, if there are any.
+     *
+     * @param columns
+     *          Columns of this table the index covers
+     */
+    public BulkLoader rebuildFtsWhenFinished(String ftsTable, String... columns) {
+        mFtsTable = ftsTable;
+        mFtsColumns = columns;
+        return this;
+    }
+
+    public BulkLoader begin() {
+        mRows = 0;
+        mSkippedRows = 0;
+        mRowsInChunk = 0;
+        mStartMillis = SystemClock.elapsedRealtime();
+        mOwnsTransaction = !mDatabase.inTransaction();
+        if (mOwnsTransaction) {
+            mDatabase.beginTransactionNonExclusive();
+        }
+        return this;
+    }
+
+    public void bind(int column, String value) {
+        if (value != null) {
+            mStatement.bindString(column + 1, value);
+        } else {
+            mStatement.bindNull(column + 1);
+        }
+    }
+
+    public void bind(int column, long value) {
+        mStatement.bindLong(column + 1, value);
+    }
+
+    public void bindNull(int column) {
+        mStatement.bindNull(column + 1);
+    }
+
+    /**
+     * Insert a row with the values bound since the last insert
+     *
+     * @return  row id of the new row, or -1 if it broke a constraint
+     */
+    public long insert() {
+        long rowId;
+        try {
+            rowId = mStatement.executeInsert();
+            mRows++;
+            mRowsInChunk++;
+        } catch (SQLiteConstraintException e) {
+            // Only this row is undone, the transaction carries on
+            Logger.warn("Skipped a row of " + mTable + ": " + e.getMessage());
+            mSkippedRows++;
+            rowId = -1;
+        } finally {
+            mStatement.clearBindings();
+        }
+
+        if (mOwnsTransaction && mChunkSize > 0 && mRowsInChunk >= mChunkSize) {
+            mDatabase.setTransactionSuccessful();
+            mDatabase.endTransaction();
+            mDatabase.beginTransactionNonExclusive();
+            mRowsInChunk = 0;
+        }
+        return rowId;
+    }
+
+    /**
+     * Finish loading and release the statement. Only the first call
+     * does anything, so it can also be called from a finally block
+     * to roll back a load that failed before it finished.
+     *
+     * @param successful
+     *          true to commit the rows since the last chunk and
+     *          rebuild the FTS table, false to roll them back.
+     *          They are rolled back too if the rebuild fails.
+     * @return  number of rows inserted
+     */
+    public int finish(boolean successful) {
+        if (mFinished) {
+            return mRows;
+        }
+        mFinished = true;
+
+        try {
+            if (successful && mFtsTable != null) {
+                FtsUtil.rebuildIndex(mDatabase, mFtsTable, mTable, mFtsColumns);
+            }
+            if (mOwnsTransaction && successful) {
+                mDatabase.setTransactionSuccessful();
+            }
+        } finally {
+            if (mOwnsTransaction) {
+                mDatabase.endTransaction();
+            }
+            mStatement.close();
+        }
+
+        mElapsedMillis = SystemClock.elapsedRealtime() - mStartMillis;
+        Logger.log("Loaded " + mRows + " rows into " + mTable + " in " + mElapsedMillis + "ms ("
+                + Math.round(getRowsPerSecond()) + " rows/s)"
+                + (mSkippedRows > 0 ? ", skipped " + mSkippedRows : "") + (successful ? "" : ", rolled back"));
+        return mRows;
+    }
+
+    public int getRowCount() {
+        return mRows;
+    }
+
+    /**
+     * Rows inserted per second, from begin() to finish()
+     */
+    public double getRowsPerSecond() {
+        long millis = mElapsedMillis > 0 ? mElapsedMillis : SystemClock.elapsedRealtime() - mStartMillis;
+        return millis > 0 ? mRows * 1000.0 / millis : mRows;
+    }
+}
@@ -0,0 +1,17 @@
+package com.moscrop.official.util;
+
+/**
+ * Source of the current time, so that code which
+ * schedules work around it can be given a fake one.
+ */
+public interface Clock {
+
+    long currentTimeMillis();
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+}
@@ -0,0 +1,48 @@
+package com.moscrop.official.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes read through it, without copying them
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private long mCount = 0;
+
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) mCount++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        int read = super.read(buffer, offset, count);
+        if (read > 0) mCount += read;
+        return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+        long skipped = super.skip(byteCount);
+        mCount += skipped;
+        return skipped;
+    }
+
+    // Marking would make the count include bytes that are read twice
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -5,7 +5,6 @@ import android.text.format.Time;
 import com.moscrop.official.calendar.GCalEvent;
 
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
@@ -26,56 +25,246 @@ public class DateUtil {
     }
 
     /**
-     * Use this one for generic dates
-     * @param dateStr
-     * @return
+     * Returned by parseRfc3339(CharSequence) when the input isn't a valid date
      */
-    public static Date parseRCF339Date(String dateStr) {
-        try {
-            if (dateStr.endsWith("Z")) {         // End in Z means no time zone
-                SimpleDateFormat noTimeZoneFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-                return noTimeZoneFormat.parse(dateStr);
-            } else {
-                if(dateStr.length() >= 28) {     // Proper RCF 3339 format with time zone
-                    SimpleDateFormat withTimeZoneFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZZZ");
-                    return withTimeZoneFormat.parse(dateStr);
-                } else {                        // Format uncertain, only take common substring
-                    SimpleDateFormat shortDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-                    String substring = dateStr.substring(0, 10);
-                    return shortDateFormat.parse(substring);
+    public static final long INVALID_TIME = Long.MIN_VALUE;
+
+    /**
+     * Parse an RFC 3339 / ISO 8601 date or date-time without SimpleDateFormat.
+     * Works directly on the characters of the input and doesn't allocate
+     * when a time zone offset is given, which is every GCal dateTime.
+     * Safe to call from any thread.
+     *
+     * Accepts:
+     *  "2015-09-10"                     Midnight in the default time zone
+     *  "2015-09-10T08:30:00"            Local time in the default time zone
+     *  "2015-09-10T08:30:00Z"           UTC
+     *  "2015-09-10T08:30:00.000-07:00"  Any offset, with or without the colon,
+     *                                   with or without fractional seconds
+     *
+     * @param s
+     *          Date string to parse
+     * @return  milliseconds since epoch, or INVALID_TIME if the string is malformed
+     *          or names a date that doesn't exist, like 2015-02-31
+     */
+    public static long parseRfc3339(CharSequence s) {
+
+        int len = s.length();
+        if (len < 10 || s.charAt(4) != '-' || s.charAt(7) != '-') {
+            return INVALID_TIME;
+        }
+
+        int year = parseDigits(s, 0, 4);
+        int month = parseDigits(s, 5, 2);
+        int day = parseDigits(s, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return INVALID_TIME;
+        }
+
+        long millis = daysFromCivil(year, month, day) * DAY_MILLIS;
+        if (len == 10) {
+            return localToUtc(millis);
+        }
+
+        // Time
+        char separator = s.charAt(10);
+        if ((separator != 'T' && separator != 't' && separator != ' ')
+                || len < 19 || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return INVALID_TIME;
+        }
+
+        int hour = parseDigits(s, 11, 2);
+        int minute = parseDigits(s, 14, 2);
+        int second = parseDigits(s, 17, 2);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return INVALID_TIME;
+        }
+        if (second == 60) {     // Leap second
+            second = 59;
+        }
+        millis += hour * 3600000L + minute * 60000L + second * 1000L;
+
+        // Fractional seconds, only millisecond precision is kept
+        int pos = 19;
+        if (pos < len && s.charAt(pos) == '.') {
+            pos++;
+            int digits = 0;
+            int fraction = 0;
+            while (pos < len && isDigit(s.charAt(pos))) {
+                if (digits < 3) {
+                    fraction = fraction * 10 + (s.charAt(pos) - '0');
                 }
+                digits++;
+                pos++;
             }
-        } catch (ParseException e) {
-            Logger.error("DateUtil.parseRCF3339Date() with dateStr = " + dateStr, e);
+            if (digits == 0) {
+                return INVALID_TIME;
+            }
+            for (int i = digits; i < 3; i++) {
+                fraction *= 10;
+            }
+            millis += fraction;
+        }
+
+        // Time zone
+        if (pos == len) {
+            return localToUtc(millis);
+        }
+
+        char zone = s.charAt(pos);
+        if (zone == 'Z' || zone == 'z') {
+            return pos + 1 == len ? millis : INVALID_TIME;
+        }
+        if (zone != '+' && zone != '-') {
+            return INVALID_TIME;
+        }
+
+        int offsetHours = parseDigits(s, pos + 1, 2);
+        pos += 3;
+        if (pos < len && s.charAt(pos) == ':') {
+            pos++;
+        }
+        int offsetMinutes = parseDigits(s, pos, 2);
+        if (offsetHours < 0 || offsetHours > 23 || offsetMinutes < 0 || offsetMinutes > 59 || pos + 2 != len) {
+            return INVALID_TIME;
         }
-        return null;
+
+        long offset = offsetHours * 3600000L + offsetMinutes * 60000L;
+        return zone == '+' ? millis - offset : millis + offset;
     }
 
     /**
-     * Use this one for Google Calendar dates
+     * Format a time as an RFC 3339 date-time in UTC,
+     * e.g. "2015-09-10T15:30:00.000Z". Appends to the given
+     * builder instead of creating intermediate strings.
+     */
+    public static void formatRfc3339(long millis, StringBuilder out) {
+
+        long days = millis / DAY_MILLIS;
+        long rem = millis % DAY_MILLIS;
+        if (rem < 0) {
+            rem += DAY_MILLIS;
+            days--;
+        }
+
+        long civil = civilFromDays(days);
+        appendDigits(out, (int) (civil / 10000), 4);
+        out.append('-');
+        appendDigits(out, (int) (civil / 100 % 100), 2);
+        out.append('-');
+        appendDigits(out, (int) (civil % 100), 2);
+        out.append('T');
+        appendDigits(out, (int) (rem / 3600000), 2);
+        out.append(':');
+        appendDigits(out, (int) (rem / 60000 % 60), 2);
+        out.append(':');
+        appendDigits(out, (int) (rem / 1000 % 60), 2);
+        out.append('.');
+        appendDigits(out, (int) (rem % 1000), 3);
+        out.append('Z');
+    }
+
+    public static String formatRfc3339(long millis) {
+        StringBuilder builder = new StringBuilder(24);
+        formatRfc3339(millis, builder);
+        return builder.toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * @return  value of the digits, or -1 if any of them isn't a digit
+     */
+    private static int parseDigits(CharSequence s, int start, int count) {
+        if (start + count > s.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void appendDigits(StringBuilder out, int value, int count) {
+        for (int divisor = count == 4 ? 1000 : count == 3 ? 100 : 10; divisor > 0; divisor /= 10) {
+            out.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+                return leap ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Days since epoch of a proleptic Gregorian date
+     * See http://howardhinnant.github.io/date_algorithms.html
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yoe = year - era * 400;
+        long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Inverse of daysFromCivil(int, int, int)
+     *
+     * @return  date packed as year * 10000 + month * 100 + day
+     */
+    private static long civilFromDays(long days) {
+        days += 719468;
+        long era = (days >= 0 ? days : days - 146096) / 146097;
+        long doe = days - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        long day = doy - (153 * mp + 2) / 5 + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Convert a wall clock time in the default time zone to UTC
+     */
+    private static long localToUtc(long localMillis) {
+        TimeZone tz = TimeZone.getDefault();
+        long guess = localMillis - tz.getOffset(localMillis);
+        return localMillis - tz.getOffset(guess);
+    }
+
+    /**
+     * Use this one for generic dates
      * @param dateStr
-     * @param dateOnly
      * @return
      */
-    public static Date parseRCF339Date(String dateStr, boolean dateOnly) {
-        try {
-            if (dateStr.endsWith("Z")) {         // End in Z means no time zone
-                SimpleDateFormat noTimeZoneFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-                return noTimeZoneFormat.parse(dateStr);
-            } else {
-                if(!dateOnly) {     // Proper RCF 3339 format with time zone
-                    SimpleDateFormat withTimeZoneFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZ");
-                    return withTimeZoneFormat.parse(dateStr);
-                } else {                        // Format uncertain, only take common substring
-                    SimpleDateFormat shortDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-                    String substring = dateStr.substring(0, 10);
-                    return shortDateFormat.parse(substring);
-                }
-            }
-        } catch (ParseException e) {
-            Logger.error("DateUtil.parseRCF3339Date() with dateStr = " + dateStr, e);
+    public static Date parseRCF339Date(String dateStr) {
+        long millis = parseRfc3339(dateStr);
+        if (millis == INVALID_TIME) {
+            Logger.error("DateUtil.parseRCF3339Date() with dateStr = " + dateStr);
+            return null;
         }
-        return null;
+        return new Date(millis);
     }
 
     public static String getMonthName(int month, boolean shortened) {
@@ -138,11 +327,12 @@ public class DateUtil {
     }
 
     public static String formatEventDuration(GCalEvent event) {
+        return formatEventDuration(event.startTime, event.endTime);
+    }
 
-        String duration;
+    public static String formatEventDuration(long startMillis, long endMillis) {
 
-        long startMillis = event.startTime;
-        long endMillis = event.endTime;
+        String duration;
 
         Date startDate = new Date(startMillis);
         Date endDate = new Date(endMillis);
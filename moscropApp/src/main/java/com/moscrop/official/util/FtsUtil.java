@@ -0,0 +1,58 @@
+package com.moscrop.official.util;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.text.TextUtils;
+
+/**
+ * Creates and rebuilds FTS4 indexes over an ordinary table.
+ *
+ * External content FTS4 tables need SQLite 3.7.11, which Android only
+ * ships from 4.1 (API 16). Older devices get an ordinary FTS4 table
+ * holding its own copy of the text instead. Both are keyed by the rowid
+ * of the content table, so triggers that insert and delete by docid and
+ * queries that join on docid work the same on either.
+ */
+public class FtsUtil {
+
+    private FtsUtil() {}
+
+    /**
+     * Whether this device's SQLite can create external content FTS4 tables
+     */
+    public static boolean supportsExternalContent() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Create an FTS4 index over some columns of a content table
+     */
+    public static void createIndex(SQLiteDatabase db, String ftsTable, String contentTable, String... columns) {
+        String content = supportsExternalContent() ? "content=\"" + contentTable + "\", " : "";
+        db.execSQL("CREATE VIRTUAL TABLE " + ftsTable + " USING fts4 (" +
+                content + TextUtils.join(", ", columns) + ")");
+    }
+
+    /**
+     * Rebuild an index made by createIndex() from its content table.
+     * Checks how the table was actually created, since a device may
+     * have been updated to a newer Android since then.
+     */
+    public static void rebuildIndex(SQLiteDatabase db, String ftsTable, String contentTable, String... columns) {
+        if (hasExternalContent(db, ftsTable)) {
+            db.execSQL("INSERT INTO " + ftsTable + "(" + ftsTable + ") VALUES('rebuild')");
+        } else {
+            String columnList = TextUtils.join(", ", columns);
+            db.execSQL("DELETE FROM " + ftsTable);
+            db.execSQL("INSERT INTO " + ftsTable + " (docid, " + columnList + ") " +
+                    "SELECT rowid, " + columnList + " FROM " + contentTable);
+        }
+    }
+
+    private static boolean hasExternalContent(SQLiteDatabase db, String ftsTable) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE name=? AND sql LIKE '%content=%'",
+                new String[] { ftsTable }) > 0;
+    }
+}
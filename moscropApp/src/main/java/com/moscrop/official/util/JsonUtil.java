@@ -1,137 +1,302 @@
 package com.moscrop.official.util;
 
 import android.content.Context;
+import android.os.SystemClock;
+import android.util.JsonReader;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Created by ivon on 9/2/14.
  */
 public class JsonUtil {
 
-    public static JSONObject getJsonObjectFromUrl(Context context, String url) throws JSONException {
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int SOCKET_TIMEOUT = 30000;
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;  // CalendarParser fetches up to 3 calendars at once
 
-        JSONObject resultObj = null;
+    private static DefaultHttpClient sHttpClient;
+    private static Connectivity sConnectivity = Connectivity.DEVICE;
 
-        if (Util.isConnected(context)) {
-            DefaultHttpClient httpclient = new DefaultHttpClient();
-            HttpGet httpGet = new HttpGet(url);
+    /**
+     * Decides whether requests are made at all, so
+     * tests can stand in for the device's network
+     */
+    public interface Connectivity {
 
-            InputStream inputStream = null;
-            String resultStr = null;
-            try {
+        boolean isConnected(Context context);
 
-                // Make sure status is OK
-                HttpResponse response = httpclient.execute(httpGet);
-                StatusLine status = response.getStatusLine();
-                if (status.getStatusCode() != HttpStatus.SC_OK) {
-                    Logger.log("Status code", status.getStatusCode());
-                    Logger.log("Reason", status.getReasonPhrase());
-                    return null;
-                }
+        Connectivity DEVICE = new Connectivity() {
+            @Override
+            public boolean isConnected(Context context) {
+                return Util.isConnected(context);
+            }
+        };
+    }
 
-                // Read response
-                HttpEntity entity = response.getEntity();
-                inputStream = entity.getContent();
+    /**
+     * @param connectivity
+     *          Connectivity to check before each request, or null for the device's
+     */
+    public static void setConnectivity(Connectivity connectivity) {
+        sConnectivity = connectivity != null ? connectivity : Connectivity.DEVICE;
+    }
 
-                // Log downloaded data size
-                inputStream = countBytes(inputStream);
+    /**
+     * ETag and Last-Modified of a response, which can be sent
+     * back to make the next request for the same URL conditional
+     */
+    public static class Validators {
+        public final String url;
+        public final String etag;
+        public final String lastModified;
 
-                // json is UTF-8 by default
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"), 8);
-                StringBuilder sb = new StringBuilder();
+        public Validators(String url, String etag, String lastModified) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
 
-                // Build input stream into response string
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    sb.append(line).append("\n");
-                }
-                resultStr = sb.toString();
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    if (inputStream != null) {
-                        inputStream.close();
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+    /**
+     * Consumes a JSON response token by token
+     * without building it up in memory first.
+     */
+    public static abstract class JsonStreamHandler<T> {
+
+        private CountingInputStream mInput;
+        private Validators mValidators;
+
+        public abstract T handle(JsonReader reader) throws IOException;
+
+        /**
+         * Number of bytes of the response read off the network so far.
+         * The reader buffers ahead, so once the whole document has
+         * been read this is the size of the response.
+         */
+        protected long getBytesRead() {
+            return mInput != null ? mInput.getCount() : 0;
+        }
+
+        /**
+         * Validators of the response being handled, to pass to the next
+         * request for the same URL. The caller decides when to save them,
+         * so they are only kept once what came with them has been stored.
+         */
+        protected Validators getValidators() {
+            return mValidators;
+        }
+
+        /**
+         * Called instead of handle(JsonReader) when the
+         * server responds with anything other than 200 OK
+         */
+        public T onHttpError(int statusCode) {
+            return null;
+        }
 
-            resultObj = new JSONObject(resultStr);
+        /**
+         * Called instead of handle(JsonReader) when a conditional request
+         * is answered with 304 Not Modified, meaning the response would
+         * have been the same as the one the validators came from
+         */
+        public T onNotModified() {
+            return null;
         }
+    }
 
-        return resultObj;
+    /**
+     * One client is shared by every request, so its connections are
+     * kept alive and reused instead of each request connecting again
+     */
+    private static synchronized DefaultHttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, SOCKET_TIMEOUT);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+
+            SchemeRegistry schemes = new SchemeRegistry();
+            schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+            sHttpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes), params);
+        }
+        return sHttpClient;
     }
 
-    private static byte[] toByteArray(InputStream is) {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private static HttpGet createGet(String url) {
+        HttpGet httpGet = new HttpGet(url);
+        httpGet.addHeader("Accept-Encoding", "gzip");
+        return httpGet;
+    }
 
-        int nRead;
-        byte[] data = new byte[16384];
+    /**
+     * Get the body of a response, decompressing it if it was gzipped
+     *
+     * @param content
+     *          The body as read off the network
+     */
+    private static InputStream decode(HttpEntity entity, InputStream content) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        if (encoding != null && "gzip".equalsIgnoreCase(encoding.getValue())) {
+            return new GZIPInputStream(content);
+        }
+        return content;
+    }
 
-        try {
-            while ((nRead = is.read(data, 0, data.length)) != -1) {
-                buffer.write(data, 0, nRead);
+    /**
+     * Read and throw away the rest of a response,
+     * so that its connection can go back to the pool
+     */
+    private static void discard(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                Logger.error("JsonUtil.discard()", e);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+    }
 
-        try {
-            buffer.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Send the validators back, if they came from the same URL
+     *
+     * @return  true if the request was made conditional
+     */
+    private static boolean addConditionalHeaders(HttpGet httpGet, String url, Validators validators) {
+        if (validators == null || !url.equals(validators.url)) {
+            return false;
+        }
+        if (validators.etag != null) {
+            httpGet.addHeader("If-None-Match", validators.etag);
         }
+        if (validators.lastModified != null) {
+            httpGet.addHeader("If-Modified-Since", validators.lastModified);
+        }
+        return validators.etag != null || validators.lastModified != null;
+    }
 
-        return buffer.toByteArray();
+    private static Validators getValidators(HttpResponse response, String url) {
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        return new Validators(url, etag != null ? etag.getValue() : null,
+                lastModified != null ? lastModified.getValue() : null);
     }
 
-    private static InputStream countBytes(InputStream is) {
+    /**
+     * Open a connection to the given URL and let the handler pull
+     * the JSON response directly off the network stream.
+     *
+     * @return  result of the handler, or null if offline or the request failed.
+     *          For non-OK responses, the result of the handler's onHttpError(int)
+     */
+    public static <T> T readJsonStreamFromUrl(Context context, String url, JsonStreamHandler<T> handler) {
+        return readJsonStreamFromUrl(context, url, null, handler);
+    }
 
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    /**
+     * Same as readJsonStreamFromUrl(Context, String, JsonStreamHandler),
+     * but conditional. The validators of an earlier response for the same
+     * URL are sent back, and if the server answers 304 Not Modified, the
+     * handler's onNotModified() is called and nothing is downloaded.
+     * Nothing is saved here, the handler can get the validators of a new
+     * response with getValidators() for the caller to store.
+     *
+     * @param validators
+     *          Validators of an earlier response, or null for an unconditional
+     *          request. Only pass them if the caller still has everything it
+     *          got from that response.
+     */
+    public static <T> T readJsonStreamFromUrl(Context context, String url, Validators validators,
+                                              JsonStreamHandler<T> handler) {
 
-            byte[] buffer = new byte[1024];
-            int len;
-            int count = 0;
-            while ((len = is.read(buffer)) > -1) {
-                baos.write(buffer, 0, len);
-                count++;
-            }
-            baos.flush();
+        T result = null;
 
-            InputStream is1 = new ByteArrayInputStream(baos.toByteArray());
-            InputStream is2 = new ByteArrayInputStream(baos.toByteArray());
+        if (sConnectivity.isConnected(context)) {
+            HttpGet httpGet = createGet(url);
+            boolean conditional = addConditionalHeaders(httpGet, url, validators);
 
-            byte[] bytes = toByteArray(is1);
-            Logger.log("Downloaded " + bytes.length + " bytes of data");
+            JsonReader reader = null;
+            CountingInputStream inputStream = null;
+            long start = SystemClock.elapsedRealtime();
+            long firstByteMillis = 0;
+            try {
 
+                HttpResponse response = getHttpClient().execute(httpGet);
+                firstByteMillis = SystemClock.elapsedRealtime() - start;
+                StatusLine status = response.getStatusLine();
+                if (conditional && status.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    Logger.log("Not modified", url);
+                    discard(response);
+                    return handler.onNotModified();
+                }
 
-            return is2;
+                // Make sure status is OK
+                if (status.getStatusCode() != HttpStatus.SC_OK) {
+                    Logger.log("Status code", status.getStatusCode());
+                    Logger.log("Reason", status.getReasonPhrase());
+                    discard(response);
+                    return handler.onHttpError(status.getStatusCode());
+                }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+                // Bytes are counted before decompressing, json is UTF-8 by default
+                HttpEntity entity = response.getEntity();
+                inputStream = new CountingInputStream(entity.getContent());
+                handler.mInput = inputStream;
+                handler.mValidators = getValidators(response, url);
+                reader = new JsonReader(new InputStreamReader(decode(entity, inputStream), "UTF-8"));
+                result = handler.handle(reader);
+            } catch (Exception e) {
+                Logger.error("JsonUtil.readJsonStreamFromUrl()", e);
+                result = null;
+            } finally {
+                try {
+                    if (reader != null) {
+                        reader.close();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                if (inputStream != null) {
+                    NetworkStats.record(url, inputStream.getCount(), firstByteMillis,
+                            SystemClock.elapsedRealtime() - start);
+                }
+            }
         }
 
-        return is;
+        return result;
     }
 
     public static JSONObject getJsonObjectFromFile(File file) throws JSONException, IOException {
@@ -0,0 +1,61 @@
+package com.moscrop.official.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Totals for every request made through JsonUtil since the app started.
+ * Downloads are counted as they are read, so nothing has to be buffered
+ * or copied to find out how big a response was.
+ */
+public class NetworkStats {
+
+    private static final AtomicLong sRequestCount = new AtomicLong();
+    private static final AtomicLong sByteCount = new AtomicLong();
+    private static final AtomicLong sFirstByteMillis = new AtomicLong();
+    private static final AtomicLong sTotalMillis = new AtomicLong();
+
+    private NetworkStats() {}
+
+    /**
+     * Record a finished request
+     *
+     * @param bytes
+     *          Size of the response body as read off the network
+     * @param firstByteMillis
+     *          Time until the response headers arrived
+     * @param totalMillis
+     *          Time until the body was read
+     */
+    public static void record(String url, long bytes, long firstByteMillis, long totalMillis) {
+        sRequestCount.incrementAndGet();
+        sByteCount.addAndGet(bytes);
+        sFirstByteMillis.addAndGet(firstByteMillis);
+        sTotalMillis.addAndGet(totalMillis);
+        Logger.log("Downloaded " + bytes + " bytes in " + totalMillis + "ms (first byte "
+                + firstByteMillis + "ms) from " + url);
+    }
+
+    public static long getRequestCount() {
+        return sRequestCount.get();
+    }
+
+    public static long getByteCount() {
+        return sByteCount.get();
+    }
+
+    public static long getFirstByteMillis() {
+        return sFirstByteMillis.get();
+    }
+
+    public static long getTotalMillis() {
+        return sTotalMillis.get();
+    }
+
+    /**
+     * Summary of the counters, for logging
+     */
+    public static String getStats() {
+        return getRequestCount() + " requests, " + getByteCount() + " bytes, "
+                + getFirstByteMillis() + "ms to first byte, " + getTotalMillis() + "ms in total";
+    }
+}
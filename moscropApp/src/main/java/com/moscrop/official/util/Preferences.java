@@ -15,6 +15,8 @@ public class Preferences {
         public static final Set<String> TAGS = new HashSet<String>(Arrays.asList(new String[] { "Official" }));
         public static final int LOAD_LIMIT = 24;
         public static final boolean AUTO_REFRESH = true;
+        public static final boolean EXPAND_RECURRENCE_ON_DEVICE = false;
+        public static final int POST_CACHE_SIZE = 1000;
     }
 
     public static class Keys {
@@ -24,6 +26,8 @@ public class Preferences {
         public static final String TAGS = "tag_chooser";
         public static final String LOAD_LIMIT = "load_limit";
         public static final String AUTO_REFRESH = "auto_refresh";
+        public static final String EXPAND_RECURRENCE_ON_DEVICE = "expand_recurrence_on_device"; // Not shown in settings yet
+        public static final String POST_CACHE_SIZE = "post_cache_size";     // Posts whose content is kept offline, not shown in settings yet
     }
 
     public static class App {
@@ -33,6 +37,12 @@ public class Preferences {
         public static class Default {
             public static final long GCAL_LAST_UPDATED = 0;
             public static final String GCAL_VERSION = "no gcal version info";
+            public static final String GCAL_SYNC_TOKEN = null;
+            public static final String GCAL_EVENT_MODE = null;
+            public static final long GCAL_SYNC_LAST_ATTEMPT = 0;
+            public static final long GCAL_SYNC_LAST_DURATION = -1;
+            public static final long GCAL_SYNC_LAST_BYTES = -1;
+            public static final long GCAL_SYNC_LAST_BYTES_SAVED = -1;
             public static final String STAFF_DB_VERSION = "no version info";
             public static final long RSS_LAST_UPDATED = 0;
             public static final String RSS_VERSION = "no rss version info";
@@ -43,8 +53,18 @@ public class Preferences {
         }
 
         public static class Keys {
+            // Stored for each calendar, with ":" and the calendar id appended
             public static final String GCAL_LAST_UPDATED = "gcal_last_updated";
             public static final String GCAL_VERSION = "gcal_version";
+            public static final String GCAL_SYNC_TOKEN = "gcal_sync_token";
+            public static final String GCAL_EVENT_MODE = "gcal_event_mode";         // Whether series were stored expanded or not
+            public static final String GCAL_VALIDATOR_URL = "gcal_validator_url";   // First page the ETag and Last-Modified below came from
+            public static final String GCAL_ETAG = "gcal_etag";
+            public static final String GCAL_LAST_MODIFIED = "gcal_last_modified";
+            public static final String GCAL_SYNC_LAST_ATTEMPT = "gcal_sync_last_attempt";     // When a background sync last started
+            public static final String GCAL_SYNC_LAST_DURATION = "gcal_sync_last_duration";   // How long it took, in ms
+            public static final String GCAL_SYNC_LAST_BYTES = "gcal_sync_last_bytes";         // How much it downloaded
+            public static final String GCAL_SYNC_LAST_BYTES_SAVED = "gcal_sync_last_bytes_saved"; // Estimate of what field masks saved it
             public static final String STAFF_DB_VERSION = "staff_db_version";
             public static final String RSS_LAST_UPDATED = "rss_last_updated";
             public static final String RSS_VERSION = "rss_version";
@@ -57,6 +77,7 @@ public class Preferences {
 
     public static class ParseCacheTracker {
 
+        // Replaced by PostCacheDatabase, only read to move old entries over
         public static final String NAME = "parse_cache_tracker";
 
         public static class Default {
@@ -0,0 +1,150 @@
+package com.moscrop.official.util;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SQLiteOpenHelper for databases shared by the whole app.
+ *
+ * The database is opened once and kept open for the life of the
+ * process, so screens and searches don't pay for reopening the file
+ * and reading the schema every time. Don't close it after using it.
+ *
+ * Write-ahead logging is turned on, so a sync writing in the background
+ * doesn't block the UI reading, and statements that are run often can
+ * be compiled once with getStatement(String). Time spent opening the
+ * database and running queries through query() and rawQuery() is
+ * counted, see getStats().
+ */
+public abstract class SharedDatabaseHelper extends SQLiteOpenHelper {
+
+    private final String mName;
+    private SQLiteDatabase mDatabase;
+    private final HashMap<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>();
+
+    private final AtomicLong mOpenCount = new AtomicLong();
+    private final AtomicLong mOpenMillis = new AtomicLong();
+    private final AtomicLong mQueryCount = new AtomicLong();
+    private final AtomicLong mQueryMillis = new AtomicLong();
+
+    protected SharedDatabaseHelper(Context context, String name, int version) {
+        super(context, name, null, version);
+        mName = name;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * Get the shared connection, opening it the first time
+     */
+    public synchronized SQLiteDatabase getDatabase() {
+        if (mDatabase == null || !mDatabase.isOpen()) {
+            long start = SystemClock.elapsedRealtime();
+            mDatabase = getWritableDatabase();
+            mStatements.clear();
+            long millis = SystemClock.elapsedRealtime() - start;
+            mOpenCount.incrementAndGet();
+            mOpenMillis.addAndGet(millis);
+            Logger.log("Opened " + mName + " in " + millis + "ms");
+        }
+        return mDatabase;
+    }
+
+    /**
+     * Get a compiled statement, compiling it the first time it is used.
+     * Statements aren't thread safe, so synchronize on the statement
+     * while binding and running it.
+     */
+    protected synchronized SQLiteStatement getStatement(String sql) {
+        SQLiteDatabase db = getDatabase();
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Same as SQLiteDatabase.query(), counted in the query stats.
+     * The cursor has already been filled when it is returned.
+     */
+    protected Cursor query(String table, String[] columns, String selection, String[] selectionArgs,
+                           String groupBy, String having, String orderBy) {
+        long start = SystemClock.elapsedRealtime();
+        Cursor c = getDatabase().query(table, columns, selection, selectionArgs, groupBy, having, orderBy);
+        c.getCount();
+        recordQuery(start);
+        return c;
+    }
+
+    /**
+     * Same as SQLiteDatabase.rawQuery(), counted in the query stats.
+     * The cursor has already been filled when it is returned.
+     */
+    protected Cursor rawQuery(String sql, String[] selectionArgs) {
+        long start = SystemClock.elapsedRealtime();
+        Cursor c = getDatabase().rawQuery(sql, selectionArgs);
+        c.getCount();
+        recordQuery(start);
+        return c;
+    }
+
+    /**
+     * Count a query that didn't go through query() or rawQuery()
+     *
+     * @param start
+     *          SystemClock.elapsedRealtime() when the query started
+     */
+    protected void recordQuery(long start) {
+        mQueryCount.incrementAndGet();
+        mQueryMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+    }
+
+    public long getOpenCount() {
+        return mOpenCount.get();
+    }
+
+    public long getOpenMillis() {
+        return mOpenMillis.get();
+    }
+
+    public long getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    public long getQueryMillis() {
+        return mQueryMillis.get();
+    }
+
+    /**
+     * Summary of the timing counters, for logging
+     */
+    public String getStats() {
+        return mName + ": opened " + getOpenCount() + " times in " + getOpenMillis() + "ms, "
+                + getQueryCount() + " queries in " + getQueryMillis() + "ms";
+    }
+
+    @Override
+    public synchronized void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mDatabase = null;
+        super.close();
+    }
+}
@@ -0,0 +1,273 @@
+package com.moscrop.official.calendar;
+
+import android.util.JsonReader;
+
+import com.moscrop.official.util.Benchmark;
+import com.moscrop.official.util.DateUtil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times parsing a 1000 event Google Calendar page (events_1000.json,
+ * a full response as requested before the fields mask) through
+ * CalendarParser.readCalendarFeed(), against the org.json path it
+ * replaced. Reports for each:
+ *
+ * - time per page
+ * - bytes allocated per page, from the JVM's per thread allocation count
+ * - heap held while parsing, above what was live before. The old path
+ *   peaks once every event is built, holding the whole response as a
+ *   String, a JSONObject tree and a list of events at once. The new one
+ *   holds an event at a time, and is measured half way through the page.
+ *
+ * Both start from the response bytes in memory and hand over the same
+ * events. Dates are parsed with DateUtil in both, its gain over
+ * SimpleDateFormat is measured on its own by DateUtilBenchmark.
+ */
+public class CalendarFeedBenchmark {
+
+    private static final String FIXTURE = "events_1000.json";
+    private static final String CALENDAR_ID = "moscroppanthers@gmail.com";
+
+    private static final int ITERATIONS = 20;
+
+    // Page position at which live heap is measured, -1 when not measuring
+    private static int sProbeAt = -1;
+    private static long sProbedHeap;
+
+    // Keeps what the old path holds reachable while it's measured
+    private static Object[] sHeld;
+
+    private interface Parser {
+        List<GCalEvent> parse(byte[] body) throws Exception;
+    }
+
+    /**
+     * Collects events for comparing the two paths, or only counts them
+     */
+    private static class Events implements CalendarParser.EventHandler {
+        final List<GCalEvent> events;
+        int count = 0;
+
+        Events(boolean keep) {
+            events = keep ? new ArrayList<GCalEvent>() : null;
+        }
+
+        @Override
+        public void onEvent(GCalEvent event) {
+            if (events != null) {
+                events.add(event);
+            }
+            if (++count == sProbeAt) {
+                sProbedHeap = Benchmark.usedHeap();
+            }
+        }
+
+        @Override
+        public void onEventCancelled(String id) {
+        }
+
+        @Override
+        public void onInstanceCancelled(String recurringEventId, long originalStartTime) {
+        }
+    }
+
+    private static List<GCalEvent> parseStreaming(byte[] body, boolean keep) throws IOException {
+        Events events = new Events(keep);
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+        try {
+            if (CalendarParser.readCalendarFeed(reader, CALENDAR_ID, events) == null) {
+                throw new IllegalStateException("Feed not read");
+            }
+        } finally {
+            reader.close();
+        }
+        return events.events;
+    }
+
+    /**
+     * How a page was parsed before readCalendarFeed(): JsonUtil read
+     * the response line by line into a String for a JSONObject, and
+     * CalendarParser copied its items to an array and then to a list of events
+     */
+    private static List<GCalEvent> parseWithJsonObject(byte[] body) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"), 8);
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            sb.append(line).append("\n");
+        }
+        JSONObject root = new JSONObject(sb.toString());
+
+        if (root.getString("updated") == null) {
+            throw new IllegalStateException("Feed not read");
+        }
+        JSONArray items = root.getJSONArray("items");
+        JSONObject[] itemObjects = new JSONObject[items.length()];
+        for (int i = 0; i < items.length(); i++) {
+            itemObjects[i] = items.getJSONObject(i);
+        }
+
+        List<GCalEvent> events = new ArrayList<GCalEvent>();
+        for (JSONObject itemObject : itemObjects) {
+            events.add(jsonItemToEvent(itemObject));
+        }
+        if (sProbeAt != -1) {
+            sHeld = new Object[] { sb, root, itemObjects, events };
+            sProbedHeap = Benchmark.usedHeap();
+            sHeld = null;
+        }
+        return events;
+    }
+
+    private static String getStringOrNull(JSONObject object, String name) {
+        try {
+            return object.getString(name);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    private static long getTime(JSONObject itemObject, String name) {
+        try {
+            JSONObject time = itemObject.getJSONObject(name);
+            String s = getStringOrNull(time, "dateTime");
+            return DateUtil.parseRfc3339(s != null ? s : time.getString("date"));
+        } catch (JSONException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The old CalendarParser.jsonItemToEvent(), reading the fields readEvent() reads
+     */
+    private static GCalEvent jsonItemToEvent(JSONObject itemObject) {
+        long originalStartTime = itemObject.has("originalStartTime") ? getTime(itemObject, "originalStartTime") : -1;
+        return new GCalEvent(CALENDAR_ID, getStringOrNull(itemObject, "id"), getStringOrNull(itemObject, "etag"),
+                getStringOrNull(itemObject, "summary"), getStringOrNull(itemObject, "description"),
+                getStringOrNull(itemObject, "location"), getTime(itemObject, "start"), getTime(itemObject, "end"),
+                null, null, getStringOrNull(itemObject, "recurringEventId"), originalStartTime);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static byte[] readFixture() throws IOException {
+        InputStream in = CalendarFeedBenchmark.class.getResourceAsStream(FIXTURE);
+        if (in == null) {
+            throw new IOException(FIXTURE + " not on the classpath");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16384];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return  { ms per page, bytes allocated per page, bytes held while parsing }
+     */
+    private static double[] measure(final Parser parser, final byte[] body, int eventCount) throws Exception {
+        double nanos = Benchmark.time(ITERATIONS, new Benchmark.Task() {
+            @Override
+            public long run() throws Exception {
+                List<GCalEvent> events = parser.parse(body);
+                return events != null ? events.size() : 0;
+            }
+        });
+
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            parser.parse(body);
+        }
+        long allocated = (allocatedBytes() - allocatedBefore) / ITERATIONS;
+
+        long before = Benchmark.usedHeap();
+        sProbeAt = eventCount / 2;
+        parser.parse(body);
+        sProbeAt = -1;
+        long live = sProbedHeap - before;
+
+        return new double[] { nanos / 1e6, allocated, live };
+    }
+
+    private static void report(String name, double[] result) {
+        System.out.println(String.format("%-10s %6.2f ms/page, %5.1f MB allocated/page, %5.2f MB held while parsing",
+                name, result[0], result[1] / 1e6, result[2] / 1e6));
+    }
+
+    private static boolean same(GCalEvent a, GCalEvent b) {
+        return a.startTime == b.startTime && a.endTime == b.endTime
+                && a.id.equals(b.id) && a.etag.equals(b.etag) && a.title.equals(b.title)
+                && (a.description == null ? b.description == null : a.description.equals(b.description))
+                && (a.location == null ? b.location == null : a.location.equals(b.location))
+                && (a.recurringEventId == null ? b.recurringEventId == null
+                        : a.recurringEventId.equals(b.recurringEventId))
+                && a.originalStartTime == b.originalStartTime;
+    }
+
+    /**
+     * The unit tests' android.jar only has stubs of JsonReader and
+     * org.json, so run this with the real classes from Robolectric's
+     * android-all jar for API 22 (org.robolectric:android-all:5.1.1_r9-robolectric-1),
+     * after the test and app classes:
+     *
+     *   java -cp build/intermediates/classes/test/stable/debug:build/intermediates/classes/stable/debug:src/test/resources:android-all-5.1.1_r9-robolectric-1.jar \
+     *       com.moscrop.official.calendar.CalendarFeedBenchmark
+     *
+     * android-all's JsonReader calls System.arraycopy(char[], int, char[], int, int),
+     * which only Android's libcore has. On a desktop JVM, first change that
+     * method descriptor in android/util/JsonReader.class to the Object one,
+     * ([CI[CII)V to (Ljava/lang/Object;ILjava/lang/Object;II)V, and put the
+     * patched class ahead of the jar. Allocation counts need a HotSpot JVM.
+     */
+    public static void main(String[] args) throws Exception {
+        final byte[] body = readFixture();
+
+        Parser jsonObject = new Parser() {
+            @Override
+            public List<GCalEvent> parse(byte[] body) throws Exception {
+                return parseWithJsonObject(body);
+            }
+        };
+        Parser streaming = new Parser() {
+            @Override
+            public List<GCalEvent> parse(byte[] body) throws Exception {
+                return parseStreaming(body, false);
+            }
+        };
+
+        // Both have to agree before their timings mean anything
+        List<GCalEvent> expected = parseWithJsonObject(body);
+        List<GCalEvent> actual = parseStreaming(body, true);
+        if (expected.size() != actual.size()) {
+            throw new IllegalStateException("Paths read " + expected.size() + " and " + actual.size() + " events");
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            if (!same(expected.get(i), actual.get(i))) {
+                throw new IllegalStateException("Paths disagree on event " + i);
+            }
+        }
+
+        System.out.println(String.format("%d events, %.0f KB", expected.size(), body.length / 1e3));
+        report("org.json", measure(jsonObject, body, expected.size()));
+        report("JsonReader", measure(streaming, body, expected.size()));
+    }
+}
@@ -0,0 +1,316 @@
+package com.moscrop.official.calendar;
+
+import android.app.Application;
+import android.content.Context;
+import android.preference.PreferenceManager;
+
+import com.moscrop.official.BuildConfig;
+import com.moscrop.official.util.JsonUtil;
+import com.moscrop.official.util.Preferences;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs against a local stand-in for the Google Calendar API, which
+ * answers each request with the next response queued by the test
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, application = Application.class)
+public class CalendarParserTest {
+
+    private static final String CALENDAR_ID = "school@group.calendar.google.com";
+
+    private static class Response {
+        final int status;
+        final String body;
+        final String etag;
+
+        Response(int status, String body, String etag) {
+            this.status = status;
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    private static class Request {
+        final String query;
+        final String ifNoneMatch;
+
+        Request(String query, String ifNoneMatch) {
+            this.query = query;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        boolean hasParam(String name, String value) {
+            return ("&" + query + "&").contains("&" + name + "=" + value + "&");
+        }
+
+        boolean hasParam(String name) {
+            return ("&" + query).contains("&" + name + "=");
+        }
+    }
+
+    private final LinkedList<Response> mResponses = new LinkedList<Response>();
+    private final List<Request> mRequests = new ArrayList<Request>();
+
+    private HttpServer mServer;
+    private Context mContext;
+    private volatile boolean mConnected = true;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.application;
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Response response;
+                synchronized (mRequests) {
+                    mRequests.add(new Request(exchange.getRequestURI().getRawQuery(),
+                            exchange.getRequestHeaders().getFirst("If-None-Match")));
+                    response = mResponses.poll();
+                }
+                if (response == null) {
+                    response = new Response(500, null, null);
+                }
+                if (response.etag != null) {
+                    exchange.getResponseHeaders().set("ETag", response.etag);
+                }
+                if (response.body == null) {
+                    exchange.sendResponseHeaders(response.status, -1);
+                } else {
+                    byte[] body = response.body.getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                    exchange.sendResponseHeaders(response.status, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+
+        CalendarParser.setCalendarApiUrl("http://127.0.0.1:" + mServer.getAddress().getPort() + "/calendars/");
+        JsonUtil.setConnectivity(new JsonUtil.Connectivity() {
+            @Override
+            public boolean isConnected(Context context) {
+                return mConnected;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+        CalendarParser.setCalendarApiUrl(null);
+        JsonUtil.setConnectivity(null);
+        CalendarDatabase.closeInstance();
+    }
+
+    private void respond(String body) {
+        mResponses.add(new Response(200, body, null));
+    }
+
+    private void respond(String body, String etag) {
+        mResponses.add(new Response(200, body, etag));
+    }
+
+    private void respondWithStatus(int status) {
+        mResponses.add(new Response(status, null, null));
+    }
+
+    private Request getRequest(int index) {
+        synchronized (mRequests) {
+            return mRequests.get(index);
+        }
+    }
+
+    private int getRequestCount() {
+        synchronized (mRequests) {
+            return mRequests.size();
+        }
+    }
+
+    /**
+     * A one hour event on the given day of September 2015
+     */
+    private static String event(String id, int day) {
+        String date = String.format("2015-09-%02d", day);
+        return "{\"id\":\"" + id + "\",\"etag\":\"\\\"" + id + "\\\"\",\"status\":\"confirmed\","
+                + "\"summary\":\"Event " + id + "\","
+                + "\"start\":{\"dateTime\":\"" + date + "T08:30:00-07:00\"},"
+                + "\"end\":{\"dateTime\":\"" + date + "T09:30:00-07:00\"}}";
+    }
+
+    /**
+     * A series with an RDATE line, which Recurrence can't expand
+     */
+    private static String unsupportedSeries(String id) {
+        return "{\"id\":\"" + id + "\",\"etag\":\"\\\"" + id + "\\\"\",\"status\":\"confirmed\","
+                + "\"summary\":\"Series " + id + "\","
+                + "\"start\":{\"dateTime\":\"2015-09-10T08:30:00-07:00\",\"timeZone\":\"America/Vancouver\"},"
+                + "\"end\":{\"dateTime\":\"2015-09-10T09:30:00-07:00\"},"
+                + "\"recurrence\":[\"RDATE:20150917T153000Z\"]}";
+    }
+
+    /**
+     * @param nextPageToken
+     *          Token of the next page, or null if this is the last one
+     * @param nextSyncToken
+     *          Sync token given with the last page
+     */
+    private static String page(String nextPageToken, String nextSyncToken, String... items) {
+        StringBuilder page = new StringBuilder("{\"updated\":\"2015-09-10T12:00:00.000Z\",");
+        if (nextPageToken != null) {
+            page.append("\"nextPageToken\":\"").append(nextPageToken).append("\",");
+        }
+        if (nextSyncToken != null) {
+            page.append("\"nextSyncToken\":\"").append(nextSyncToken).append("\",");
+        }
+        page.append("\"items\":[");
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0) page.append(',');
+            page.append(items[i]);
+        }
+        return page.append("]}").toString();
+    }
+
+    private List<String> getStoredIds() {
+        List<String> ids = new ArrayList<String>();
+        for (GCalEvent event : CalendarDatabase.getInstance(mContext).getAllEvents()) {
+            ids.add(event.id);
+        }
+        return ids;
+    }
+
+    private static List<String> ids(String... ids) {
+        List<String> list = new ArrayList<String>();
+        for (String id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    @Test
+    public void readsEveryPage() {
+        respond(page("p2", null, event("a", 10), event("b", 11)));
+        respond(page("p3", null, event("c", 12)));
+        respond(page(null, "s1", event("d", 13)));
+
+        assertTrue(CalendarParser.parseAndSaveAll(mContext, CALENDAR_ID));
+
+        assertEquals(3, getRequestCount());
+        assertFalse(getRequest(0).hasParam("pageToken"));
+        assertTrue(getRequest(1).hasParam("pageToken", "p2"));
+        assertTrue(getRequest(2).hasParam("pageToken", "p3"));
+        assertEquals(ids("a", "b", "c", "d"), getStoredIds());
+
+        // The next sync starts from the sync token of the last page
+        respond(page(null, "s2"));
+        CalendarParser.parseAndSave(mContext, CALENDAR_ID);
+        assertTrue(getRequest(3).hasParam("syncToken", "s1"));
+    }
+
+    @Test
+    public void keepsNothingFromAnUnfinishedLoad() {
+        respond(page("p2", null, event("a", 10)));
+        respondWithStatus(503);
+
+        assertFalse(CalendarParser.parseAndSaveAll(mContext, CALENDAR_ID));
+
+        assertEquals(2, getRequestCount());
+        assertEquals(ids(), getStoredIds());
+    }
+
+    @Test
+    public void skipsTheDownloadWhenNotModified() {
+        respond(page(null, "s1", event("a", 10)));
+        CalendarParser.parseAndSaveAll(mContext, CALENDAR_ID);
+
+        // Only updates are conditional, so validators come from the first page of one
+        respond(page(null, "s1"), "\"v1\"");
+        assertFalse(CalendarParser.parseAndSave(mContext, CALENDAR_ID));
+        assertNull(getRequest(1).ifNoneMatch);
+
+        respondWithStatus(304);
+        assertFalse(CalendarParser.parseAndSave(mContext, CALENDAR_ID));
+        assertTrue(getRequest(2).hasParam("syncToken", "s1"));
+        assertEquals("\"v1\"", getRequest(2).ifNoneMatch);
+        assertEquals(ids("a"), getStoredIds());
+
+        // Nothing changed, so the sync token and validators still stand
+        respond(page(null, "s2", event("b", 11)));
+        assertTrue(CalendarParser.parseAndSave(mContext, CALENDAR_ID));
+        assertTrue(getRequest(3).hasParam("syncToken", "s1"));
+        assertEquals("\"v1\"", getRequest(3).ifNoneMatch);
+        assertEquals(ids("a", "b"), getStoredIds());
+    }
+
+    @Test
+    public void reloadsEverythingWhenTheSyncTokenExpired() {
+        respond(page(null, "s1", event("a", 10), event("b", 11)));
+        CalendarParser.parseAndSaveAll(mContext, CALENDAR_ID);
+
+        respondWithStatus(410);
+        respond(page(null, "s2", event("b", 11), event("c", 12)));
+        assertTrue(CalendarParser.parseAndSave(mContext, CALENDAR_ID));
+
+        assertEquals(3, getRequestCount());
+        assertTrue(getRequest(1).hasParam("syncToken", "s1"));
+        assertFalse(getRequest(2).hasParam("syncToken"));
+        assertEquals(ids("b", "c"), getStoredIds());
+    }
+
+    @Test
+    public void loadsSingleEventsWhenASeriesCantBeExpanded() {
+        PreferenceManager.getDefaultSharedPreferences(mContext).edit()
+                .putBoolean(Preferences.Keys.EXPAND_RECURRENCE_ON_DEVICE, true)
+                .commit();
+
+        respond(page(null, "s1", event("a", 9), unsupportedSeries("r")));
+        respond(page(null, "s2", event("a", 9), event("r_1", 10), event("r_2", 17)));
+        assertTrue(CalendarParser.parseAndSaveAll(mContext, CALENDAR_ID));
+
+        assertEquals(2, getRequestCount());
+        assertTrue(getRequest(0).hasParam("singleEvents", "false"));
+        assertTrue(getRequest(1).hasParam("singleEvents", "true"));
+        assertFalse(getRequest(1).hasParam("syncToken"));
+        assertEquals(ids("a", "r_1", "r_2"), getStoredIds());
+
+        // Updates carry on with single events until the next full load
+        respond(page(null, "s3"));
+        CalendarParser.parseAndSave(mContext, CALENDAR_ID);
+        assertTrue(getRequest(2).hasParam("singleEvents", "true"));
+        assertTrue(getRequest(2).hasParam("syncToken", "s2"));
+    }
+
+    @Test
+    public void makesNoRequestsOffline() {
+        mConnected = false;
+        assertFalse(CalendarParser.parseAndSaveAll(mContext, CALENDAR_ID));
+        assertEquals(0, getRequestCount());
+    }
+}
@@ -0,0 +1,125 @@
+package com.moscrop.official.calendar;
+
+import com.moscrop.official.util.Clock;
+import com.moscrop.official.util.Util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CalendarSyncTest {
+
+    private static final int WIFI = Util.CONNECTION_TYPE_WIFI;
+    private static final int DATA = Util.CONNECTION_TYPE_DATA;
+    private static final int NONE = Util.CONNECTION_TYPE_NONE;
+
+    // Time of the last sync attempt in every test
+    private static final long LAST_ATTEMPT = 1441900000000L;
+
+    private static final long MINUTE = 60 * 1000;
+
+    private static class FakeClock implements Clock {
+        long mNow;
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+    }
+
+    private FakeClock mClock;
+    private CalendarSync mSync;
+
+    @Before
+    public void setUp() {
+        mClock = new FakeClock();
+        mSync = new CalendarSync(null, mClock, new String[0]);
+    }
+
+    /**
+     * Set the clock to some time after the last attempt
+     */
+    private void setElapsed(long millis) {
+        mClock.mNow = LAST_ATTEMPT + millis;
+    }
+
+    private boolean isDue(int connectionType, boolean charging, boolean requested) {
+        return mSync.isDue(connectionType, charging, requested, false, false, LAST_ATTEMPT);
+    }
+
+    @Test
+    public void waitsTwelveHoursOnData() {
+        setElapsed(CalendarSync.DEFAULT_INTERVAL - 1);
+        assertFalse(isDue(DATA, false, false));
+        setElapsed(CalendarSync.DEFAULT_INTERVAL);
+        assertTrue(isDue(DATA, false, false));
+        setElapsed(CalendarSync.DEFAULT_INTERVAL + 60 * MINUTE);
+        assertTrue(isDue(DATA, false, false));
+    }
+
+    @Test
+    public void waitsThreeHoursOnWifi() {
+        setElapsed(CalendarSync.OPPORTUNISTIC_INTERVAL - 1);
+        assertFalse(isDue(WIFI, false, false));
+        setElapsed(CalendarSync.OPPORTUNISTIC_INTERVAL);
+        assertTrue(isDue(WIFI, false, false));
+    }
+
+    @Test
+    public void waitsThreeHoursWhenCharging() {
+        setElapsed(CalendarSync.OPPORTUNISTIC_INTERVAL - 1);
+        assertFalse(isDue(DATA, true, false));
+        setElapsed(CalendarSync.OPPORTUNISTIC_INTERVAL);
+        assertTrue(isDue(DATA, true, false));
+    }
+
+    @Test
+    public void waitsFifteenMinutesWhenRequested() {
+        setElapsed(CalendarSync.REQUESTED_INTERVAL - 1);
+        assertFalse(isDue(DATA, false, true));
+        assertFalse(isDue(WIFI, true, true));
+        setElapsed(CalendarSync.REQUESTED_INTERVAL);
+        assertTrue(isDue(DATA, false, true));
+        assertTrue(isDue(WIFI, true, true));
+    }
+
+    @Test
+    public void syncsWhenTheClockWasSetBack() {
+        setElapsed(-1);
+        assertTrue(isDue(DATA, false, false));
+    }
+
+    @Test
+    public void syncsAnEmptyDatabaseRightAway() {
+        setElapsed(0);
+        assertTrue(mSync.isDue(DATA, false, false, false, true, LAST_ATTEMPT));
+        assertTrue(mSync.isDue(WIFI, false, false, false, true, LAST_ATTEMPT));
+        assertTrue(mSync.isDue(WIFI, false, false, true, true, LAST_ATTEMPT));
+    }
+
+    @Test
+    public void neverSyncsOffline() {
+        setElapsed(CalendarSync.DEFAULT_INTERVAL * 10);
+        assertFalse(mSync.isDue(NONE, true, true, false, false, LAST_ATTEMPT));
+        assertFalse(mSync.isDue(NONE, true, true, false, true, LAST_ATTEMPT));
+    }
+
+    @Test
+    public void wifiOnlySkipsMobileData() {
+        setElapsed(CalendarSync.DEFAULT_INTERVAL * 10);
+        assertFalse(mSync.isDue(DATA, true, true, true, false, LAST_ATTEMPT));
+
+        // Even with nothing stored yet
+        assertFalse(mSync.isDue(DATA, true, true, true, true, LAST_ATTEMPT));
+    }
+
+    @Test
+    public void wifiOnlyStillSyncsOnWifi() {
+        setElapsed(CalendarSync.OPPORTUNISTIC_INTERVAL - 1);
+        assertFalse(mSync.isDue(WIFI, false, false, true, false, LAST_ATTEMPT));
+        setElapsed(CalendarSync.OPPORTUNISTIC_INTERVAL);
+        assertTrue(mSync.isDue(WIFI, false, false, true, false, LAST_ATTEMPT));
+    }
+}
@@ -0,0 +1,206 @@
+package com.moscrop.official.calendar;
+
+import com.moscrop.official.util.Benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Times DayDeque against the ArrayList of days plus HashMap<Integer, Day>
+ * that EventListAdapter used before, over a school year of days.
+ *
+ * Each run loads the days a month at a time the way the events screen
+ * does: the month around today first, then earlier months added to the
+ * front and later months to the end in turn, three events per day.
+ * Every day is then looked up by day number, the way jumping to a date
+ * does.
+ */
+public class DayDequeBenchmark {
+
+    // 2015-09-08 to 2016-06-30, school days and weekends with events
+    private static final int FIRST_DAY = 16686;
+    private static final int DAYS = 300;
+    private static final int EVENTS_PER_DAY = 3;
+    private static final int DAYS_PER_MONTH = 30;
+
+    private static final int ITERATIONS = 5000;
+
+    private interface Days {
+        EventListAdapter.Day getOrCreate(int dayNumber, boolean addToFront);
+        int positionOf(int dayNumber);
+        int size();
+    }
+
+    /**
+     * How EventListAdapter kept its days before DayDeque
+     */
+    private static class BoxedDays implements Days {
+        private final List<EventListAdapter.Day> mDays = new ArrayList<EventListAdapter.Day>();
+        private final HashMap<Integer, EventListAdapter.Day> mDayMap = new HashMap<>();
+
+        @Override
+        public EventListAdapter.Day getOrCreate(int dayNumber, boolean addToFront) {
+            EventListAdapter.Day day = mDayMap.get(dayNumber);
+            if (day == null) {
+                day = new EventListAdapter.Day(dayNumber);
+                mDayMap.put(dayNumber, day);
+                if (addToFront && (mDays.isEmpty() || dayNumber < mDays.get(0).dayNumber)) {
+                    mDays.add(0, day);
+                } else if (!addToFront && (mDays.isEmpty() || dayNumber > mDays.get(mDays.size() - 1).dayNumber)) {
+                    mDays.add(day);
+                } else {
+                    mDays.add(positionOf(dayNumber), day);
+                }
+            }
+            return day;
+        }
+
+        @Override
+        public int positionOf(int dayNumber) {
+            int lo = 0;
+            int hi = mDays.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mDays.get(mid).dayNumber < dayNumber) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        @Override
+        public int size() {
+            return mDays.size();
+        }
+    }
+
+    private static class DequeDays implements Days {
+        private final DayDeque mDays = new DayDeque();
+
+        @Override
+        public EventListAdapter.Day getOrCreate(int dayNumber, boolean addToFront) {
+            return mDays.getOrCreate(dayNumber);
+        }
+
+        @Override
+        public int positionOf(int dayNumber) {
+            return mDays.positionOf(dayNumber);
+        }
+
+        @Override
+        public int size() {
+            return mDays.size();
+        }
+    }
+
+    private interface Factory {
+        Days create();
+    }
+
+    /**
+     * Load a year of days a month at a time, outward from the middle
+     */
+    private static void load(Days days) {
+        int middle = DAYS / 2 / DAYS_PER_MONTH * DAYS_PER_MONTH;
+        int before = middle;
+        int after = middle;
+        while (before > 0 || after < DAYS) {
+            if (after < DAYS) {
+                int end = Math.min(DAYS, after + DAYS_PER_MONTH);
+                for (int day = after; day < end; day++) {
+                    for (int event = 0; event < EVENTS_PER_DAY; event++) {
+                        days.getOrCreate(FIRST_DAY + day, false);
+                    }
+                }
+                after = end;
+            }
+            if (before > 0) {
+                // Earlier months arrive latest event first
+                int start = Math.max(0, before - DAYS_PER_MONTH);
+                for (int day = before - 1; day >= start; day--) {
+                    for (int event = 0; event < EVENTS_PER_DAY; event++) {
+                        days.getOrCreate(FIRST_DAY + day, true);
+                    }
+                }
+                before = start;
+            }
+        }
+    }
+
+    private static long lookUp(Days days) {
+        long positions = 0;
+        for (int day = 0; day < DAYS; day++) {
+            positions += days.positionOf(FIRST_DAY + day);
+        }
+        return positions;
+    }
+
+    /**
+     * @return  microseconds per year
+     */
+    private static double time(final Factory factory, boolean lookUpOnly) throws Exception {
+        final Days loaded = factory.create();
+        load(loaded);
+        if (loaded.size() != DAYS) {
+            throw new IllegalStateException("Loaded " + loaded.size() + " days");
+        }
+
+        Benchmark.Task task;
+        if (lookUpOnly) {
+            task = new Benchmark.Task() {
+                @Override
+                public long run() {
+                    return lookUp(loaded);
+                }
+            };
+        } else {
+            task = new Benchmark.Task() {
+                @Override
+                public long run() {
+                    Days days = factory.create();
+                    load(days);
+                    return days.size();
+                }
+            };
+        }
+        return Benchmark.time(ITERATIONS, task) / 1000;
+    }
+
+    private static void report(String name, double oldMicros, double newMicros) {
+        System.out.println(String.format("%-8s HashMap+ArrayList %7.2f us, DayDeque %7.2f us (%.1fx)",
+                name, oldMicros, newMicros, oldMicros / newMicros));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Factory boxed = new Factory() {
+            @Override
+            public Days create() {
+                return new BoxedDays();
+            }
+        };
+        Factory deque = new Factory() {
+            @Override
+            public Days create() {
+                return new DequeDays();
+            }
+        };
+
+        // Both have to agree before their timings mean anything
+        Days boxedDays = boxed.create();
+        Days dequeDays = deque.create();
+        load(boxedDays);
+        load(dequeDays);
+        for (int day = -1; day <= DAYS; day++) {
+            if (boxedDays.positionOf(FIRST_DAY + day) != dequeDays.positionOf(FIRST_DAY + day)) {
+                throw new IllegalStateException("Positions disagree");
+            }
+        }
+
+        System.out.println(DAYS + " days, " + DAYS * EVENTS_PER_DAY + " events");
+        report("load", time(boxed, false), time(deque, false));
+        report("lookup", time(boxed, true), time(deque, true));
+    }
+}
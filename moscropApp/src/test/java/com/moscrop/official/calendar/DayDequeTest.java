@@ -0,0 +1,202 @@
+package com.moscrop.official.calendar;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class DayDequeTest {
+
+    // 2015-09-08, first day of school
+    private static final int FIRST_DAY = 16686;
+
+    private static void assertDays(DayDeque deque, int... dayNumbers) {
+        assertEquals(dayNumbers.length, deque.size());
+        for (int i = 0; i < dayNumbers.length; i++) {
+            assertEquals("position " + i, dayNumbers[i], deque.get(i).dayNumber);
+        }
+    }
+
+    private static void assertSorted(DayDeque deque) {
+        for (int i = 1; i < deque.size(); i++) {
+            if (deque.get(i - 1).dayNumber >= deque.get(i).dayNumber) {
+                fail("Out of order at position " + i);
+            }
+        }
+    }
+
+    @Test
+    public void startsEmpty() {
+        DayDeque deque = new DayDeque();
+        assertEquals(0, deque.size());
+        assertEquals(0, deque.positionOf(FIRST_DAY));
+    }
+
+    @Test
+    public void returnsTheSameDayForTheSameDayNumber() {
+        DayDeque deque = new DayDeque();
+        EventListAdapter.Day day = deque.getOrCreate(FIRST_DAY);
+        deque.getOrCreate(FIRST_DAY - 1);
+        deque.getOrCreate(FIRST_DAY + 1);
+        assertSame(day, deque.getOrCreate(FIRST_DAY));
+        assertEquals(3, deque.size());
+    }
+
+    @Test
+    public void growsWhenAddingLast() {
+        DayDeque deque = new DayDeque();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(FIRST_DAY + i, deque.getOrCreate(FIRST_DAY + i).dayNumber);
+            assertEquals(i + 1, deque.size());
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(FIRST_DAY + i, deque.get(i).dayNumber);
+        }
+    }
+
+    @Test
+    public void growsWhenAddingFirst() {
+        DayDeque deque = new DayDeque();
+        for (int i = 0; i < 1000; i++) {
+            deque.getOrCreate(FIRST_DAY - i);
+            assertEquals(FIRST_DAY - i, deque.get(0).dayNumber);
+            assertEquals(FIRST_DAY, deque.get(deque.size() - 1).dayNumber);
+        }
+        assertEquals(1000, deque.size());
+        assertSorted(deque);
+    }
+
+    @Test
+    public void growsWhenAddingAtBothEnds() {
+        // Loading earlier and later months in turn, so the
+        // head and the tail each run out of room several times
+        DayDeque deque = new DayDeque();
+        deque.getOrCreate(FIRST_DAY);
+        for (int i = 1; i <= 500; i++) {
+            deque.getOrCreate(FIRST_DAY - i);
+            deque.getOrCreate(FIRST_DAY + i);
+        }
+        assertEquals(1001, deque.size());
+        for (int i = 0; i < deque.size(); i++) {
+            assertEquals(FIRST_DAY - 500 + i, deque.get(i).dayNumber);
+        }
+    }
+
+    @Test
+    public void insertsInTheMiddle() {
+        DayDeque deque = new DayDeque();
+        deque.getOrCreate(FIRST_DAY);
+        deque.getOrCreate(FIRST_DAY + 10);
+        deque.getOrCreate(FIRST_DAY + 5);
+        deque.getOrCreate(FIRST_DAY + 7);
+        deque.getOrCreate(FIRST_DAY + 1);
+        assertDays(deque, FIRST_DAY, FIRST_DAY + 1, FIRST_DAY + 5, FIRST_DAY + 7, FIRST_DAY + 10);
+    }
+
+    @Test
+    public void insertsInTheMiddleWhenTheTailIsFull() {
+        // Fill up to the end of the arrays, then insert in the middle
+        // so the days before it have to shift toward the head instead
+        DayDeque deque = new DayDeque();
+        for (int i = 0; i < 8; i++) {
+            deque.getOrCreate(FIRST_DAY + 2 * i);
+        }
+        deque.getOrCreate(FIRST_DAY + 3);
+        deque.getOrCreate(FIRST_DAY + 9);
+        assertDays(deque, FIRST_DAY, FIRST_DAY + 2, FIRST_DAY + 3, FIRST_DAY + 4, FIRST_DAY + 6,
+                FIRST_DAY + 8, FIRST_DAY + 9, FIRST_DAY + 10, FIRST_DAY + 12, FIRST_DAY + 14);
+    }
+
+    @Test
+    public void insertsInTheMiddleWhenBothEndsAreFull() {
+        DayDeque deque = new DayDeque();
+        for (int i = 0; i < 8; i++) {
+            deque.getOrCreate(FIRST_DAY + 2 * i);
+            deque.getOrCreate(FIRST_DAY - 2 * i - 2);
+        }
+        assertEquals(16, deque.size());
+        deque.getOrCreate(FIRST_DAY - 1);
+        assertEquals(17, deque.size());
+        assertEquals(FIRST_DAY - 1, deque.get(deque.positionOf(FIRST_DAY - 1)).dayNumber);
+        assertSorted(deque);
+    }
+
+    @Test
+    public void findsPositionsByDayNumber() {
+        DayDeque deque = new DayDeque();
+        deque.getOrCreate(FIRST_DAY + 10);
+        deque.getOrCreate(FIRST_DAY + 20);
+        deque.getOrCreate(FIRST_DAY);
+
+        assertEquals(0, deque.positionOf(FIRST_DAY - 5));
+        assertEquals(0, deque.positionOf(FIRST_DAY));
+        assertEquals(1, deque.positionOf(FIRST_DAY + 1));
+        assertEquals(1, deque.positionOf(FIRST_DAY + 10));
+        assertEquals(2, deque.positionOf(FIRST_DAY + 11));
+        assertEquals(2, deque.positionOf(FIRST_DAY + 20));
+        assertEquals(3, deque.positionOf(FIRST_DAY + 21));
+    }
+
+    @Test
+    public void getChecksBounds() {
+        DayDeque deque = new DayDeque();
+        deque.getOrCreate(FIRST_DAY);
+        for (int position : new int[] { -1, 1 }) {
+            try {
+                deque.get(position);
+                fail("Expected IndexOutOfBoundsException for " + position);
+            } catch (IndexOutOfBoundsException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void canBeReusedAfterClear() {
+        DayDeque deque = new DayDeque();
+        for (int i = 0; i < 100; i++) {
+            deque.getOrCreate(FIRST_DAY + i);
+        }
+        deque.clear();
+        assertEquals(0, deque.size());
+
+        deque.getOrCreate(FIRST_DAY + 1);
+        deque.getOrCreate(FIRST_DAY);
+        deque.getOrCreate(FIRST_DAY + 2);
+        assertDays(deque, FIRST_DAY, FIRST_DAY + 1, FIRST_DAY + 2);
+    }
+
+    @Test
+    public void matchesASortedMap() {
+        Random random = new Random(2015);
+        DayDeque deque = new DayDeque();
+        TreeMap<Integer, EventListAdapter.Day> expected = new TreeMap<Integer, EventListAdapter.Day>();
+
+        for (int i = 0; i < 5000; i++) {
+            int dayNumber = FIRST_DAY + random.nextInt(600) - 300;
+            EventListAdapter.Day day = deque.getOrCreate(dayNumber);
+            EventListAdapter.Day old = expected.get(dayNumber);
+            if (old != null) {
+                assertSame(old, day);
+            } else {
+                expected.put(dayNumber, day);
+            }
+        }
+
+        List<EventListAdapter.Day> days = new ArrayList<EventListAdapter.Day>(expected.values());
+        assertEquals(days.size(), deque.size());
+        for (int i = 0; i < days.size(); i++) {
+            assertSame(days.get(i), deque.get(i));
+        }
+        for (int dayNumber = FIRST_DAY - 310; dayNumber < FIRST_DAY + 310; dayNumber++) {
+            Integer ceiling = expected.ceilingKey(dayNumber);
+            int position = ceiling == null ? days.size() : expected.headMap(ceiling).size();
+            assertEquals(position, deque.positionOf(dayNumber));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.moscrop.official.calendar;
+
+import com.moscrop.official.util.Benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times EventIntervalIndex.query() at 1k, 10k and 100k events, against
+ * checking every event the way the old overlap query scanned the whole
+ * calendar table. The scan runs over arrays in memory here, so it is a
+ * lower bound on what the SQL scan cost.
+ */
+public class EventIntervalIndexBenchmark {
+
+    private static final int[] SIZES = { 1000, 10000, 100000 };
+    private static final int QUERIES = 2000;
+
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long DAY = 24 * HOUR;
+
+    private interface Lookup {
+        long[] query(long lowerBound, long upperBound);
+    }
+
+    /**
+     * Events over a year, sorted by start time. Most are an hour or
+     * two long and one in fifty lasts a few days.
+     */
+    private static long[][] makeEvents(Random random, int size) {
+        long[] ids = new long[size];
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = (long) (random.nextDouble() * 365 * DAY);
+        }
+        Arrays.sort(starts);
+        for (int i = 0; i < size; i++) {
+            ids[i] = i + 1;
+            ends[i] = starts[i] + (random.nextInt(50) == 0 ? (1 + random.nextInt(5)) * DAY
+                    : (1 + random.nextInt(4)) * 30 * 60 * 1000L);
+        }
+        return new long[][] { ids, starts, ends };
+    }
+
+    private static long[] scan(long[] ids, long[] starts, long[] ends, long lowerBound, long upperBound) {
+        long[] matches = new long[16];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (EventIntervalIndex.overlaps(starts[i], ends[i], lowerBound, upperBound)) {
+                if (count == matches.length) {
+                    matches = Arrays.copyOf(matches, count * 2);
+                }
+                matches[count++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    /**
+     * @return  nanoseconds per query
+     */
+    private static double time(final Lookup lookup, final long[] lowerBounds, final long length) throws Exception {
+        return Benchmark.time(QUERIES, new Benchmark.Task() {
+            private int mNext = 0;
+
+            @Override
+            public long run() {
+                long lowerBound = lowerBounds[mNext];
+                mNext = (mNext + 1) % QUERIES;
+                return lookup.query(lowerBound, lowerBound + length).length;
+            }
+        });
+    }
+
+    private static void report(int size, String window, double scanNanos, double indexNanos) {
+        System.out.println(String.format("%6d events, %-5s scan %9.1f us/query, index %7.2f us/query (%.0fx)",
+                size, window, scanNanos / 1000, indexNanos / 1000, scanNanos / indexNanos));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(2015);
+
+        for (int size : SIZES) {
+            long[][] events = makeEvents(random, size);
+            final long[] ids = events[0];
+            final long[] starts = events[1];
+            final long[] ends = events[2];
+
+            long buildStart = System.nanoTime();
+            final EventIntervalIndex index = new EventIntervalIndex(ids, starts, ends);
+            long buildNanos = System.nanoTime() - buildStart;
+
+            Lookup scan = new Lookup() {
+                @Override
+                public long[] query(long lowerBound, long upperBound) {
+                    return scan(ids, starts, ends, lowerBound, upperBound);
+                }
+            };
+            Lookup indexed = new Lookup() {
+                @Override
+                public long[] query(long lowerBound, long upperBound) {
+                    return index.query(lowerBound, upperBound);
+                }
+            };
+
+            long[] lowerBounds = new long[QUERIES];
+            for (int i = 0; i < QUERIES; i++) {
+                lowerBounds[i] = (long) (random.nextDouble() * 365 * DAY);
+            }
+
+            // Both have to agree before their timings mean anything
+            for (int i = 0; i < QUERIES; i++) {
+                if (!Arrays.equals(scan.query(lowerBounds[i], lowerBounds[i] + 31 * DAY),
+                        indexed.query(lowerBounds[i], lowerBounds[i] + 31 * DAY))) {
+                    throw new IllegalStateException("Index and scan disagree");
+                }
+            }
+
+            System.out.println(String.format("%6d events, index built in %.2f ms", size, buildNanos / 1e6));
+            report(size, "day", time(scan, lowerBounds, DAY), time(indexed, lowerBounds, DAY));
+            report(size, "month", time(scan, lowerBounds, 31 * DAY), time(indexed, lowerBounds, 31 * DAY));
+        }
+    }
+}
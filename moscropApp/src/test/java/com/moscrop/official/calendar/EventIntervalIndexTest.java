@@ -0,0 +1,156 @@
+package com.moscrop.official.calendar;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EventIntervalIndexTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+    private static final long DAY = 24 * HOUR;
+
+    /**
+     * Events sorted by start time, as CalendarDatabase reads them
+     */
+    private static class Events {
+        final long[] ids;
+        final long[] starts;
+        final long[] ends;
+
+        Events(long[] starts, long[] ends) {
+            this.ids = new long[starts.length];
+            this.starts = starts;
+            this.ends = ends;
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = 100 + i;
+            }
+        }
+
+        EventIntervalIndex index() {
+            return new EventIntervalIndex(ids, starts, ends);
+        }
+
+        /**
+         * What the index has to answer, by checking every event
+         */
+        long[] scan(long lowerBound, long upperBound) {
+            long[] matches = new long[ids.length];
+            int count = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (EventIntervalIndex.overlaps(starts[i], ends[i], lowerBound, upperBound)) {
+                    matches[count++] = ids[i];
+                }
+            }
+            return Arrays.copyOf(matches, count);
+        }
+    }
+
+    /**
+     * Random events over a year, mostly an hour or so long, some
+     * lasting several days and some with no length at all
+     */
+    private static Events randomEvents(Random random, int size) {
+        long[] starts = new long[size];
+        long[] ends = new long[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = (random.nextInt(365 * 24 * 4)) * 15 * 60 * 1000L;
+        }
+        Arrays.sort(starts);
+        for (int i = 0; i < size; i++) {
+            int kind = random.nextInt(10);
+            long length;
+            if (kind == 0) {
+                length = 0;
+            } else if (kind == 1) {
+                length = (1 + random.nextInt(14)) * DAY;
+            } else {
+                length = (1 + random.nextInt(8)) * 15 * 60 * 1000L;
+            }
+            ends[i] = starts[i] + length;
+        }
+        return new Events(starts, ends);
+    }
+
+    private static void assertMatchesScan(Events events, EventIntervalIndex index, long lowerBound,
+                                          long upperBound) {
+        String window = lowerBound + ".." + upperBound;
+        assertArrayEquals(window, events.scan(lowerBound, upperBound), index.query(lowerBound, upperBound));
+    }
+
+    @Test
+    public void emptyIndex() {
+        Events events = new Events(new long[0], new long[0]);
+        EventIntervalIndex index = events.index();
+        assertEquals(0, index.size());
+        assertEquals(0, index.query(0, DAY).length);
+    }
+
+    @Test
+    public void findsEventsSpanningTheEdgesOfTheWindow() {
+        long[] starts = { 0,       9 * HOUR,  10 * HOUR, 11 * HOUR, 13 * HOUR, 14 * HOUR };
+        long[] ends =   { 2 * DAY, 11 * HOUR, 12 * HOUR, 15 * HOUR, 14 * HOUR, 16 * HOUR };
+        Events events = new Events(starts, ends);
+        EventIntervalIndex index = events.index();
+
+        // Window 10:00 to 14:00. The first event contains it, the second
+        // starts before and ends inside it, the fourth starts inside and
+        // ends after it. The last starts right at its end, so it's left out.
+        assertArrayEquals(new long[] { 100, 101, 102, 103, 104 }, index.query(10 * HOUR, 14 * HOUR));
+        assertMatchesScan(events, index, 10 * HOUR, 14 * HOUR);
+    }
+
+    @Test
+    public void eventsEndingAtTheStartOfTheWindowDontOverlap() {
+        long[] starts = { 8 * HOUR,  9 * HOUR };
+        long[] ends =   { 10 * HOUR, 11 * HOUR };
+        Events events = new Events(starts, ends);
+        assertArrayEquals(new long[] { 101 }, events.index().query(10 * HOUR, 12 * HOUR));
+    }
+
+    @Test
+    public void zeroLengthEvents() {
+        long[] starts = { 9 * HOUR, 10 * HOUR, 11 * HOUR, 12 * HOUR, 13 * HOUR };
+        long[] ends =   { 9 * HOUR, 10 * HOUR, 11 * HOUR, 12 * HOUR, 13 * HOUR };
+        Events events = new Events(starts, ends);
+        EventIntervalIndex index = events.index();
+
+        // Reminders at either edge of the window still show in it
+        assertArrayEquals(new long[] { 101, 102, 103 }, index.query(10 * HOUR, 12 * HOUR));
+        assertMatchesScan(events, index, 10 * HOUR, 12 * HOUR);
+        assertMatchesScan(events, index, 11 * HOUR, 11 * HOUR);
+        assertMatchesScan(events, index, 0, 9 * HOUR);
+    }
+
+    @Test
+    public void eventsWithTheSameStart() {
+        long[] starts = { 10 * HOUR, 10 * HOUR, 10 * HOUR, 10 * HOUR };
+        long[] ends =   { 10 * HOUR, 11 * HOUR, 3 * DAY,   12 * HOUR };
+        Events events = new Events(starts, ends);
+        EventIntervalIndex index = events.index();
+        assertMatchesScan(events, index, 11 * HOUR, 12 * HOUR);
+        assertMatchesScan(events, index, 2 * DAY, 2 * DAY + HOUR);
+        assertMatchesScan(events, index, 0, 10 * HOUR);
+    }
+
+    @Test
+    public void matchesAScanOfRandomEvents() {
+        Random random = new Random(2015);
+        for (int size : new int[] { 1, 2, 3, 7, 100, 1000 }) {
+            Events events = randomEvents(random, size);
+            EventIntervalIndex index = events.index();
+            assertEquals(size, index.size());
+
+            for (int i = 0; i < 500; i++) {
+                // Windows on whole hours, so they often line up
+                // exactly with the start or end of some event
+                long lowerBound = random.nextInt(370 * 24) * HOUR - 5 * DAY;
+                long upperBound = lowerBound + random.nextInt(24 * 40) * HOUR;
+                assertMatchesScan(events, index, lowerBound, upperBound);
+            }
+        }
+    }
+}
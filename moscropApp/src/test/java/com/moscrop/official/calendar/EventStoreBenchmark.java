@@ -0,0 +1,131 @@
+package com.moscrop.official.calendar;
+
+import com.moscrop.official.util.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the heap retained by N loaded events as an EventStore,
+ * against the List<GCalEvent> the events list kept before.
+ *
+ * Events are made up like the school calendar's: a few dozen titles
+ * and locations repeated by recurring events, and a description on
+ * some. Every string is a fresh copy, the way each Cursor row gives
+ * one. The old list queries read every column, so the List<GCalEvent>
+ * figures are shown with descriptions and, to separate the two
+ * savings, without them.
+ *
+ * Retained heap is the used heap after a few System.gc() calls with
+ * the events still referenced, less the used heap before building
+ * them, so run with nothing else going on. Sizes are for the JVM it
+ * runs on, not Dalvik or ART, but the difference between the layouts
+ * carries over.
+ */
+public class EventStoreBenchmark {
+
+    private static final int[] SIZES = { 1000, 10000, 50000 };
+
+    private static final int TITLES = 60;
+    private static final int LOCATIONS = 20;
+
+    // Keeps what is measured reachable
+    private static Object sRetained;
+
+    private interface Layout {
+        Object build(Random random, int size);
+    }
+
+    private static String title(Random random) {
+        return new String(("Event title number " + random.nextInt(TITLES)).toCharArray());
+    }
+
+    private static String location(Random random) {
+        return random.nextInt(3) == 0 ? null
+                : new String(("Room " + (100 + random.nextInt(LOCATIONS))).toCharArray());
+    }
+
+    private static String description(Random random) {
+        if (random.nextInt(4) != 0) {
+            return null;
+        }
+        StringBuilder description = new StringBuilder();
+        int words = 10 + random.nextInt(40);
+        for (int i = 0; i < words; i++) {
+            description.append("word").append(random.nextInt(100)).append(' ');
+        }
+        return description.toString();
+    }
+
+    private static String id(Random random) {
+        return Long.toString(random.nextLong() & Long.MAX_VALUE, 36) + "_20150908T153000Z";
+    }
+
+    /**
+     * @return  retained bytes per event
+     */
+    private static double measure(Layout layout, int size) {
+        sRetained = null;
+        long before = Benchmark.usedHeap();
+        sRetained = layout.build(new Random(size), size);
+        long after = Benchmark.usedHeap();
+        return (double) (after - before) / size;
+    }
+
+    public static void main(String[] args) {
+        Layout objects = new Layout() {
+            @Override
+            public Object build(Random random, int size) {
+                List<GCalEvent> events = new ArrayList<GCalEvent>();
+                for (int i = 0; i < size; i++) {
+                    long start = 1441700000000L + i * 3600000L;
+                    events.add(new GCalEvent(new String("school@group.calendar.google.com".toCharArray()),
+                            id(random), new String("\"2891563528442000\"".toCharArray()), title(random),
+                            description(random), location(random), start, start + 3600000L));
+                }
+                return events;
+            }
+        };
+        Layout objectsWithoutDescriptions = new Layout() {
+            @Override
+            public Object build(Random random, int size) {
+                List<GCalEvent> events = new ArrayList<GCalEvent>();
+                for (int i = 0; i < size; i++) {
+                    long start = 1441700000000L + i * 3600000L;
+                    events.add(new GCalEvent(new String("school@group.calendar.google.com".toCharArray()),
+                            id(random), new String("\"2891563528442000\"".toCharArray()), title(random),
+                            null, location(random), start, start + 3600000L));
+                }
+                return events;
+            }
+        };
+        Layout store = new Layout() {
+            @Override
+            public Object build(Random random, int size) {
+                EventStore events = new EventStore();
+                for (int i = 0; i < size; i++) {
+                    long start = 1441700000000L + i * 3600000L;
+                    events.add(i + 1, title(random), location(random), start, start + 3600000L);
+                }
+                return events;
+            }
+        };
+
+        // Warm up, so class loading isn't counted
+        measure(objects, 1000);
+        measure(objectsWithoutDescriptions, 1000);
+        measure(store, 1000);
+
+        for (int size : SIZES) {
+            double withDescriptions = measure(objects, size);
+            double withoutDescriptions = measure(objectsWithoutDescriptions, size);
+            double columns = measure(store, size);
+            System.out.println(String.format("%6d events: List<GCalEvent> %6.0f B/event (%5.0f without"
+                            + " descriptions), EventStore %4.0f B/event, %.1f MB vs %.1f MB",
+                    size, withDescriptions, withoutDescriptions, columns,
+                    withDescriptions * size / 1e6, columns * size / 1e6));
+        }
+        sRetained = null;
+    }
+}
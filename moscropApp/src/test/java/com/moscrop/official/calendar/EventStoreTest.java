@@ -0,0 +1,163 @@
+package com.moscrop.official.calendar;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class EventStoreTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    /**
+     * A copy of a string that isn't the same instance, like
+     * each row of a Cursor gives for the same text
+     */
+    private static String copy(String value) {
+        return new String(value.toCharArray());
+    }
+
+    @Test
+    public void storesEveryColumn() {
+        EventStore store = new EventStore();
+        assertEquals(0, store.add(7, "Pro-D Day", "Gym", 10 * HOUR, 11 * HOUR));
+        assertEquals(1, store.add(8, "Exams", null, 12 * HOUR, 15 * HOUR));
+
+        assertEquals(2, store.size());
+        assertEquals(7, store.getRowId(0));
+        assertEquals("Pro-D Day", store.getTitle(0));
+        assertEquals("Gym", store.getLocation(0));
+        assertEquals(10 * HOUR, store.getStartTime(0));
+        assertEquals(11 * HOUR, store.getEndTime(0));
+        assertEquals(8, store.getRowId(1));
+        assertNull(store.getLocation(1));
+    }
+
+    @Test
+    public void poolsEqualStrings() {
+        EventStore store = new EventStore();
+        String title = "Band Practice";
+        store.add(1, title, "Room 101", 0, HOUR);
+        store.add(2, copy(title), copy("Room 101"), HOUR, 2 * HOUR);
+        store.add(3, copy(title), "Library", 2 * HOUR, 3 * HOUR);
+
+        assertNotSame(title, copy(title));
+        assertSame(store.getTitle(0), store.getTitle(1));
+        assertSame(store.getTitle(0), store.getTitle(2));
+        assertSame(store.getLocation(0), store.getLocation(1));
+        assertEquals("Library", store.getLocation(2));
+    }
+
+    @Test
+    public void poolsAcrossTitlesAndLocations() {
+        EventStore store = new EventStore();
+        store.add(1, "Gym", null, 0, HOUR);
+        store.add(2, "Volleyball", copy("Gym"), 0, HOUR);
+        assertSame(store.getTitle(0), store.getLocation(1));
+    }
+
+    @Test
+    public void poolsCopiedEvents() {
+        EventStore a = new EventStore();
+        EventStore b = new EventStore();
+        a.add(1, "Assembly", "Theatre", 0, HOUR);
+        b.add(2, copy("Assembly"), copy("Theatre"), HOUR, 2 * HOUR);
+
+        EventStore merged = EventStore.merge(a, b);
+        assertSame(merged.getTitle(0), merged.getTitle(1));
+        assertSame(merged.getLocation(0), merged.getLocation(1));
+    }
+
+    @Test
+    public void growsEveryColumn() {
+        EventStore store = new EventStore();
+        for (int i = 0; i < 1000; i++) {
+            store.add(i, "Title " + (i % 10), i % 2 == 0 ? null : "Room " + (i % 7), i * HOUR, i * HOUR + 1);
+        }
+        assertEquals(1000, store.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, store.getRowId(i));
+            assertEquals("Title " + (i % 10), store.getTitle(i));
+            assertEquals(i % 2 == 0 ? null : "Room " + (i % 7), store.getLocation(i));
+            assertEquals(i * HOUR, store.getStartTime(i));
+            assertEquals(i * HOUR + 1, store.getEndTime(i));
+        }
+    }
+
+    @Test
+    public void growsFromASmallCapacity() {
+        EventStore store = new EventStore(0);
+        for (int i = 0; i < 40; i++) {
+            store.add(i, "Event", null, i, i + 1);
+        }
+        assertEquals(40, store.size());
+        assertEquals(39, store.getRowId(39));
+    }
+
+    @Test
+    public void checksIndices() {
+        EventStore store = new EventStore(100);
+        store.add(1, "Event", null, 0, HOUR);
+        for (int index : new int[] { -1, 1, 99 }) {
+            try {
+                store.getStartTime(index);
+                fail("Expected IndexOutOfBoundsException for " + index);
+            } catch (IndexOutOfBoundsException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void clearEmptiesTheStoreAndThePool() {
+        EventStore store = new EventStore();
+        String title = "Grad";
+        store.add(1, title, null, 0, HOUR);
+        store.clear();
+        assertEquals(0, store.size());
+
+        // A new copy is kept after clearing, not the one from before
+        String newTitle = copy(title);
+        store.add(2, newTitle, null, 0, HOUR);
+        assertEquals(1, store.size());
+        assertSame(newTitle, store.getTitle(0));
+    }
+
+    @Test
+    public void sortsByStartKeepingTheOrderOfEqualStarts() {
+        EventStore store = new EventStore();
+        store.add(1, "c", null, 3 * HOUR, 4 * HOUR);
+        store.add(2, "a", null, HOUR, 2 * HOUR);
+        store.add(3, "b", null, 2 * HOUR, 3 * HOUR);
+        store.add(4, "a2", null, HOUR, 5 * HOUR);
+
+        EventStore sorted = store.sortedByStart();
+        assertEquals(4, sorted.size());
+        assertEquals(2, sorted.getRowId(0));
+        assertEquals(4, sorted.getRowId(1));
+        assertEquals(3, sorted.getRowId(2));
+        assertEquals(1, sorted.getRowId(3));
+        assertEquals(5 * HOUR, sorted.getEndTime(1));
+    }
+
+    @Test
+    public void mergesSortedStores() {
+        EventStore a = new EventStore();
+        a.add(1, "a", null, HOUR, 2 * HOUR);
+        a.add(2, "a", null, 3 * HOUR, 4 * HOUR);
+        EventStore b = new EventStore();
+        b.add(3, "b", null, 0, HOUR);
+        b.add(4, "b", null, 3 * HOUR, 4 * HOUR);
+        b.add(5, "b", null, 5 * HOUR, 6 * HOUR);
+
+        EventStore merged = EventStore.merge(a, b);
+        long[] expected = { 3, 1, 2, 4, 5 };
+        assertEquals(expected.length, merged.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], merged.getRowId(i));
+        }
+        assertEquals(0, EventStore.merge(new EventStore(), new EventStore()).size());
+    }
+}
@@ -0,0 +1,303 @@
+package com.moscrop.official.calendar;
+
+import com.moscrop.official.util.DateUtil;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Expands series like the ones the school calendar has and compares
+ * the result with the instances Google Calendar should list for them
+ * with singleEvents=true, written the way Google writes each instance's
+ * start.dateTime (or start.date for all day events).
+ */
+public class RecurrenceTest {
+
+    private static final TimeZone VANCOUVER = TimeZone.getTimeZone("America/Vancouver");
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(VANCOUVER);
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    private static long time(String rfc3339) {
+        long time = DateUtil.parseRfc3339(rfc3339);
+        assertEquals(rfc3339, false, time == DateUtil.INVALID_TIME);
+        return time;
+    }
+
+    /**
+     * Expand a series in Vancouver over a window, and compare
+     * with the instance start times Google lists in it
+     */
+    private static void assertInstancesInWindow(String recurrence, String start, String windowStart,
+                                                String windowEnd, String... expected) {
+        Recurrence r = Recurrence.parse(recurrence, VANCOUVER);
+        assertNotNull(recurrence, r);
+        long[] actual = r.expand(time(start), HOUR, time(windowStart), time(windowEnd), null);
+        assertArrayEquals(utc(expected), utc(actual));
+    }
+
+    /**
+     * Expand a series that ends, over all of time
+     */
+    private static void assertInstances(String recurrence, String start, String... expected) {
+        assertInstancesInWindow(recurrence, start, "2000-01-01T00:00:00Z", "2100-01-01T00:00:00Z", expected);
+    }
+
+    // Compared as UTC strings so that failures are readable
+    private static String[] utc(String[] times) {
+        long[] millis = new long[times.length];
+        for (int i = 0; i < times.length; i++) {
+            millis[i] = time(times[i]);
+        }
+        return utc(millis);
+    }
+
+    private static String[] utc(long[] times) {
+        String[] strings = new String[times.length];
+        for (int i = 0; i < times.length; i++) {
+            strings[i] = DateUtil.formatRfc3339(times[i]);
+        }
+        return strings;
+    }
+
+    @Test
+    public void weeklyByDay() {
+        assertInstances("RRULE:FREQ=WEEKLY;BYDAY=TU,TH;COUNT=6",
+                "2015-09-08T08:30:00-07:00",
+                "2015-09-08T08:30:00-07:00",
+                "2015-09-10T08:30:00-07:00",
+                "2015-09-15T08:30:00-07:00",
+                "2015-09-17T08:30:00-07:00",
+                "2015-09-22T08:30:00-07:00",
+                "2015-09-24T08:30:00-07:00");
+    }
+
+    @Test
+    public void everyOtherWeekByDay() {
+        assertInstances("RRULE:FREQ=WEEKLY;WKST=SU;INTERVAL=2;BYDAY=MO,WE,FR;UNTIL=20151009T065959Z",
+                "2015-09-14T15:00:00-07:00",
+                "2015-09-14T15:00:00-07:00",
+                "2015-09-16T15:00:00-07:00",
+                "2015-09-18T15:00:00-07:00",
+                "2015-09-28T15:00:00-07:00",
+                "2015-09-30T15:00:00-07:00",
+                "2015-10-02T15:00:00-07:00");
+    }
+
+    @Test
+    public void monthlyNthWeekday() {
+        // Second Tuesday, across the end of daylight saving on 2015-11-01
+        assertInstances("RRULE:FREQ=MONTHLY;BYDAY=2TU;COUNT=5",
+                "2015-09-08T19:00:00-07:00",
+                "2015-09-08T19:00:00-07:00",
+                "2015-10-13T19:00:00-07:00",
+                "2015-11-10T19:00:00-08:00",
+                "2015-12-08T19:00:00-08:00",
+                "2016-01-12T19:00:00-08:00");
+    }
+
+    @Test
+    public void monthlyLastWeekday() {
+        assertInstances("RRULE:FREQ=MONTHLY;BYDAY=-1FR;UNTIL=20151231T235959Z",
+                "2015-09-25T12:00:00-07:00",
+                "2015-09-25T12:00:00-07:00",
+                "2015-10-30T12:00:00-07:00",
+                "2015-11-27T12:00:00-08:00",
+                "2015-12-25T12:00:00-08:00");
+    }
+
+    @Test
+    public void count() {
+        assertInstances("RRULE:FREQ=DAILY;COUNT=3",
+                "2015-09-30T08:30:00-07:00",
+                "2015-09-30T08:30:00-07:00",
+                "2015-10-01T08:30:00-07:00",
+                "2015-10-02T08:30:00-07:00");
+    }
+
+    @Test
+    public void untilIncludesAnInstanceStartingAtIt() {
+        assertInstances("RRULE:FREQ=WEEKLY;UNTIL=20151006T153000Z",
+                "2015-09-15T08:30:00-07:00",
+                "2015-09-15T08:30:00-07:00",
+                "2015-09-22T08:30:00-07:00",
+                "2015-09-29T08:30:00-07:00",
+                "2015-10-06T08:30:00-07:00");
+    }
+
+    @Test
+    public void untilDateIncludesTheWholeDay() {
+        // All day series repeat in the local time zone
+        assertInstances("RRULE:FREQ=WEEKLY;BYDAY=MO,FR;UNTIL=20151012",
+                "2015-10-02",
+                "2015-10-02",
+                "2015-10-05",
+                "2015-10-09",
+                "2015-10-12");
+    }
+
+    @Test
+    public void countStopsInTheWindow() {
+        // The count runs from the start of the series, not the window
+        assertInstancesInWindow("RRULE:FREQ=DAILY;COUNT=10",
+                "2015-09-01T08:30:00-07:00",
+                "2015-09-08T00:00:00-07:00", "2015-09-30T00:00:00-07:00",
+                "2015-09-08T08:30:00-07:00",
+                "2015-09-09T08:30:00-07:00",
+                "2015-09-10T08:30:00-07:00");
+    }
+
+    @Test
+    public void exdateWithTzid() {
+        assertInstances("EXDATE;TZID=America/Vancouver:20150922T083000,20151013T083000\n"
+                        + "RRULE:FREQ=WEEKLY;BYDAY=TU;COUNT=6",
+                "2015-09-15T08:30:00-07:00",
+                "2015-09-15T08:30:00-07:00",
+                "2015-09-29T08:30:00-07:00",
+                "2015-10-06T08:30:00-07:00",
+                "2015-10-20T08:30:00-07:00");
+    }
+
+    @Test
+    public void exdateInOtherTimeZones() {
+        // The same times given in UTC and in another zone
+        assertInstances("RRULE:FREQ=WEEKLY;BYDAY=TU;COUNT=6\n"
+                        + "EXDATE:20150922T153000Z\n"
+                        + "EXDATE;TZID=America/Toronto:20151013T113000",
+                "2015-09-15T08:30:00-07:00",
+                "2015-09-15T08:30:00-07:00",
+                "2015-09-29T08:30:00-07:00",
+                "2015-10-06T08:30:00-07:00",
+                "2015-10-20T08:30:00-07:00");
+    }
+
+    @Test
+    public void allDayExdate() {
+        assertInstances("EXDATE;VALUE=DATE:20151012\n"
+                        + "RRULE:FREQ=WEEKLY;BYDAY=MO;COUNT=4",
+                "2015-10-05",
+                "2015-10-05",
+                "2015-10-19",
+                "2015-10-26");
+    }
+
+    @Test
+    public void keepsTheWallClockTimeAcrossTheEndOfDaylightSaving() {
+        assertInstances("RRULE:FREQ=DAILY;UNTIL=20151103T065959Z",
+                "2015-10-30T08:30:00-07:00",
+                "2015-10-30T08:30:00-07:00",
+                "2015-10-31T08:30:00-07:00",
+                "2015-11-01T08:30:00-08:00",
+                "2015-11-02T08:30:00-08:00");
+    }
+
+    @Test
+    public void keepsTheWallClockTimeAcrossTheStartOfDaylightSaving() {
+        assertInstances("RRULE:FREQ=WEEKLY;BYDAY=SU,WE;COUNT=5",
+                "2016-03-02T18:00:00-08:00",
+                "2016-03-02T18:00:00-08:00",
+                "2016-03-06T18:00:00-08:00",
+                "2016-03-09T18:00:00-08:00",
+                "2016-03-13T18:00:00-07:00",
+                "2016-03-16T18:00:00-07:00");
+    }
+
+    @Test
+    public void allDayAcrossDaylightSaving() {
+        assertInstances("RRULE:FREQ=WEEKLY;COUNT=3",
+                "2015-10-25",
+                "2015-10-25",
+                "2015-11-01",
+                "2015-11-08");
+    }
+
+    @Test
+    public void windowFarIntoASeriesThatNeverEnds() {
+        // 2016-03-13 is the start of daylight saving
+        assertInstancesInWindow("RRULE:FREQ=WEEKLY;BYDAY=TU",
+                "2015-09-08T08:30:00-07:00",
+                "2016-03-01T00:00:00-08:00", "2016-03-22T00:00:00-07:00",
+                "2016-03-01T08:30:00-08:00",
+                "2016-03-08T08:30:00-08:00",
+                "2016-03-15T08:30:00-07:00");
+    }
+
+    @Test
+    public void windowIncludesInstancesStillRunning() {
+        // Instances are an hour long, the one at 08:30 is still running at 09:00
+        assertInstancesInWindow("RRULE:FREQ=DAILY;COUNT=3",
+                "2015-09-30T08:30:00-07:00",
+                "2015-10-01T09:00:00-07:00", "2015-10-02T08:30:00-07:00",
+                "2015-10-01T08:30:00-07:00");
+    }
+
+    @Test
+    public void leavesOutExcludedInstances() {
+        Recurrence r = Recurrence.parse("RRULE:FREQ=DAILY;COUNT=4", VANCOUVER);
+        long[] excluded = { time("2015-10-01T08:30:00-07:00") };
+        long[] actual = r.expand(time("2015-09-30T08:30:00-07:00"), HOUR,
+                time("2015-09-01T00:00:00Z"), time("2015-11-01T00:00:00Z"), excluded);
+        assertArrayEquals(utc(new String[] {
+                "2015-09-30T08:30:00-07:00",
+                "2015-10-02T08:30:00-07:00",
+                "2015-10-03T08:30:00-07:00" }), utc(actual));
+    }
+
+    @Test
+    public void startIsTheFirstInstanceEvenIfTheRuleDoesntMatchIt() {
+        // Starts on a Monday, the first instance still counts toward COUNT
+        assertInstances("RRULE:FREQ=WEEKLY;BYDAY=TU,TH;COUNT=3",
+                "2015-09-07T08:30:00-07:00",
+                "2015-09-07T08:30:00-07:00",
+                "2015-09-08T08:30:00-07:00",
+                "2015-09-10T08:30:00-07:00");
+        assertInstances("RRULE:FREQ=MONTHLY;BYDAY=2TU;COUNT=2",
+                "2015-09-01T19:00:00-07:00",
+                "2015-09-01T19:00:00-07:00",
+                "2015-09-08T19:00:00-07:00");
+        assertInstances("RRULE:FREQ=WEEKLY;BYDAY=TU;COUNT=1",
+                "2015-09-07T08:30:00-07:00",
+                "2015-09-07T08:30:00-07:00");
+    }
+
+    @Test
+    public void lastStart() {
+        Recurrence r = Recurrence.parse("RRULE:FREQ=WEEKLY;BYDAY=TU,TH;COUNT=3", VANCOUVER);
+        assertEquals(time("2015-09-10T08:30:00-07:00"), r.getLastStart(time("2015-09-07T08:30:00-07:00")));
+
+        r = Recurrence.parse("RRULE:FREQ=WEEKLY;UNTIL=20151006T153000Z", VANCOUVER);
+        assertEquals(time("2015-10-06T08:30:00-07:00"), r.getLastStart(time("2015-09-15T08:30:00-07:00")));
+
+        r = Recurrence.parse("RRULE:FREQ=WEEKLY;BYDAY=TU", VANCOUVER);
+        assertEquals(Long.MAX_VALUE, r.getLastStart(time("2015-09-08T08:30:00-07:00")));
+    }
+
+    @Test
+    public void rejectsRulesThatArentSupported() {
+        assertNull(Recurrence.parse("RRULE:FREQ=MONTHLY;BYDAY=MO;BYSETPOS=-1", VANCOUVER));
+        assertNull(Recurrence.parse("RRULE:FREQ=WEEKLY\nRRULE:FREQ=DAILY", VANCOUVER));
+        assertNull(Recurrence.parse("RDATE:20150921T083000\nRRULE:FREQ=WEEKLY", VANCOUVER));
+        assertNull(Recurrence.parse("RRULE:FREQ=HOURLY", VANCOUVER));
+        assertNull(Recurrence.parse("EXDATE:20150921T083000", VANCOUVER));
+    }
+}
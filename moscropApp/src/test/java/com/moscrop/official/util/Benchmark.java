@@ -0,0 +1,76 @@
+package com.moscrop.official.util;
+
+/**
+ * Timing loop shared by the *Benchmark classes in the test sources.
+ *
+ * Benchmarks are run by hand rather than with the unit tests. Run a
+ * benchmark's main() from Android Studio, or with java on the test
+ * classpath, and compare the figures it prints.
+ *
+ * These aren't JMH benchmarks because JMH needs its annotation processor
+ * run over the benchmark classes. The Android plugin this app builds
+ * with doesn't run processors over unit test sources, and the JMH
+ * gradle plugin only applies to plain Java modules. The code measured
+ * lives in the app module.
+ */
+public final class Benchmark {
+
+    public static final int ROUNDS = 5;
+
+    // Keeps the JIT from dropping the work as dead code
+    private static volatile long sSink;
+
+    public interface Task {
+
+        /**
+         * Run the code being timed once
+         *
+         * @return  anything computed from its result, so it can't be skipped
+         */
+        long run() throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Run a task iterations times in each of ROUNDS rounds, after a
+     * round to warm up the JIT
+     *
+     * @return  time of the fastest round, in nanoseconds per iteration
+     */
+    public static double time(int iterations, Task task) throws Exception {
+        long sink = 0;
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += task.run();
+            }
+            // Round 0 warms up
+            if (round > 0) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        sSink += sink;
+        return (double) best / iterations;
+    }
+
+    /**
+     * Used heap after a few garbage collections, the lowest of them
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,94 @@
+package com.moscrop.official.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Times DateUtil.parseRfc3339() against the SimpleDateFormat parsing it
+ * replaced, on the kinds of dates a Google Calendar feed has: a dateTime
+ * with an offset for timed events and a date for all day events.
+ */
+public class DateUtilBenchmark {
+
+    private static final int ITERATIONS = 200000;
+
+    private static final String DATE_TIME = "2015-09-10T08:30:00-07:00";
+    private static final String DATE = "2015-09-10";
+
+    // The JVM's SimpleDateFormat only reads offsets without the colon,
+    // which Android's did read. The old path is timed on this form.
+    private static final String DATE_TIME_NO_COLON = "2015-09-10T08:30:00-0700";
+
+    private interface Parser {
+        long parse(String s);
+    }
+
+    /**
+     * How CalendarParser parsed event times before parseRfc3339(),
+     * through DateUtil.parseRCF339Date(String, boolean)
+     */
+    private static Date parseWithSimpleDateFormat(String dateStr, boolean dateOnly) {
+        try {
+            if (dateStr.endsWith("Z")) {
+                SimpleDateFormat noTimeZoneFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+                return noTimeZoneFormat.parse(dateStr);
+            } else if (!dateOnly) {
+                SimpleDateFormat withTimeZoneFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZZZZ");
+                return withTimeZoneFormat.parse(dateStr);
+            } else {
+                SimpleDateFormat shortDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+                return shortDateFormat.parse(dateStr.substring(0, 10));
+            }
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(dateStr, e);
+        }
+    }
+
+    /**
+     * @return  nanoseconds per parse
+     */
+    private static double time(final String input, final Parser parser) throws Exception {
+        return Benchmark.time(ITERATIONS, new Benchmark.Task() {
+            @Override
+            public long run() {
+                return parser.parse(input);
+            }
+        });
+    }
+
+    private static void report(String name, double oldNanos, double newNanos) {
+        System.out.println(String.format("%-10s SimpleDateFormat %8.1f ns/parse, parseRfc3339 %6.1f ns/parse (%.0fx)",
+                name, oldNanos, newNanos, oldNanos / newNanos));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Parser oldDateTime = new Parser() {
+            @Override
+            public long parse(String s) {
+                return parseWithSimpleDateFormat(s, false).getTime();
+            }
+        };
+        Parser oldDate = new Parser() {
+            @Override
+            public long parse(String s) {
+                return parseWithSimpleDateFormat(s, true).getTime();
+            }
+        };
+        Parser rfc3339 = new Parser() {
+            @Override
+            public long parse(String s) {
+                return DateUtil.parseRfc3339(s);
+            }
+        };
+
+        // Both paths have to agree before their timings mean anything
+        if (oldDateTime.parse(DATE_TIME_NO_COLON) != rfc3339.parse(DATE_TIME)
+                || oldDate.parse(DATE) != rfc3339.parse(DATE)) {
+            throw new IllegalStateException("Parsers disagree");
+        }
+
+        report("dateTime", time(DATE_TIME_NO_COLON, oldDateTime), time(DATE_TIME, rfc3339));
+        report("date", time(DATE, oldDate), time(DATE, rfc3339));
+    }
+}
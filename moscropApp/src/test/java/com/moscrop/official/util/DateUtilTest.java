@@ -0,0 +1,200 @@
+package com.moscrop.official.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class DateUtilTest {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone VANCOUVER = TimeZone.getTimeZone("America/Vancouver");
+
+    private TimeZone mDefaultTimeZone;
+
+    @Before
+    public void setUp() {
+        mDefaultTimeZone = TimeZone.getDefault();
+        TimeZone.setDefault(VANCOUVER);
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultTimeZone);
+    }
+
+    /**
+     * Time of a date and time in a time zone, worked out with GregorianCalendar
+     */
+    private static long millis(TimeZone tz, int year, int month, int day, int hour, int minute, int second,
+                               int millis) {
+        Calendar calendar = new GregorianCalendar(tz);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute, second);
+        calendar.set(Calendar.MILLISECOND, millis);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long utc(int year, int month, int day, int hour, int minute, int second, int millis) {
+        return millis(UTC, year, month, day, hour, minute, second, millis);
+    }
+
+    @Test
+    public void parsesUtc() {
+        long expected = utc(2015, 9, 10, 15, 30, 0, 0);
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T15:30:00Z"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T15:30:00z"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T15:30:00.000Z"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10 15:30:00Z"));
+    }
+
+    @Test
+    public void parsesOffsetsWithColon() {
+        long expected = utc(2015, 9, 10, 15, 30, 0, 0);
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T08:30:00-07:00"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T21:00:00+05:30"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T15:30:00+00:00"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T15:30:00-00:00"));
+    }
+
+    @Test
+    public void parsesOffsetsWithoutColon() {
+        long expected = utc(2015, 9, 10, 15, 30, 0, 0);
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T08:30:00-0700"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T21:00:00+0530"));
+        assertEquals(expected, DateUtil.parseRfc3339("2015-09-10T08:30:00.000-0700"));
+    }
+
+    @Test
+    public void parsesNegativeOffsetsUnderAnHour() {
+        // 15:00 at -00:30 is 15:30 UTC, the sign applies to the minutes too
+        assertEquals(utc(2015, 9, 10, 15, 30, 0, 0), DateUtil.parseRfc3339("2015-09-10T15:00:00-00:30"));
+        assertEquals(utc(2015, 9, 10, 19, 0, 0, 0), DateUtil.parseRfc3339("2015-09-10T15:30:00-03:30"));
+        assertEquals(utc(2015, 9, 10, 12, 0, 0, 0), DateUtil.parseRfc3339("2015-09-10T15:30:00+03:30"));
+    }
+
+    @Test
+    public void offsetsCrossTheDate() {
+        assertEquals(utc(2015, 9, 11, 6, 0, 0, 0), DateUtil.parseRfc3339("2015-09-10T23:00:00-07:00"));
+        assertEquals(utc(2014, 12, 31, 14, 0, 0, 0), DateUtil.parseRfc3339("2015-01-01T00:00:00+10:00"));
+    }
+
+    @Test
+    public void parsesDatesInTheDefaultTimeZone() {
+        assertEquals(millis(VANCOUVER, 2015, 9, 10, 0, 0, 0, 0), DateUtil.parseRfc3339("2015-09-10"));
+        assertEquals(millis(VANCOUVER, 2015, 12, 25, 0, 0, 0, 0), DateUtil.parseRfc3339("2015-12-25"));
+    }
+
+    @Test
+    public void parsesDateTimesWithoutZoneInTheDefaultTimeZone() {
+        assertEquals(millis(VANCOUVER, 2015, 9, 10, 8, 30, 0, 0), DateUtil.parseRfc3339("2015-09-10T08:30:00"));
+        assertEquals(millis(VANCOUVER, 2015, 1, 10, 8, 30, 0, 0), DateUtil.parseRfc3339("2015-01-10T08:30:00"));
+    }
+
+    @Test
+    public void parsesDatesAcrossDaylightSavingChanges() {
+        // Vancouver moved to PDT on 2015-03-08 and back to PST on 2015-11-01
+        assertEquals(utc(2015, 3, 8, 8, 0, 0, 0), DateUtil.parseRfc3339("2015-03-08"));
+        assertEquals(utc(2015, 3, 9, 7, 0, 0, 0), DateUtil.parseRfc3339("2015-03-09"));
+        assertEquals(utc(2015, 11, 1, 7, 0, 0, 0), DateUtil.parseRfc3339("2015-11-01"));
+        assertEquals(utc(2015, 11, 2, 8, 0, 0, 0), DateUtil.parseRfc3339("2015-11-02"));
+    }
+
+    @Test
+    public void parsesOneToNineFractionDigits() {
+        long second = utc(2015, 9, 10, 15, 30, 0, 0);
+        assertEquals(second + 500, DateUtil.parseRfc3339("2015-09-10T15:30:00.5Z"));
+        assertEquals(second + 50, DateUtil.parseRfc3339("2015-09-10T15:30:00.05Z"));
+        assertEquals(second + 5, DateUtil.parseRfc3339("2015-09-10T15:30:00.005Z"));
+        assertEquals(second + 123, DateUtil.parseRfc3339("2015-09-10T15:30:00.1234Z"));
+        assertEquals(second + 123, DateUtil.parseRfc3339("2015-09-10T15:30:00.12345Z"));
+        assertEquals(second + 123, DateUtil.parseRfc3339("2015-09-10T15:30:00.123456Z"));
+        assertEquals(second + 999, DateUtil.parseRfc3339("2015-09-10T15:30:00.9999999Z"));
+        assertEquals(second + 123, DateUtil.parseRfc3339("2015-09-10T15:30:00.12345678Z"));
+        assertEquals(second + 123, DateUtil.parseRfc3339("2015-09-10T15:30:00.123456789Z"));
+        assertEquals(second + 123 + 7 * 3600000, DateUtil.parseRfc3339("2015-09-10T15:30:00.123456789-07:00"));
+    }
+
+    @Test
+    public void clampsLeapSeconds() {
+        assertEquals(utc(2015, 6, 30, 23, 59, 59, 0), DateUtil.parseRfc3339("2015-06-30T23:59:60Z"));
+    }
+
+    @Test
+    public void parsesTimesBeforeTheEpoch() {
+        assertEquals(-1, DateUtil.parseRfc3339("1969-12-31T23:59:59.999Z"));
+        assertEquals(utc(1900, 3, 1, 12, 0, 0, 0), DateUtil.parseRfc3339("1900-03-01T12:00:00Z"));
+        assertEquals(utc(1600, 2, 29, 0, 0, 0, 0), DateUtil.parseRfc3339("1600-02-29T00:00:00Z"));
+    }
+
+    @Test
+    public void rejectsDatesThatDontExist() {
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-02-31"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-02-29"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("1900-02-29T00:00:00Z"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-04-31T00:00:00Z"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-00-10"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-13-10"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-00"));
+        assertEquals(utc(2016, 2, 29, 0, 0, 0, 0), DateUtil.parseRfc3339("2016-02-29T00:00:00Z"));
+        assertEquals(utc(2000, 2, 29, 0, 0, 0, 0), DateUtil.parseRfc3339("2000-02-29T00:00:00Z"));
+    }
+
+    @Test
+    public void rejectsMalformedTimes() {
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339(""));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("not a date"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015/09/10"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T24:00:00Z"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:60:00Z"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30:00.Z"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30:00ZZ"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30:00+7"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30:00+07:0"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30:00+07:000"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30:00+24:00"));
+        assertEquals(DateUtil.INVALID_TIME, DateUtil.parseRfc3339("2015-09-10T15:30:00+07:60"));
+    }
+
+    @Test
+    public void formatsInUtc() {
+        assertEquals("2015-09-10T15:30:00.000Z", DateUtil.formatRfc3339(utc(2015, 9, 10, 15, 30, 0, 0)));
+        assertEquals("2015-09-10T15:30:00.007Z", DateUtil.formatRfc3339(utc(2015, 9, 10, 15, 30, 0, 7)));
+        assertEquals("1970-01-01T00:00:00.000Z", DateUtil.formatRfc3339(0));
+        assertEquals("2016-02-29T23:59:59.999Z", DateUtil.formatRfc3339(utc(2016, 2, 29, 23, 59, 59, 999)));
+    }
+
+    @Test
+    public void formatsTimesBeforeTheEpoch() {
+        assertEquals("1969-12-31T23:59:59.999Z", DateUtil.formatRfc3339(-1));
+        assertEquals("1969-12-31T00:00:00.000Z", DateUtil.formatRfc3339(-DateUtil.DAY_MILLIS));
+        assertEquals("1900-03-01T12:00:00.000Z", DateUtil.formatRfc3339(utc(1900, 3, 1, 12, 0, 0, 0)));
+    }
+
+    @Test
+    public void appendsToTheBuilder() {
+        StringBuilder builder = new StringBuilder("timeMin=");
+        DateUtil.formatRfc3339(0, builder);
+        assertEquals("timeMin=1970-01-01T00:00:00.000Z", builder.toString());
+    }
+
+    @Test
+    public void roundTrips() {
+        Random random = new Random(2015);
+        long min = utc(1000, 1, 1, 0, 0, 0, 0);
+        long max = utc(9999, 12, 31, 23, 59, 59, 999);
+        for (int i = 0; i < 100000; i++) {
+            long millis = min + (long) (random.nextDouble() * (max - min));
+            String formatted = DateUtil.formatRfc3339(millis);
+            assertEquals(formatted, millis, DateUtil.parseRfc3339(formatted));
+        }
+    }
+}